@@ -0,0 +1,579 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * <p>Map from <code>AID</code> to values, optimized for the lookups done while
+ * processing APDUs.</p>
+ * <p>Exact lookups use a hash table and can be done directly on AID bytes contained
+ * in a buffer. Partial lookups (SELECT by prefix) use a trie whose children are ordered
+ * by unsigned byte value. Neither kind of lookup allocates memory.</p>
+ * <p>Keys are ordered like <code>AIDUtil.comparator()</code>: unsigned lexicographic
+ * order of the AID bytes, a prefix sorts before longer AIDs.</p>
+ * <p>Lookups by bytes return the registered key, so all lookups of the same AID bytes
+ * yield the same <code>AID</code> instance.</p>
+ * <p>This class is not thread-safe.</p>
+ * @param <V> value type
+ * @see com.licel.jcardsim.utils.AIDUtil#comparator()
+ */
+public final class AIDIndex<V> {
+    private static final int MAX_AID_LENGTH = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Entry<V>[] table = newTable(INITIAL_CAPACITY);
+    private final Node<V> root = new Node<V>();
+    private int size;
+    private SortedMap<AID, V> sortedMap;
+
+    /**
+     * Create an empty index
+     */
+    public AIDIndex() {
+    }
+
+    /**
+     * Create an index containing the entries of <code>other</code>
+     * @param other index to copy
+     */
+    public AIDIndex(AIDIndex<? extends V> other) {
+        putAll(other);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the index has no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Return the value registered for <code>aid</code>
+     * @param aid AID, may be null
+     * @return value or null
+     */
+    public V get(AID aid) {
+        Entry<V> entry = entryFor(aid);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * @param aid AID, may be null
+     * @return true if a value is registered for <code>aid</code>
+     */
+    public boolean containsKey(AID aid) {
+        return entryFor(aid) != null;
+    }
+
+    /**
+     * Return the value registered for the AID bytes contained in <code>buffer</code>
+     * @param buffer the byte array containing the AID bytes
+     * @param offset the start of AID bytes in <code>buffer</code>
+     * @param length the length of the AID bytes in <code>buffer</code>
+     * @return value or null
+     */
+    public V get(byte[] buffer, short offset, byte length) {
+        Entry<V> entry = entryFor(buffer, offset, length);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Return the registered key that equals the AID bytes contained in <code>buffer</code>
+     * @param buffer the byte array containing the AID bytes
+     * @param offset the start of AID bytes in <code>buffer</code>
+     * @param length the length of the AID bytes in <code>buffer</code>
+     * @return registered AID or null
+     */
+    public AID lookup(byte[] buffer, short offset, byte length) {
+        Entry<V> entry = entryFor(buffer, offset, length);
+        return entry == null ? null : entry.key;
+    }
+
+    /**
+     * Return the smallest registered key starting with the bytes contained in <code>buffer</code>
+     * @param buffer the byte array containing the partial AID bytes
+     * @param offset the start of the partial AID bytes in <code>buffer</code>
+     * @param length the length of the partial AID bytes in <code>buffer</code>
+     * @return registered AID or null
+     * @see AID#partialEquals(byte[], short, byte)
+     */
+    public AID findPrefix(byte[] buffer, short offset, byte length) {
+        if (length < 0 || length > MAX_AID_LENGTH) {
+            return null;
+        }
+        Node<V> node = root;
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(buffer[offset + i]);
+        }
+        return node == null ? null : first(node);
+    }
+
+    /**
+     * @return the smallest registered key or null if the index is empty
+     */
+    public AID firstKey() {
+        return first(root);
+    }
+
+    /**
+     * Register <code>value</code> for <code>aid</code>
+     * @param aid AID
+     * @param value value
+     * @return previously registered value or null
+     * @throws java.lang.NullPointerException if <code>aid</code> is null
+     */
+    public V put(AID aid, V value) {
+        if (aid == null) {
+            throw new NullPointerException("aid");
+        }
+        Entry<V> entry = entryFor(aid);
+        if (entry != null) {
+            V old = entry.value;
+            entry.value = value;
+            return old;
+        }
+
+        byte[] bytes = new byte[MAX_AID_LENGTH];
+        int length = aid.getBytes(bytes, (short) 0);
+        entry = new Entry<V>(aid, aid.hashCode(), value);
+
+        if (size >= table.length - (table.length >> 2)) {
+            resize();
+        }
+        int index = entry.hash & (table.length - 1);
+        entry.next = table[index];
+        table[index] = entry;
+
+        Node<V> node = root;
+        for (int i = 0; i < length; i++) {
+            node = node.addChild(bytes[i]);
+        }
+        node.entry = entry;
+
+        size++;
+        return null;
+    }
+
+    /**
+     * Add all entries of <code>other</code>
+     * @param other index to copy
+     */
+    public void putAll(AIDIndex<? extends V> other) {
+        for (AID aid : other.keys()) {
+            put(aid, other.get(aid));
+        }
+    }
+
+    /**
+     * Remove the value registered for <code>aid</code>
+     * @param aid AID, may be null
+     * @return removed value or null
+     */
+    public V remove(AID aid) {
+        if (aid == null) {
+            return null;
+        }
+        int index = aid.hashCode() & (table.length - 1);
+        Entry<V> previous = null;
+        for (Entry<V> entry = table[index]; entry != null; entry = entry.next) {
+            if (entry.key.equals(aid)) {
+                if (previous == null) {
+                    table[index] = entry.next;
+                } else {
+                    previous.next = entry.next;
+                }
+                byte[] bytes = new byte[MAX_AID_LENGTH];
+                int length = entry.key.getBytes(bytes, (short) 0);
+                removeFromTrie(root, bytes, 0, length);
+                size--;
+                return entry.value;
+            }
+            previous = entry;
+        }
+        return null;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        table = newTable(INITIAL_CAPACITY);
+        root.entry = null;
+        root.childCount = 0;
+        root.keys = null;
+        root.children = null;
+        size = 0;
+    }
+
+    /**
+     * @return a new list of all keys in ascending order
+     */
+    public List<AID> keys() {
+        ArrayList<AID> result = new ArrayList<AID>(size);
+        collect(root, result, null);
+        return result;
+    }
+
+    /**
+     * @return a new list of all values in ascending order of their keys
+     */
+    public List<V> values() {
+        ArrayList<V> result = new ArrayList<V>(size);
+        collect(root, null, result);
+        return result;
+    }
+
+    /**
+     * Return a <code>SortedMap</code> view of this index. Changes of the view write through
+     * to the index and vice versa, except that <code>subMap</code>, <code>headMap</code> and
+     * <code>tailMap</code> return copies.
+     * @return sorted map backed by this index
+     */
+    public SortedMap<AID, V> asSortedMap() {
+        if (sortedMap == null) {
+            sortedMap = new SortedMapView();
+        }
+        return sortedMap;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AIDIndex (%d entries)", size);
+    }
+
+    private Entry<V> entryFor(AID aid) {
+        if (aid == null) {
+            return null;
+        }
+        for (Entry<V> entry = table[aid.hashCode() & (table.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.key == aid || entry.key.equals(aid)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry<V> entryFor(byte[] buffer, short offset, byte length) {
+        if (buffer == null || length < 0 || length > MAX_AID_LENGTH) {
+            return null;
+        }
+        // same as AID.hashCode()
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer[offset + i];
+        }
+        for (Entry<V> entry = table[hash & (table.length - 1)]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && entry.key.equals(buffer, offset, length)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void resize() {
+        Entry<V>[] oldTable = table;
+        table = newTable(oldTable.length * 2);
+        for (Entry<V> head : oldTable) {
+            Entry<V> entry = head;
+            while (entry != null) {
+                Entry<V> next = entry.next;
+                int index = entry.hash & (table.length - 1);
+                entry.next = table[index];
+                table[index] = entry;
+                entry = next;
+            }
+        }
+    }
+
+    private static <V> AID first(Node<V> node) {
+        while (node.entry == null) {
+            if (node.childCount == 0) {
+                return null;
+            }
+            node = node.children[0];
+        }
+        return node.entry.key;
+    }
+
+    private static <V> boolean removeFromTrie(Node<V> node, byte[] bytes, int depth, int length) {
+        if (depth == length) {
+            node.entry = null;
+        } else {
+            int index = node.indexOf(bytes[depth]);
+            if (index >= 0 && removeFromTrie(node.children[index], bytes, depth + 1, length)) {
+                node.removeChild(index);
+            }
+        }
+        // true if node can be pruned
+        return node.entry == null && node.childCount == 0;
+    }
+
+    private static <V> void collect(Node<V> node, List<AID> keys, List<V> values) {
+        if (node.entry != null) {
+            if (keys != null) {
+                keys.add(node.entry.key);
+            }
+            if (values != null) {
+                values.add(node.entry.value);
+            }
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], keys, values);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> Entry<V>[] newTable(int capacity) {
+        return new Entry[capacity];
+    }
+
+    private static final class Entry<V> {
+        final AID key;
+        final int hash;
+        V value;
+        Entry<V> next;
+
+        Entry(AID key, int hash, V value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static final class Node<V> {
+        // child keys as unsigned values, ascending
+        int[] keys;
+        Node<V>[] children;
+        int childCount;
+        Entry<V> entry;
+
+        Node<V> child(byte b) {
+            int index = indexOf(b);
+            return index < 0 ? null : children[index];
+        }
+
+        int indexOf(byte b) {
+            int key = b & 0xFF;
+            int low = 0;
+            int high = childCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] < key) {
+                    low = mid + 1;
+                } else if (keys[mid] > key) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<V> addChild(byte b) {
+            int index = indexOf(b);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -(index + 1);
+            if (keys == null) {
+                keys = new int[2];
+                children = new Node[2];
+            } else if (childCount == keys.length) {
+                int[] newKeys = new int[childCount * 2];
+                Node<V>[] newChildren = new Node[childCount * 2];
+                System.arraycopy(keys, 0, newKeys, 0, childCount);
+                System.arraycopy(children, 0, newChildren, 0, childCount);
+                keys = newKeys;
+                children = newChildren;
+            }
+            System.arraycopy(keys, index, keys, index + 1, childCount - index);
+            System.arraycopy(children, index, children, index + 1, childCount - index);
+            Node<V> node = new Node<V>();
+            keys[index] = b & 0xFF;
+            children[index] = node;
+            childCount++;
+            return node;
+        }
+
+        void removeChild(int index) {
+            System.arraycopy(keys, index + 1, keys, index, childCount - index - 1);
+            System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+            childCount--;
+            children[childCount] = null;
+        }
+    }
+
+    private final class SortedMapView extends AbstractMap<AID, V> implements SortedMap<AID, V> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof AID && AIDIndex.this.containsKey((AID) key);
+        }
+
+        @Override
+        public V get(Object key) {
+            return key instanceof AID ? AIDIndex.this.get((AID) key) : null;
+        }
+
+        @Override
+        public V put(AID key, V value) {
+            return AIDIndex.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return key instanceof AID ? AIDIndex.this.remove((AID) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            AIDIndex.this.clear();
+        }
+
+        public Comparator<? super AID> comparator() {
+            return AIDUtil.comparator();
+        }
+
+        public AID firstKey() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return AIDIndex.this.firstKey();
+        }
+
+        public AID lastKey() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return keys().get(size - 1);
+        }
+
+        public SortedMap<AID, V> subMap(AID fromKey, AID toKey) {
+            return copy().subMap(fromKey, toKey);
+        }
+
+        public SortedMap<AID, V> headMap(AID toKey) {
+            return copy().headMap(toKey);
+        }
+
+        public SortedMap<AID, V> tailMap(AID fromKey) {
+            return copy().tailMap(fromKey);
+        }
+
+        @Override
+        public Set<Map.Entry<AID, V>> entrySet() {
+            return new AbstractSet<Map.Entry<AID, V>>() {
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public Iterator<Map.Entry<AID, V>> iterator() {
+                    final Iterator<AID> keys = keys().iterator();
+                    return new Iterator<Map.Entry<AID, V>>() {
+                        private AID last;
+
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        public Map.Entry<AID, V> next() {
+                            last = keys.next();
+                            return new ViewEntry(last);
+                        }
+
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+                            AIDIndex.this.remove(last);
+                            last = null;
+                        }
+                    };
+                }
+            };
+        }
+
+        private TreeMap<AID, V> copy() {
+            TreeMap<AID, V> copy = new TreeMap<AID, V>(AIDUtil.comparator());
+            copy.putAll(this);
+            return copy;
+        }
+    }
+
+    private final class ViewEntry implements Map.Entry<AID, V> {
+        private final AID key;
+
+        ViewEntry(AID key) {
+            this.key = key;
+        }
+
+        public AID getKey() {
+            return key;
+        }
+
+        public V getValue() {
+            return get(key);
+        }
+
+        public V setValue(V value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            V value = getValue();
+            return key.equals(other.getKey()) && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            V value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+    }
+}
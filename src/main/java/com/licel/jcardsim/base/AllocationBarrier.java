@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Allocation barriers of persistent memory.</p>
+ * <p><code>AppletClassInstrumenter</code> rewrites applet classes to call these methods
+ * before objects and arrays are created. The size of the new object is charged to the
+ * persistent memory of the active runtime, which throws <code>SystemException.NO_RESOURCE</code>
+ * if its <code>MemoryProfile</code> is exceeded. Only runtimes with a limited persistent memory
+ * size count allocations, and only while they are entered. While no such runtime is entered every
+ * barrier costs one volatile read.</p>
+ * <p>The methods are public only because instrumented classes live in other packages.
+ * They must not be called directly.</p>
+ * @see MemoryProfile
+ */
+public final class AllocationBarrier {
+    // number of entered runtimes with a limited persistent memory size
+    private static final AtomicInteger activeRuntimes = new AtomicInteger(0);
+
+    private AllocationBarrier() {
+    }
+
+    /**
+     * Called before <code>new</code>
+     * @param type class of the new object
+     */
+    public static void newObject(Class<?> type) {
+        if (activeRuntimes.get() != 0) {
+            SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+            if (runtime != null) {
+                runtime.allocatePersistent(runtime.instanceSize(type));
+            }
+        }
+    }
+
+    /**
+     * Called before <code>newarray</code> and <code>anewarray</code>
+     * @param length length of the new array
+     * @param elementSize bytes used by an element
+     */
+    public static void newArray(int length, int elementSize) {
+        if (length < 0 || activeRuntimes.get() == 0) {
+            // NegativeArraySizeException follows or nothing is counted
+            return;
+        }
+        SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+        if (runtime != null) {
+            runtime.allocatePersistent(MemoryProfile.HEADER_SIZE + (long) length * elementSize);
+        }
+    }
+
+    /**
+     * Called at the start of static initializers
+     * @param type class being initialized
+     */
+    public static void classInitialized(Class<?> type) {
+        AppletClassInstrumenter.classInitialized(type);
+    }
+
+    static void profilingStarted() {
+        activeRuntimes.incrementAndGet();
+    }
+
+    static void profilingFinished() {
+        activeRuntimes.decrementAndGet();
+    }
+
+    /**
+     * @param type class
+     * @return bytes used by an instance of <code>type</code>, computed on every call
+     * @see SimulatorRuntime#instanceSize(Class)
+     */
+    static int instanceSize(Class<?> type) {
+        int bytes = MemoryProfile.HEADER_SIZE;
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    bytes += fieldSize(field.getType());
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == boolean.class || type == byte.class) {
+            return 1;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == long.class || type == double.class) {
+            return 8;
+        }
+        // short, char and references
+        return 2;
+    }
+}
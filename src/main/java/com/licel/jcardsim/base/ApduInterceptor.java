@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+/**
+ * <p>Observes and rewrites the APDUs of a card, e.g. to measure latency, to inject faults or
+ * to unwrap secure messaging.</p>
+ * <p>Interceptors are installed with <code>SimulatorRuntime.addInterceptor</code> for the commands
+ * of one runtime, or with <code>CardManager.addInterceptor</code> for all commands dispatched
+ * by <code>CardManager</code>. The <code>beforeCommand</code> methods are called in the order
+ * the interceptors were added, the <code>afterCommand</code> methods in reverse order.</p>
+ * <p>Interceptors of a runtime are called while the runtime is locked.</p>
+ * @see ApduView
+ */
+public interface ApduInterceptor {
+    /**
+     * Called before a command is processed
+     * @param command command APDU, may be changed
+     * @param response empty response APDU
+     * @return true to process the command, false to answer it with <code>response</code>,
+     * which must then contain at least a status word. Later interceptors are skipped.
+     */
+    boolean beforeCommand(ApduView command, ApduView response);
+
+    /**
+     * Called after a command was processed or answered by an interceptor.
+     * Only interceptors whose <code>beforeCommand</code> was called are called.
+     * @param command command APDU as processed
+     * @param response response APDU, may be changed
+     */
+    void afterCommand(ApduView command, ApduView response);
+}
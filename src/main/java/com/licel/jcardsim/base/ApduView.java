@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.Arrays;
+
+/**
+ * <p>Mutable view of a command or response APDU passed to an <code>ApduInterceptor</code>.</p>
+ * <p>The APDU occupies <code>getLength()</code> bytes of <code>getBuffer()</code>, starting at
+ * <code>getOffset()</code>. Interceptors may change these bytes in place, or replace the APDU
+ * with <code>setApdu</code>. A view is only valid during the callback it is passed to.</p>
+ * @see ApduInterceptor
+ */
+public final class ApduView {
+    private byte[] buffer;
+    private final int offset;
+    private int length;
+    private int limit;
+    private final boolean resizable;
+
+    /**
+     * @param buffer buffer holding the APDU
+     * @param offset start of the APDU in <code>buffer</code>
+     * @param length length of the APDU
+     * @param limit end of the usable part of <code>buffer</code>
+     * @param resizable if true the buffer is replaced by a larger one when needed
+     */
+    ApduView(byte[] buffer, int offset, int length, int limit, boolean resizable) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.limit = limit;
+        this.resizable = resizable;
+    }
+
+    /**
+     * @return buffer holding the APDU
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return start of the APDU in <code>getBuffer()</code>
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the APDU
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return maximum length of the APDU without replacing the buffer
+     */
+    public int getCapacity() {
+        return limit - offset;
+    }
+
+    /**
+     * Change the length of the APDU. Bytes added at the end are not cleared.
+     * @param length new length
+     * @throws java.lang.IllegalArgumentException if <code>length</code> is negative
+     * or exceeds the capacity of a view that can not be resized
+     */
+    public void setLength(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must not be negative");
+        }
+        if (length > getCapacity()) {
+            if (!resizable) {
+                throw new IllegalArgumentException("length exceeds capacity: " + length);
+            }
+            buffer = Arrays.copyOf(buffer, offset + Math.max(length, 2 * getCapacity()));
+            limit = buffer.length;
+        }
+        this.length = length;
+    }
+
+    /**
+     * @param index index within the APDU
+     * @return byte at <code>index</code>
+     * @throws java.lang.IndexOutOfBoundsException if <code>index</code> is not within the APDU
+     */
+    public byte get(int index) {
+        checkIndex(index);
+        return buffer[offset + index];
+    }
+
+    /**
+     * @param index index within the APDU
+     * @param value new value
+     * @throws java.lang.IndexOutOfBoundsException if <code>index</code> is not within the APDU
+     */
+    public void set(int index, byte value) {
+        checkIndex(index);
+        buffer[offset + index] = value;
+    }
+
+    /**
+     * Replace the APDU
+     * @param apdu buffer holding the new APDU
+     * @param apduOffset start of the new APDU in <code>apdu</code>
+     * @param apduLength length of the new APDU
+     * @throws java.lang.IllegalArgumentException if <code>apduLength</code> exceeds the capacity
+     * of a view that can not be resized
+     */
+    public void setApdu(byte[] apdu, int apduOffset, int apduLength) {
+        setLength(apduLength);
+        System.arraycopy(apdu, apduOffset, buffer, offset, apduLength);
+    }
+
+    /**
+     * Replace the APDU
+     * @param apdu new APDU
+     * @see #setApdu(byte[], int, int)
+     */
+    public void setApdu(byte[] apdu) {
+        setApdu(apdu, 0, apdu.length);
+    }
+
+    /**
+     * @return status word of a response APDU, the last two bytes
+     * @throws java.lang.IllegalStateException if the APDU is shorter than two bytes
+     */
+    public short getStatusWord() {
+        if (length < 2) {
+            throw new IllegalStateException("No status word");
+        }
+        return (short) (((buffer[offset + length - 2] & 0xFF) << 8) | (buffer[offset + length - 1] & 0xFF));
+    }
+
+    /**
+     * Replace the status word of a response APDU, or append it if the APDU is shorter than two bytes
+     * @param sw new status word
+     */
+    public void setStatusWord(short sw) {
+        if (length < 2) {
+            setLength(length + 2);
+        }
+        buffer[offset + length - 2] = (byte) (sw >> 8);
+        buffer[offset + length - 1] = (byte) sw;
+    }
+
+    /**
+     * @return copy of the APDU
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index: " + index);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Adds the write barriers of <code>TransactionBarrier</code>, the allocation barriers of
+ * <code>AllocationBarrier</code> and the back-edge counters of <code>Watchdog</code> to applet
+ * classes when they are loaded.</p>
+ * <ul>
+ *     <li><code>bastore</code>, <code>sastore</code>, <code>iastore</code> and <code>aastore</code>
+ *     are replaced by calls of the barrier.</li>
+ *     <li><code>putfield</code> and <code>putstatic</code> are preceded by a call of the barrier.
+ *     In constructors <code>putfield</code> is instrumented after the call of the superclass
+ *     constructor, before it the object written may be uninitialized. Static initializers are
+     *     not instrumented, they only initialize new state.</li>
+ *     <li>Static initializers start with a call of <code>AllocationBarrier.classInitialized</code>,
+ *     an empty one is added to classes without. The static fields of initialized classes are roots
+ *     of object deletion.</li>
+ * </ul>
+ * <p>The inserted code does not branch and the allocation barrier of <code>new</code> follows the
+ * instruction, so existing stack map frames, including their uninitialized types, stay valid.
+ * Class files older than Java 5 are upgraded to version 49 for <code>ldc</code> of class constants.</p>
+ */
+final class AppletClassInstrumenter extends ClassVisitor {
+    private static final String BARRIER = Type.getInternalName(TransactionBarrier.class);
+    private static final String ALLOCATION_BARRIER = Type.getInternalName(AllocationBarrier.class);
+    private static final String WATCHDOG = Type.getInternalName(Watchdog.class);
+
+    // internal name of the class
+    private String className;
+    // true once the static initializer is visited
+    private boolean staticInitializer;
+
+    private AppletClassInstrumenter(ClassVisitor cv) {
+        super(Opcodes.ASM5, cv);
+    }
+
+    /**
+     * Instrument a class file
+     * @param classFile class file bytes
+     * @return instrumented class file bytes
+     */
+    static byte[] instrument(byte[] classFile) {
+        ClassReader reader = new ClassReader(classFile);
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        reader.accept(new AppletClassInstrumenter(writer), 0);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param cls class
+     * @return true if <code>cls</code> was defined by a class loader that instruments its classes
+     */
+    static boolean isInstrumented(Class<?> cls) {
+        ClassLoader loader = cls.getClassLoader();
+        return loader instanceof IsolatingClassLoader || loader instanceof Simulator.AppletClassLoader;
+    }
+
+    /**
+     * Record that the static initializer of <code>cls</code> has started
+     * @param cls instrumented class
+     */
+    static void classInitialized(Class<?> cls) {
+        ClassLoader loader = cls.getClassLoader();
+        if (loader instanceof IsolatingClassLoader) {
+            ((IsolatingClassLoader) loader).classInitialized(cls);
+        } else if (loader instanceof Simulator.AppletClassLoader) {
+            ((Simulator.AppletClassLoader) loader).classInitialized(cls);
+        }
+    }
+
+    /**
+     * @param loader class loader
+     * @return the instrumented classes defined by <code>loader</code> whose static initializer has started
+     */
+    static List<Class<?>> initializedClasses(ClassLoader loader) {
+        if (loader instanceof IsolatingClassLoader) {
+            return ((IsolatingClassLoader) loader).getInitializedClasses();
+        } else if (loader instanceof Simulator.AppletClassLoader) {
+            return ((Simulator.AppletClassLoader) loader).getInitializedClasses();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+                      String[] interfaces) {
+        // major version is stored in the low 16 bits
+        if ((version & 0xFFFF) < Opcodes.V1_5) {
+            version = Opcodes.V1_5;
+        }
+        className = name;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (mv == null) {
+            return null;
+        }
+        boolean clinit = "<clinit>".equals(name);
+        staticInitializer |= clinit;
+        return new BarrierMethodVisitor(mv, clinit ? className : null, "<init>".equals(name));
+    }
+
+    @Override
+    public void visitEnd() {
+        if (!staticInitializer) {
+            // static fields of classes without a static initializer may be written as well
+            MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            mv.visitCode();
+            classInitialized(mv, className);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        super.visitEnd();
+    }
+
+    // stack: unchanged
+    private static void classInitialized(MethodVisitor mv, String className) {
+        mv.visitLdcInsn(Type.getObjectType(className));
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, ALLOCATION_BARRIER, "classInitialized",
+                "(Ljava/lang/Class;)V", false);
+    }
+
+    private static final class BarrierMethodVisitor extends MethodVisitor {
+        // internal name of the class if this is its static initializer
+        private final String initializedClass;
+        private final boolean instrumentFields;
+        // false in a constructor until the superclass or another constructor of the class is called
+        private boolean thisInitialized;
+        // objects created by NEW whose constructor is not called yet
+        private int uninitializedObjects;
+        // labels visited so far, a jump to one of them is a backward branch
+        private final Set<Label> visitedLabels = new HashSet<Label>();
+
+        BarrierMethodVisitor(MethodVisitor mv, String initializedClass, boolean constructor) {
+            super(Opcodes.ASM5, mv);
+            this.initializedClass = initializedClass;
+            this.instrumentFields = initializedClass == null;
+            this.thisInitialized = !constructor;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            if (initializedClass != null) {
+                classInitialized(mv, initializedClass);
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            switch (opcode) {
+                case Opcodes.BASTORE:
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "bastore", "(Ljava/lang/Object;II)V", false);
+                    break;
+                case Opcodes.SASTORE:
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "sastore", "([SII)V", false);
+                    break;
+                case Opcodes.IASTORE:
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "iastore", "([III)V", false);
+                    break;
+                case Opcodes.AASTORE:
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "aastore",
+                            "([Ljava/lang/Object;ILjava/lang/Object;)V", false);
+                    break;
+                default:
+                    super.visitInsn(opcode);
+            }
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (instrumentFields && thisInitialized && opcode == Opcodes.PUTFIELD) {
+                // stack: target, value -> target, value, target
+                if (Type.getType(desc).getSize() == 2) {
+                    super.visitInsn(Opcodes.DUP2_X1);
+                    super.visitInsn(Opcodes.POP2);
+                    super.visitInsn(Opcodes.DUP_X2);
+                } else {
+                    super.visitInsn(Opcodes.DUP2);
+                    super.visitInsn(Opcodes.POP);
+                }
+                super.visitLdcInsn(Type.getObjectType(owner));
+                super.visitLdcInsn(name);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "putField",
+                        "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/String;)V", false);
+            } else if (instrumentFields && opcode == Opcodes.PUTSTATIC) {
+                super.visitLdcInsn(Type.getObjectType(owner));
+                super.visitLdcInsn(name);
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, BARRIER, "putStatic",
+                        "(Ljava/lang/Class;Ljava/lang/String;)V", false);
+            }
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (!thisInitialized && opcode == Opcodes.INVOKESPECIAL && "<init>".equals(name)) {
+                // javac calls the constructor of each NEW before the next one completes,
+                // the first call without a pending NEW initializes this
+                if (uninitializedObjects == 0) {
+                    thisInitialized = true;
+                } else {
+                    uninitializedObjects--;
+                }
+            }
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            visitedLabels.add(label);
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            if (visitedLabels.contains(label)) {
+                backEdge();
+            }
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            if (isBackward(dflt, labels)) {
+                backEdge();
+            }
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            if (isBackward(dflt, labels)) {
+                backEdge();
+            }
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        private boolean isBackward(Label dflt, Label[] labels) {
+            if (visitedLabels.contains(dflt)) {
+                return true;
+            }
+            for (Label label : labels) {
+                if (visitedLabels.contains(label)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // stack: unchanged
+        private void backEdge() {
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, WATCHDOG, "backEdge", "()V", false);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            if (opcode == Opcodes.ANEWARRAY) {
+                newArray(2);
+            }
+            super.visitTypeInsn(opcode, type);
+            if (opcode == Opcodes.NEW) {
+                // after NEW: stack map frames refer to uninitialized objects by the offset of their NEW
+                uninitializedObjects++;
+                super.visitLdcInsn(Type.getObjectType(type));
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, ALLOCATION_BARRIER, "newObject",
+                        "(Ljava/lang/Class;)V", false);
+            }
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (opcode == Opcodes.NEWARRAY) {
+                newArray(elementSize(operand));
+            }
+            super.visitIntInsn(opcode, operand);
+        }
+
+        // stack: length -> length
+        private void newArray(int elementSize) {
+            super.visitInsn(Opcodes.DUP);
+            super.visitIntInsn(Opcodes.BIPUSH, elementSize);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, ALLOCATION_BARRIER, "newArray", "(II)V", false);
+        }
+
+        private static int elementSize(int type) {
+            switch (type) {
+                case Opcodes.T_BOOLEAN:
+                case Opcodes.T_BYTE:
+                    return 1;
+                case Opcodes.T_SHORT:
+                case Opcodes.T_CHAR:
+                    return 2;
+                case Opcodes.T_LONG:
+                case Opcodes.T_DOUBLE:
+                    return 8;
+                default:
+                    return 4;
+            }
+        }
+    }
+}
@@ -16,18 +16,65 @@
 package com.licel.jcardsim.base;
 
 import com.licel.jcardsim.io.JavaCardInterface;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
 import javacard.framework.AID;
 import javacard.framework.ISO7816;
 import javacard.framework.SystemException;
 import javacard.framework.Util;
 
+import java.nio.ByteBuffer;
+
 /**
  * CardManager.
  */
 public class CardManager {
+    // chaining bit of CLA, set on all commands of a chain but the last one
+    private static final byte CLA_CHAINING = 0x10;
+    // maximum Lc of a short command
+    private static final int MAX_SHORT_LC = 255;
+    // interceptors of all dispatched commands
+    private static final InterceptorChain interceptors = new InterceptorChain();
+
+    /**
+     * Add an interceptor of all commands dispatched by <code>CardManager</code>,
+     * for any <code>JavaCardInterface</code>. Without interceptors commands are
+     * dispatched without any additional cost.
+     * @param interceptor interceptor, called after the interceptors added before
+     * @throws java.lang.NullPointerException if <code>interceptor</code> is null
+     * @see SimulatorRuntime#addInterceptor(ApduInterceptor)
+     */
+    public static void addInterceptor(ApduInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Remove an interceptor added with <code>addInterceptor</code>
+     * @param interceptor interceptor
+     * @return true if <code>interceptor</code> was removed
+     */
+    public static boolean removeInterceptor(ApduInterceptor interceptor) {
+        return interceptors.remove(interceptor);
+    }
+
+    public static byte[] dispatchApdu(final JavaCardInterface sim, byte[] capdu) {
+        final ApduInterceptor[] chain = interceptors.get();
+        if (chain.length == 0) {
+            return dispatch(sim, capdu);
+        }
+        ApduView command = new ApduView(capdu.clone(), 0, capdu.length, capdu.length, true);
+        ApduView response = new ApduView(new byte[258], 0, 0, 258, true);
+        InterceptorChain.process(chain, command, response, new InterceptorChain.Target() {
+            public void process(ApduView command, ApduView response) {
+                response.setApdu(dispatch(sim, command.toByteArray()));
+            }
+        });
+        return response.toByteArray();
+    }
 
     // basic impl
-    public static byte[] dispatchApdu(JavaCardInterface sim, byte[] capdu) {
+    private static byte[] dispatch(JavaCardInterface sim, byte[] capdu) {
         byte[] theSW = new byte[2];
         if (capdu[ISO7816.OFFSET_CLA] == (byte)0x80 && capdu[ISO7816.OFFSET_INS] == (byte)0xb8) {
             // handle CREATE APPLET command
@@ -57,4 +104,157 @@ public class CardManager {
             return sim.transmitCommand(capdu);
         }
     }
+
+    /**
+     * <p>Transmit a command with any amount of data and stream the response data to
+     * <code>responseData</code>, as a host does with a T=0 card.</p>
+     * <p>Data longer than 255 bytes is sent in chunks of 255 bytes with command chaining: every command
+     * but the last one has the chaining bit 0x10 set in CLA and must be answered with 0x9000. Responses with the
+     * status word 0x61XX are followed by GET RESPONSE commands, responses with 0x6CXX are answered
+     * by sending the command again with Le = XX. Each chunk of response data is passed on as soon
+     * as it is received, so responses of any length are read without collecting them.</p>
+     * @param sim card
+     * @param header CLA, INS, P1 and P2 of the command
+     * @param data command data, may be null
+     * @param ne maximum response data of the command, 1-65536, or 0 if no response data is expected.
+     * The last command of a chain is sent with extended length fields if <code>ne</code> exceeds 256.
+     * Data fetched with GET RESPONSE is not limited by <code>ne</code>.
+     * @param responseData receives read-only buffers with the data of each response
+     * @return final status word
+     * @throws java.lang.NullPointerException if <code>sim</code>, <code>header</code> or
+     * <code>responseData</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>header</code> is not 4 bytes long,
+     * if CLA has the chaining bit set, or if <code>ne</code> is not in the range 0-65536
+     * @see SimulatorRuntime#setResponseChunkSize(int)
+     */
+    public static short transmitChained(JavaCardInterface sim, byte[] header, byte[] data, int ne,
+                                        Consumer<ByteBuffer> responseData) {
+        if (sim == null) {
+            throw new NullPointerException("sim");
+        }
+        if (header == null) {
+            throw new NullPointerException("header");
+        }
+        if (responseData == null) {
+            throw new NullPointerException("responseData");
+        }
+        if (header.length != 4) {
+            throw new IllegalArgumentException("header: length must be 4");
+        }
+        if ((header[ISO7816.OFFSET_CLA] & CLA_CHAINING) != 0) {
+            throw new IllegalArgumentException("header: CLA must not have the chaining bit set");
+        }
+        if (ne < 0 || ne > 65536) {
+            throw new IllegalArgumentException("ne must be in the range 0-65536");
+        }
+        final int dataLength = data == null ? 0 : data.length;
+        int offset = 0;
+        int chunk;
+        byte[] command;
+        byte[] response;
+        while (true) {
+            chunk = Math.min(MAX_SHORT_LC, dataLength - offset);
+            boolean last = offset + chunk == dataLength;
+            command = createCommand(header, last ? 0 : CLA_CHAINING, data, offset, chunk, last ? ne : 0);
+            response = dispatchApdu(sim, command);
+            if (last) {
+                break;
+            }
+            offset += chunk;
+            if (ByteUtil.getSW(response) != ISO7816.SW_NO_ERROR) {
+                // the card refused the chain
+                return sendResponseData(response, responseData);
+            }
+        }
+
+        short sw = sendResponseData(response, responseData);
+        boolean resent = false;
+        while (true) {
+            byte sw1 = (byte) (sw >> 8);
+            if (sw1 == (byte) 0x6C && !resent) {
+                // wrong Le, send the last command again with the Le of the card
+                if (command[ISO7816.OFFSET_INS] == SimulatorRuntime.INS_GET_RESPONSE) {
+                    command[ISO7816.OFFSET_LC] = (byte) sw;
+                } else {
+                    command = createCommand(header, 0, data, offset, chunk, (sw & 0xFF) == 0 ? 256 : sw & 0xFF);
+                }
+                resent = true;
+            } else if (sw1 == (byte) 0x61) {
+                byte cla = LogicalChannelUtil.setChannel(ISO7816.CLA_ISO7816,
+                        LogicalChannelUtil.getChannel(header[ISO7816.OFFSET_CLA]));
+                command = new byte[]{cla, SimulatorRuntime.INS_GET_RESPONSE, 0, 0, (byte) sw};
+                resent = false;
+            } else {
+                return sw;
+            }
+            sw = sendResponseData(dispatchApdu(sim, command), responseData);
+        }
+    }
+
+    // extended length fields are used if ne exceeds 256
+    private static byte[] createCommand(byte[] header, int chaining, byte[] data, int offset, int length, int ne) {
+        final boolean extended = ne > 256;
+        final int lcSize = length == 0 ? 0 : (extended ? 3 : 1);
+        final int leSize = ne == 0 ? 0 : (extended ? (length == 0 ? 3 : 2) : 1);
+        byte[] command = new byte[4 + lcSize + length + leSize];
+        System.arraycopy(header, 0, command, 0, 4);
+        command[ISO7816.OFFSET_CLA] |= chaining;
+        if (length != 0) {
+            if (extended) {
+                // 0, Lc1, Lc2
+                command[ISO7816.OFFSET_LC + 1] = (byte) (length >> 8);
+                command[ISO7816.OFFSET_LC + 2] = (byte) length;
+            } else {
+                command[ISO7816.OFFSET_LC] = (byte) length;
+            }
+            System.arraycopy(data, offset, command, 4 + lcSize, length);
+        }
+        // 256 and 65536 are encoded as 0
+        if (extended) {
+            command[command.length - 2] = (byte) (ne >> 8);
+        }
+        if (ne != 0) {
+            command[command.length - 1] = (byte) ne;
+        }
+        return command;
+    }
+
+    // passes the data of response to consumer, returns the status word
+    private static short sendResponseData(byte[] response, Consumer<ByteBuffer> consumer) {
+        if (response.length > 2) {
+            consumer.accept(ByteBuffer.wrap(response, 0, response.length - 2).asReadOnlyBuffer());
+        }
+        return ByteUtil.getSW(response);
+    }
+
+    /**
+     * Dispatch a command read from <code>command</code> and write the response to <code>response</code>.
+     * <p>Commands for a <code>Simulator</code> are passed on without converting the buffers
+     * to byte arrays, unless interceptors are installed.</p>
+     * @param sim card
+     * @param command buffer containing the command apdu, the position is set to the limit
+     * @param response buffer receiving the response apdu, the position is advanced
+     * @return length of the response apdu
+     * @throws java.lang.IllegalArgumentException if the command is malformed
+     * or if <code>response</code> may not have sufficient space for the response
+     * @see Simulator#transmitCommand(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    public static int dispatchApdu(JavaCardInterface sim, ByteBuffer command, ByteBuffer response) {
+        final int position = command.position();
+        final boolean createApplet = command.remaining() > ISO7816.OFFSET_INS
+                && command.get(position + ISO7816.OFFSET_CLA) == (byte) 0x80
+                && command.get(position + ISO7816.OFFSET_INS) == (byte) 0xb8;
+        if (sim instanceof Simulator && !createApplet && interceptors.get().length == 0) {
+            return ((Simulator) sim).transmitCommand(command, response);
+        }
+        byte[] capdu = new byte[command.remaining()];
+        command.duplicate().get(capdu);
+        if (response.remaining() < SimulatorRuntime.getMaxResponseLength(capdu, 0, capdu.length)) {
+            throw new IllegalArgumentException("response: insufficient space");
+        }
+        command.position(command.limit());
+        byte[] result = dispatchApdu(sim, capdu);
+        response.put(result);
+        return result.length;
+    }
 }
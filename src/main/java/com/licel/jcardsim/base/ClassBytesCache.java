@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.ByteUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * <p>Content addressed store for class file bytes, shared by all applet class loaders.</p>
+ * <p>A class file is read from its source and hashed once, identical class files are stored once.
+ * Defining the same class in many class loaders then only costs the <code>defineClass</code> call.
+ * Uploaded applet JAR files are parsed once per SHA-256, the most recently used are kept.
+ * Each stored class file is instrumented at most once.</p>
+ * <p>Class files are only held weakly by the store. They are kept while a class loader they
+ * were read from is alive or their JAR file is among the most recently used, the instrumented
+ * copy is dropped together with its class file.</p>
+ * <p>This class is thread-safe.</p>
+ */
+final class ClassBytesCache {
+    /** the cache used by <code>IsolatingClassLoader</code> */
+    static final ClassBytesCache SHARED = new ClassBytesCache();
+
+    // marks classes without a class file resource
+    private static final byte[] MISSING = new byte[0];
+    // number of parsed JAR files kept
+    private static final int MAX_JARS = 64;
+
+    // SHA-256 (hex) -> class file bytes
+    final ConcurrentHashMap<String, ContentReference> contents
+            = new ConcurrentHashMap<String, ContentReference>();
+    // cleared references of contents
+    private final ReferenceQueue<byte[]> clearedContents = new ReferenceQueue<byte[]>();
+    // source class loader -> class name -> class file bytes
+    private final Map<ClassLoader, ConcurrentHashMap<String, byte[]>> sources
+            = new WeakHashMap<ClassLoader, ConcurrentHashMap<String, byte[]>>();
+    // stored class file -> class file with barriers
+    private final Map<byte[], byte[]> instrumented = Collections.synchronizedMap(new WeakHashMap<byte[], byte[]>());
+    // SHA-256 (hex) of a JAR -> entry name -> entry bytes, least recently used first
+    private final Map<String, Map<String, byte[]>> jars = new LinkedHashMap<String, Map<String, byte[]>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, byte[]>> eldest) {
+            return size() > MAX_JARS;
+        }
+    };
+
+    /**
+     * Return the class file of <code>className</code> as provided by <code>source</code>
+     * @param source class loader providing the class file resource
+     * @param className binary class name
+     * @return class file bytes, must not be modified, or null if <code>source</code> has no such class file
+     */
+    byte[] getClassBytes(ClassLoader source, String className) {
+        ConcurrentHashMap<String, byte[]> classes = classesOf(source);
+        byte[] bytes = classes.get(className);
+        if (bytes == null) {
+            bytes = readClassFile(source, className);
+            bytes = bytes == null ? MISSING : intern(bytes);
+            classes.put(className, bytes);
+        }
+        return bytes == MISSING ? null : bytes;
+    }
+
+    /**
+     * Return the entries of a JAR file. Identical JAR files are parsed only once.
+     * @param digest SHA-256 of <code>jarContents</code> as returned by <code>sha256</code>
+     * @param jarContents JAR file
+     * @return unmodifiable map from entry name (e.g. <code>com/example/Applet.class</code>) to entry bytes
+     * @throws IOException if <code>jarContents</code> is not a valid JAR file
+     */
+    Map<String, byte[]> getJarEntries(String digest, byte[] jarContents) throws IOException {
+        synchronized (jars) {
+            Map<String, byte[]> entries = jars.get(digest);
+            if (entries != null) {
+                return entries;
+            }
+        }
+        Map<String, byte[]> entries = Collections.unmodifiableMap(readJar(jarContents));
+        synchronized (jars) {
+            jars.put(digest, entries);
+        }
+        return entries;
+    }
+
+    private Map<String, byte[]> readJar(byte[] jarContents) throws IOException {
+        HashMap<String, byte[]> entries = new HashMap<String, byte[]>();
+        JarInputStream jis = new JarInputStream(new ByteArrayInputStream(jarContents));
+        try {
+            ZipEntry entry;
+            while ((entry = jis.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                byte[] bytes = readFully(jis);
+                entries.put(entry.getName(), entry.getName().endsWith(".class") ? intern(bytes) : bytes);
+            }
+        } finally {
+            jis.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Return <code>classBytes</code> with the barriers of <code>TransactionBarrier</code>
+     * and <code>AllocationBarrier</code>
+     * @param classBytes class file bytes returned by this cache
+     * @return instrumented class file bytes, must not be modified
+     * @see AppletClassInstrumenter
+     */
+    byte[] getInstrumentedClassBytes(byte[] classBytes) {
+        byte[] bytes = instrumented.get(classBytes);
+        if (bytes == null) {
+            bytes = AppletClassInstrumenter.instrument(classBytes);
+            instrumented.put(classBytes, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Return the stored array with the same contents as <code>bytes</code>
+     * @param bytes class file bytes
+     * @return <code>bytes</code> or an equal array stored before
+     */
+    byte[] intern(byte[] bytes) {
+        expungeClearedContents();
+        String key = sha256(bytes);
+        ContentReference ref = new ContentReference(key, bytes, clearedContents);
+        while (true) {
+            ContentReference existingRef = contents.putIfAbsent(key, ref);
+            if (existingRef == null) {
+                return bytes;
+            }
+            byte[] existing = existingRef.get();
+            if (existing != null) {
+                return existing;
+            }
+            contents.remove(key, existingRef);
+        }
+    }
+
+    /**
+     * @return number of distinct class files stored
+     */
+    int size() {
+        expungeClearedContents();
+        return contents.size();
+    }
+
+    private void expungeClearedContents() {
+        ContentReference ref;
+        while ((ref = (ContentReference) clearedContents.poll()) != null) {
+            contents.remove(ref.key, ref);
+        }
+    }
+
+    private ConcurrentHashMap<String, byte[]> classesOf(ClassLoader source) {
+        synchronized (sources) {
+            ConcurrentHashMap<String, byte[]> classes = sources.get(source);
+            if (classes == null) {
+                classes = new ConcurrentHashMap<String, byte[]>();
+                sources.put(source, classes);
+            }
+            return classes;
+        }
+    }
+
+    private static byte[] readClassFile(ClassLoader source, String className) {
+        InputStream is = source.getResourceAsStream(className.replace('.', '/') + ".class");
+        if (is == null) {
+            return null;
+        }
+        try {
+            try {
+                return readFully(is);
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, len);
+        }
+        return bos.toByteArray();
+    }
+
+    static String sha256(byte[] bytes) {
+        try {
+            return ByteUtil.hexString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+
+    static final class ContentReference extends WeakReference<byte[]> {
+        final String key;
+
+        ContentReference(String key, byte[] bytes, ReferenceQueue<byte[]> queue) {
+            super(bytes, queue);
+            this.key = key;
+        }
+    }
+}
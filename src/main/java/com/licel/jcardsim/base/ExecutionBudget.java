@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import javacard.framework.ISO7816;
+
+import java.util.Properties;
+
+/**
+ * <p>Limits the execution of an applet per command.</p>
+ * <p>A command is aborted when the applet exceeds the instruction budget or the time budget
+ * while processing it. The card then answers with the status word of the budget and
+ * is ready for the next command. Instructions are counted at the backward branches of
+ * loops, so a budget of <code>n</code> allows <code>n</code> loop iterations per command.</p>
+ * <p>Budgets are enforced cooperatively by code added to the applet classes when they are
+ * loaded, see <code>Watchdog</code>. Only applets loaded from class files by jCardSim, from an
+ * applet JAR file or through an <code>IsolatingClassLoader</code>, are instrumented. A limited budget
+ * can not be combined with other applet classes, the runtime throws <code>IllegalStateException</code>.
+ * The budget of a command also covers the <code>deselect</code> of the previous applet on SELECT,
+ * an install method has a budget of its own.</p>
+ * <p>Example: abort commands after one million loop iterations or two seconds with 0x6F01</p>
+ * <pre>
+ * runtime.setExecutionBudget(new ExecutionBudget(1000000, 2000, (short) 0x6F01));
+ * </pre>
+ * <p>The budget can also be configured with the system properties
+ * <code>com.licel.jcardsim.card.budget.instructions</code>,
+ * <code>com.licel.jcardsim.card.budget.time</code> (milliseconds) and
+ * <code>com.licel.jcardsim.card.budget.sw</code> (hexadecimal status word).</p>
+ * @see SimulatorRuntime#setExecutionBudget(ExecutionBudget)
+ */
+public final class ExecutionBudget {
+    /** value of an unlimited budget */
+    public static final long UNLIMITED_VALUE = 0;
+    /** budget without limits, the default */
+    public static final ExecutionBudget UNLIMITED
+            = new ExecutionBudget(UNLIMITED_VALUE, UNLIMITED_VALUE, ISO7816.SW_UNKNOWN);
+
+    static final String PROPERTY_PREFIX = "com.licel.jcardsim.card.budget.";
+    static final String INSTRUCTIONS_PROPERTY = PROPERTY_PREFIX + "instructions";
+    static final String TIME_PROPERTY = PROPERTY_PREFIX + "time";
+    static final String STATUS_WORD_PROPERTY = PROPERTY_PREFIX + "sw";
+
+    private final long instructions;
+    private final long timeMillis;
+    private final short statusWord;
+
+    /**
+     * Create an execution budget
+     * @param instructions backward branches per command, 0 for no limit
+     * @param timeMillis milliseconds per command, 0 for no limit
+     * @param statusWord status word of an aborted command
+     * @throws java.lang.IllegalArgumentException if a limit is negative
+     */
+    public ExecutionBudget(long instructions, long timeMillis, short statusWord) {
+        if (instructions < 0 || timeMillis < 0) {
+            throw new IllegalArgumentException("Budgets must not be negative");
+        }
+        this.instructions = instructions;
+        this.timeMillis = timeMillis;
+        this.statusWord = statusWord;
+    }
+
+    /**
+     * Read a budget from <code>properties</code>
+     * @param properties configuration
+     * @return the configured budget, or null if no limit is configured
+     * @throws java.lang.NumberFormatException if a value is not a number
+     * @throws java.lang.IllegalArgumentException if a limit is negative
+     */
+    public static ExecutionBudget fromProperties(Properties properties) {
+        String instructions = properties.getProperty(INSTRUCTIONS_PROPERTY);
+        String time = properties.getProperty(TIME_PROPERTY);
+        if (instructions == null && time == null) {
+            return null;
+        }
+        String statusWord = properties.getProperty(STATUS_WORD_PROPERTY);
+        return new ExecutionBudget(parseLimit(instructions), parseLimit(time),
+                statusWord == null ? ISO7816.SW_UNKNOWN : (short) Integer.parseInt(statusWord.trim(), 16));
+    }
+
+    private static long parseLimit(String value) {
+        return value == null ? UNLIMITED_VALUE : Long.parseLong(value.trim());
+    }
+
+    /**
+     * @return backward branches per command, 0 for no limit
+     */
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * @return milliseconds per command, 0 for no limit
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return status word of an aborted command
+     */
+    public short getStatusWord() {
+        return statusWord;
+    }
+
+    /**
+     * @return true if the budget limits instructions or time
+     */
+    public boolean isLimited() {
+        return instructions != UNLIMITED_VALUE || timeMillis != UNLIMITED_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExecutionBudget (instructions %d, time %d ms, sw %04X)",
+                instructions, timeMillis, statusWord & 0xFFFF);
+    }
+}
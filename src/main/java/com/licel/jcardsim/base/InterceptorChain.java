@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+/**
+ * <p>Copy-on-write list of <code>ApduInterceptor</code>s.</p>
+ * <p>Reading the interceptors costs one volatile read and allocates nothing,
+ * so an empty chain adds no cost to the processing of a command.</p>
+ */
+final class InterceptorChain {
+    private static final ApduInterceptor[] EMPTY = new ApduInterceptor[0];
+
+    private volatile ApduInterceptor[] interceptors = EMPTY;
+
+    /**
+     * Processes a command after the interceptors were called
+     */
+    interface Target {
+        /**
+         * @param command command APDU
+         * @param response empty response APDU receiving the response
+         */
+        void process(ApduView command, ApduView response);
+    }
+
+    /**
+     * @return current interceptors, must not be modified
+     */
+    ApduInterceptor[] get() {
+        return interceptors;
+    }
+
+    synchronized void add(ApduInterceptor interceptor) {
+        if (interceptor == null) {
+            throw new NullPointerException("interceptor");
+        }
+        ApduInterceptor[] current = interceptors;
+        ApduInterceptor[] updated = new ApduInterceptor[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = interceptor;
+        interceptors = updated;
+    }
+
+    synchronized boolean remove(ApduInterceptor interceptor) {
+        ApduInterceptor[] current = interceptors;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == interceptor) {
+                ApduInterceptor[] updated = current.length == 1 ? EMPTY : new ApduInterceptor[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                interceptors = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Call the interceptors around <code>target</code>
+     * @param interceptors interceptors returned by <code>get</code>
+     * @param command command APDU
+     * @param response empty response APDU
+     * @param target processes the command unless an interceptor answered it
+     * @throws java.lang.IllegalStateException if the response has no status word
+     */
+    static void process(ApduInterceptor[] interceptors, ApduView command, ApduView response, Target target) {
+        int called = 0;
+        boolean process = true;
+        while (process && called < interceptors.length) {
+            process = interceptors[called++].beforeCommand(command, response);
+        }
+        if (process) {
+            target.process(command, response);
+        }
+        for (int i = called - 1; i >= 0; i--) {
+            interceptors[i].afterCommand(command, response);
+        }
+        if (response.getLength() < 2) {
+            throw new IllegalStateException("Response has no status word");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Class loader giving applets loaded by name their own copy of their classes,
+ * so static fields are not shared between runtimes.</p>
+ * <p>Classes of the Java platform, the Java Card API and jCardSim (except the samples)
+ * are loaded by the parent. All other classes found in the parent are defined again
+ * by this loader (child-first). Class file bytes are read through a cache shared by all
+ * instances, so each class file is read from the parent only once.</p>
+ * <p>Classes defined by this loader get the write barriers of <code>TransactionBarrier</code>,
+ * so transactions can roll back their persistent writes, and the allocation barriers of
+ * <code>AllocationBarrier</code>, so their persistent memory is counted.</p>
+ * <p>Isolation is opt-in: a runtime uses it once it is passed to
+ * <code>SimulatorRuntime#setAppletClassLoader</code>. Runtimes that should share
+ * applet classes can be given the same instance.</p>
+ */
+public class IsolatingClassLoader extends ClassLoader {
+    private static final String[] SHARED_PREFIXES = {
+            "java.", "javax.", "sun.", "com.sun.", "jdk.",
+            "javacard.", "javacardx.", "com.licel.jcardsim.",
+            "org.bouncycastle.", "org.objectweb.asm.", "junit.", "org.junit."
+    };
+    private static final String SAMPLES_PREFIX = "com.licel.jcardsim.samples.";
+    // classes whose static initializer has started, see AllocationBarrier.classInitialized
+    private final List<Class<?>> initializedClasses = new ArrayList<Class<?>>();
+
+    /**
+     * Create a loader isolating the classes of <code>parent</code>
+     * @param parent parent class loader
+     */
+    public IsolatingClassLoader(ClassLoader parent) {
+        super(parent);
+    }
+
+    /**
+     * Decide if <code>className</code> is loaded by the parent
+     * @param className binary class name
+     * @return true if the class is shared with the parent
+     */
+    protected boolean isShared(String className) {
+        if (className.startsWith(SAMPLES_PREFIX)) {
+            return false;
+        }
+        for (String prefix : SHARED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> c = findLoadedClass(name);
+        if (c == null) {
+            byte[] bytes = isShared(name) ? null : ClassBytesCache.SHARED.getClassBytes(getParent(), name);
+            if (bytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            definePackageFor(name);
+            bytes = ClassBytesCache.SHARED.getInstrumentedClassBytes(bytes);
+            c = defineClass(name, bytes, 0, bytes.length);
+        }
+        if (resolve) {
+            resolveClass(c);
+        }
+        return c;
+    }
+
+    void classInitialized(Class<?> cls) {
+        synchronized (initializedClasses) {
+            initializedClasses.add(cls);
+        }
+    }
+
+    List<Class<?>> getInitializedClasses() {
+        synchronized (initializedClasses) {
+            return new ArrayList<Class<?>>(initializedClasses);
+        }
+    }
+
+    private void definePackageFor(String className) {
+        int index = className.lastIndexOf('.');
+        if (index > 0) {
+            String packageName = className.substring(0, index);
+            if (getPackage(packageName) == null) {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        }
+    }
+}
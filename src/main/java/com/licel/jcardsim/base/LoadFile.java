@@ -30,6 +30,8 @@ import java.util.List;
 public final class LoadFile {
     private final AID aid;
     private final List<Module> modules;
+    // LoadFile this one was resolved from, see resolve
+    private final LoadFile origin;
 
     /**
      * Create a LoadFile containing <code>1..*</code> modules (JavaCard applets)
@@ -51,6 +53,13 @@ public final class LoadFile {
 
         this.aid = loadFileAID;
         this.modules = Collections.unmodifiableList(Arrays.asList(modules));
+        this.origin = null;
+    }
+
+    private LoadFile(LoadFile origin, Module[] modules) {
+        this.aid = origin.aid;
+        this.modules = Collections.unmodifiableList(Arrays.asList(modules));
+        this.origin = origin;
     }
 
     /**
@@ -82,6 +91,36 @@ public final class LoadFile {
         return null;
     }
 
+    /**
+     * Return this LoadFile with the applet classes loaded by <code>classLoader</code>
+     * @param classLoader class loader
+     * @return <code>this</code> if <code>classLoader</code> loads the same classes, otherwise a copy
+     * @throws ClassNotFoundException if <code>classLoader</code> can not load an applet class
+     */
+    LoadFile resolve(ClassLoader classLoader) throws ClassNotFoundException {
+        Module[] resolved = new Module[modules.size()];
+        boolean changed = false;
+        for (int i = 0; i < resolved.length; i++) {
+            Module module = modules.get(i);
+            Class<?> appletClass = Class.forName(module.getAppletClass().getName(), false, classLoader);
+            if (appletClass == module.getAppletClass()) {
+                resolved[i] = module;
+            } else {
+                resolved[i] = new Module(module.getAid(), appletClass.asSubclass(Applet.class));
+                changed = true;
+            }
+        }
+        return changed ? new LoadFile(this, resolved) : this;
+    }
+
+    /**
+     * @param loadFile LoadFile
+     * @return true if this is <code>loadFile</code> or was resolved from it
+     */
+    boolean isResolvedFrom(LoadFile loadFile) {
+        return this == loadFile || origin == loadFile;
+    }
+
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
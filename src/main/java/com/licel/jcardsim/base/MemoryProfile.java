@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.Properties;
+
+/**
+ * <p>Memory sizes of a simulated card.</p>
+ * <p>Allocations beyond a size fail with <code>SystemException.NO_RESOURCE</code>.
+ * Sizes are counted in bytes as on a card: <code>boolean</code> and <code>byte</code> elements
+ * use 1 byte, <code>short</code> elements and references 2 bytes, <code>int</code> elements 4 bytes.
+ * Every persistent object or array uses <code>HEADER_SIZE</code> additional bytes.</p>
+ * <p>Example: an EEPROM of 80 KB with 2 KB of <code>CLEAR_ON_RESET</code> RAM</p>
+ * <pre>
+ * runtime.setMemoryProfile(new MemoryProfile(80 * 1024, 2 * 1024, 1024));
+ * </pre>
+ * <p>The profile can also be configured with the system properties
+ * <code>com.licel.jcardsim.card.memory.persistent</code>,
+ * <code>com.licel.jcardsim.card.memory.transientReset</code> and
+ * <code>com.licel.jcardsim.card.memory.transientDeselect</code>.
+ * Sizes that are not configured are unlimited.</p>
+ * @see SimulatorRuntime#setMemoryProfile(MemoryProfile)
+ */
+public final class MemoryProfile {
+    /** size of an unlimited memory type */
+    public static final int UNLIMITED_SIZE = Integer.MAX_VALUE;
+    /** profile without limits, the default */
+    public static final MemoryProfile UNLIMITED = new MemoryProfile(UNLIMITED_SIZE, UNLIMITED_SIZE, UNLIMITED_SIZE);
+    /** bytes used by the header of every persistent object and array */
+    public static final int HEADER_SIZE = 4;
+
+    static final String PROPERTY_PREFIX = "com.licel.jcardsim.card.memory.";
+    static final String PERSISTENT_PROPERTY = PROPERTY_PREFIX + "persistent";
+    static final String TRANSIENT_RESET_PROPERTY = PROPERTY_PREFIX + "transientReset";
+    static final String TRANSIENT_DESELECT_PROPERTY = PROPERTY_PREFIX + "transientDeselect";
+
+    private final int persistentSize;
+    private final int transientResetSize;
+    private final int transientDeselectSize;
+
+    /**
+     * Create a memory profile
+     * @param persistentSize persistent memory (EEPROM) in bytes
+     * @param transientResetSize RAM for <code>CLEAR_ON_RESET</code> arrays in bytes
+     * @param transientDeselectSize RAM for <code>CLEAR_ON_DESELECT</code> arrays in bytes
+     * @throws java.lang.IllegalArgumentException if a size is negative
+     */
+    public MemoryProfile(int persistentSize, int transientResetSize, int transientDeselectSize) {
+        if (persistentSize < 0 || transientResetSize < 0 || transientDeselectSize < 0) {
+            throw new IllegalArgumentException("Memory sizes must not be negative");
+        }
+        this.persistentSize = persistentSize;
+        this.transientResetSize = transientResetSize;
+        this.transientDeselectSize = transientDeselectSize;
+    }
+
+    /**
+     * Read a profile from <code>properties</code>
+     * @param properties configuration
+     * @return the configured profile, or null if no memory size is configured
+     * @throws java.lang.NumberFormatException if a size is not a number
+     * @throws java.lang.IllegalArgumentException if a size is negative
+     */
+    public static MemoryProfile fromProperties(Properties properties) {
+        String persistent = properties.getProperty(PERSISTENT_PROPERTY);
+        String transientReset = properties.getProperty(TRANSIENT_RESET_PROPERTY);
+        String transientDeselect = properties.getProperty(TRANSIENT_DESELECT_PROPERTY);
+        if (persistent == null && transientReset == null && transientDeselect == null) {
+            return null;
+        }
+        return new MemoryProfile(parseSize(persistent), parseSize(transientReset), parseSize(transientDeselect));
+    }
+
+    private static int parseSize(String value) {
+        return value == null ? UNLIMITED_SIZE : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * @return persistent memory in bytes
+     */
+    public int getPersistentSize() {
+        return persistentSize;
+    }
+
+    /**
+     * @return RAM for <code>CLEAR_ON_RESET</code> arrays in bytes
+     */
+    public int getTransientResetSize() {
+        return transientResetSize;
+    }
+
+    /**
+     * @return RAM for <code>CLEAR_ON_DESELECT</code> arrays in bytes
+     */
+    public int getTransientDeselectSize() {
+        return transientDeselectSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryProfile (persistent %d, transient reset %d, transient deselect %d)",
+                persistentSize, transientResetSize, transientDeselectSize);
+    }
+}
@@ -19,12 +19,16 @@ import com.licel.jcardsim.utils.AIDUtil;
 import javacard.framework.AID;
 import javacard.framework.Applet;
 
+import java.lang.reflect.Method;
+
 /**
  * Represents a module (JavaCard Applet class).
  */
 public final class Module {
     private final AID aid;
     private final Class<? extends Applet> appletClass;
+    // static install(byte[],short,byte) method, looked up on first use
+    private volatile Method installMethod;
 
     /**
      * Create a module
@@ -53,6 +57,25 @@ public final class Module {
         return appletClass;
     }
 
+    /**
+     * Return the static <code>install(byte[],short,byte)</code> method of the applet class.
+     * The method is looked up once per module.
+     * @return install method
+     * @throws java.lang.IllegalArgumentException if the class does not provide an install method
+     */
+    Method getInstallMethod() {
+        Method method = installMethod;
+        if (method == null) {
+            try {
+                method = appletClass.getMethod("install", byte[].class, short.class, byte.class);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Class does not provide install method");
+            }
+            installMethod = method;
+        }
+        return method;
+    }
+
     @Override
     public String toString() {
         return String.format("Module %s (%s)", AIDUtil.toString(aid), appletClass.getCanonicalName());
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Incremental reachability mark of one object deletion request.</p>
+ * <p>The roots are the applet instances, the transient arrays and the static fields
+ * of the initialized applet classes, see <code>AllocationBarrier.classInitialized</code>. Objects of instrumented applet classes and arrays are
+ * traversed, their sizes add up to the live persistent memory. Objects of other classes
+ * (e.g. keys created by jCardSim) are neither traversed nor counted, like their allocation.</p>
+ * <p><code>step</code> marks a bounded number of objects, so a large object graph is marked
+ * across several commands. Applets may write references between steps: every object written
+ * while the runtime is entered is scanned again (see <code>written</code>) and the roots are
+ * scanned again by the last step.</p>
+ * <p>This class is not thread-safe, it is guarded by the lock of the runtime.</p>
+ * @see SimulatorRuntime#requestObjectDeletion()
+ */
+final class ObjectMarker {
+    private final SimulatorRuntime runtime;
+    // objects marked so far
+    private final IdentityHashMap<Object, Boolean> marked = new IdentityHashMap<Object, Boolean>();
+    // objects to scan, may contain marked objects that have to be scanned again
+    private final ArrayList<Object> pending = new ArrayList<Object>();
+    // applet classes initialized or reached, their static fields are roots
+    private final LinkedHashSet<Class<?>> classes = new LinkedHashSet<Class<?>>();
+    // instance reference fields per class, including inherited fields
+    private final Map<Class<?>, Field[]> fieldsByClass = new HashMap<Class<?>, Field[]>();
+    // static reference fields declared by each class of classes
+    private final Map<Class<?>, Field[]> staticFieldsByClass = new HashMap<Class<?>, Field[]>();
+    // bytes of the persistent objects marked
+    private long liveMemory;
+
+    /**
+     * Start a mark
+     * @param runtime runtime whose objects are marked
+     */
+    ObjectMarker(SimulatorRuntime runtime) {
+        this.runtime = runtime;
+        addRoots();
+    }
+
+    /**
+     * @return bytes of the persistent objects marked so far
+     */
+    long getLiveMemory() {
+        return liveMemory;
+    }
+
+    /**
+     * Scan <code>target</code> again, a reference is written into it
+     * @param target object or array written, null for static fields
+     */
+    void written(Object target) {
+        if (target != null && marked.containsKey(target)) {
+            pending.add(target);
+        }
+    }
+
+    /**
+     * Mark at most <code>budget</code> objects
+     * @param budget number of objects to scan, 0 or less to finish the mark
+     * @return true if the mark is finished
+     */
+    boolean step(int budget) {
+        int scanned = 0;
+        while (!pending.isEmpty()) {
+            if (budget > 0 && scanned++ == budget) {
+                return false;
+            }
+            scan(pending.remove(pending.size() - 1));
+        }
+        // all objects are marked, scan the roots again for writes done since the mark started
+        addRoots();
+        while (!pending.isEmpty()) {
+            scan(pending.remove(pending.size() - 1));
+        }
+        return true;
+    }
+
+    private void addRoots() {
+        for (SimulatorRuntime.ApplicationInstance instance : runtime.appletIndex.values()) {
+            pending.add(instance.getApplet());
+        }
+        runtime.transientMemory.deselectIndex.copyTo(pending);
+        runtime.transientMemory.resetArrays.copyTo(pending);
+        Set<ClassLoader> loaders = new LinkedHashSet<ClassLoader>();
+        loaders.add(runtime.getAppletClassLoader());
+        for (SimulatorRuntime.ApplicationInstance instance : runtime.appletIndex.values()) {
+            loaders.add(instance.getApplet().getClass().getClassLoader());
+        }
+        for (ClassLoader loader : loaders) {
+            for (Class<?> cls : AppletClassInstrumenter.initializedClasses(loader)) {
+                addClass(cls);
+            }
+        }
+        try {
+            for (Class<?> cls : classes) {
+                for (Field field : staticFieldsByClass.get(cls)) {
+                    pending.add(field.get(null));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
+
+    private void scan(Object object) {
+        if (object == null) {
+            return;
+        }
+        Class<?> cls = object.getClass();
+        boolean first = marked.put(object, Boolean.TRUE) == null;
+        if (cls.isArray()) {
+            if (first && runtime.isPersistent(object)) {
+                liveMemory += MemoryProfile.HEADER_SIZE + TransientMemory.sizeOf(object);
+            }
+            if (object instanceof Object[]) {
+                for (Object element : (Object[]) object) {
+                    push(element);
+                }
+            }
+            return;
+        }
+        if (!AppletClassInstrumenter.isInstrumented(cls)) {
+            return;
+        }
+        if (first) {
+            liveMemory += runtime.instanceSize(cls);
+        }
+        try {
+            for (Field field : fieldsOf(cls)) {
+                push(field.get(object));
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
+
+    private void push(Object object) {
+        if (object != null && !marked.containsKey(object)) {
+            pending.add(object);
+        }
+    }
+
+    private Field[] fieldsOf(Class<?> cls) throws IllegalAccessException {
+        Field[] fields = fieldsByClass.get(cls);
+        if (fields != null) {
+            return fields;
+        }
+        ArrayList<Field> instanceFields = new ArrayList<Field>();
+        for (Class<?> c = cls; c != null && AppletClassInstrumenter.isInstrumented(c); c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!field.getType().isPrimitive() && !Modifier.isStatic(field.getModifiers())) {
+                    field.setAccessible(true);
+                    instanceFields.add(field);
+                }
+            }
+            if (!classes.contains(c)) {
+                for (Field field : addClass(c)) {
+                    push(field.get(null));
+                }
+            }
+        }
+        fields = instanceFields.toArray(new Field[instanceFields.size()]);
+        fieldsByClass.put(cls, fields);
+        return fields;
+    }
+
+    // the static reference fields of cls become roots
+    private Field[] addClass(Class<?> cls) {
+        Field[] fields = staticFieldsByClass.get(cls);
+        if (fields != null) {
+            return fields;
+        }
+        ArrayList<Field> staticFields = new ArrayList<Field>();
+        for (Field field : cls.getDeclaredFields()) {
+            if (!field.getType().isPrimitive() && Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                staticFields.add(field);
+            }
+        }
+        fields = staticFields.toArray(new Field[staticFields.size()]);
+        classes.add(cls);
+        staticFieldsByClass.put(cls, fields);
+        return fields;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time in submission order on a shared thread pool.
+ * Tasks of different <code>SerialExecutor</code>s run concurrently.
+ * A running task occupies a thread of the pool, long tasks delay the tasks of other
+ * <code>SerialExecutor</code>s once all threads are busy.
+ */
+final class SerialExecutor implements Executor {
+    // daemon threads shared by all simulators
+    private static final ExecutorService SHARED_POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger(0);
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jcardsim-async-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    private volatile Executor executor;
+    private Runnable active;
+
+    SerialExecutor() {
+        this(SHARED_POOL);
+    }
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Run the following tasks on <code>executor</code>, tasks already queued keep their order
+     * @param executor executor running the tasks
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public synchronized void execute(final Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        tasks.offer(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
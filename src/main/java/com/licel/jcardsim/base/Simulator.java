@@ -16,17 +16,35 @@
 package com.licel.jcardsim.base;
 
 import com.licel.jcardsim.io.JavaCardInterface;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import com.licel.jcardsim.utils.AIDUtil;
 import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.Consumer;
 import javacard.framework.*;
 import org.bouncycastle.util.encoders.Hex;
 
@@ -48,11 +66,15 @@ public class Simulator implements JavaCardInterface {
     // Applet ClassName system property template
     static final MessageFormat APPLET_CLASS_SP_TEMPLATE = new MessageFormat("{0}.Class");
     // Applet Class Loader
-    final AppletClassLoader cl = new AppletClassLoader(new URL[]{});
+    final AppletClassLoader cl;
     /** The simulator runtime */
     protected final SimulatorRuntime runtime;
     // current protocol
     private String protocol = "T=0";
+    // runs the commands of transmitAsync in order
+    private final SerialExecutor asyncExecutor = new SerialExecutor();
+    // runs the callbacks of transmitAsync in order, after their command released asyncExecutor
+    private final SerialExecutor callbackExecutor = new SerialExecutor();
 
     /**
      * Create a Simulator object using the default SimulatorRuntime.
@@ -87,12 +109,24 @@ public class Simulator implements JavaCardInterface {
         }
 
         this.runtime = runtime;
-        synchronized (this.runtime) {
+        this.cl = new AppletClassLoader(runtime.getAppletClassLoader());
+        this.runtime.enter();
+        try {
             this.runtime.resetRuntime();
+        } finally {
+            this.runtime.exit();
         }
 
         changeProtocol(protocol);
 
+        MemoryProfile memoryProfile = MemoryProfile.fromProperties(properties);
+        if (memoryProfile != null) {
+            runtime.setMemoryProfile(memoryProfile);
+        }
+        ExecutionBudget executionBudget = ExecutionBudget.fromProperties(properties);
+        if (executionBudget != null) {
+            runtime.setExecutionBudget(executionBudget);
+        }
         atr = Hex.decode(properties.getProperty(ATR_SYSTEM_PROPERTY, DEFAULT_ATR));
         // init pre-installed applets
         for (int i = 0; i < 10 && !properties.isEmpty(); i++) {
@@ -162,8 +196,11 @@ public class Simulator implements JavaCardInterface {
      * <code>javacard.framework.Applet</code>
      */
     public AID loadApplet(AID aid, Class<? extends Applet> appletClass) throws SystemException {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             runtime.loadApplet(aid, requireExtendsApplet(appletClass));
+        } finally {
+            runtime.exit();
         }
         return aid;
     }
@@ -171,8 +208,11 @@ public class Simulator implements JavaCardInterface {
     public AID createApplet(AID aid, byte bArray[], short bOffset,
             byte bLength) throws SystemException {
         try {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 runtime.installApplet(aid, bArray, bOffset, bLength);
+            } finally {
+                runtime.exit();
             }
         }
         catch (Exception e) {
@@ -214,25 +254,94 @@ public class Simulator implements JavaCardInterface {
      */
     public AID installApplet(AID aid, Class<? extends Applet> appletClass, byte bArray[], short bOffset,
             byte bLength) throws SystemException {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             loadApplet(aid, appletClass);
             return createApplet(aid, bArray, bOffset, bLength);
+        } finally {
+            runtime.exit();
         }
     }
 
     public AID installApplet(AID aid, String appletClassName, byte bArray[], short bOffset,
             byte bLength) throws SystemException {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             loadApplet(aid, appletClassName);
             return createApplet(aid, bArray, bOffset, bLength);
+        } finally {
+            runtime.exit();
         }
     }
 
     public AID installApplet(AID aid, String appletClassName, byte[] appletContents, byte bArray[], short bOffset,
             byte bLength) throws SystemException {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             loadApplet(aid, appletClassName, appletContents);
             return createApplet(aid, bArray, bOffset, bLength);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Install the same applet into many simulators.
+     * <code>M</code> instances of the module are installed into each of the
+     * <code>N</code> simulators. <code>loadFile</code> is shared by all runtimes,
+     * so the install method is looked up once instead of <code>M * N</code> times.
+     * Runtimes with an <code>IsolatingClassLoader</code> load the applet class again
+     * and look up its install method once per runtime.
+     *
+     * @param simulators simulators to install into
+     * @param loadFile LoadFile containing the applet class
+     * @param moduleAID AID of the module (applet class) in <code>loadFile</code>
+     * @param appletAIDs AIDs of the applet instances installed into every simulator
+     * @param bArray the array containing installation parameters
+     * @param bOffset the starting offset in bArray
+     * @param bLength the length in bytes of the parameter data in bArray
+     * @throws SystemException if an applet cannot be installed
+     */
+    public static void installApplets(Iterable<? extends Simulator> simulators, LoadFile loadFile, AID moduleAID,
+            AID[] appletAIDs, byte bArray[], short bOffset, byte bLength) throws SystemException {
+        if (simulators == null) {
+            throw new NullPointerException("simulators");
+        }
+        for (Simulator simulator : simulators) {
+            simulator.installApplets(loadFile, moduleAID, appletAIDs, bArray, bOffset, bLength);
+        }
+    }
+
+    /**
+     * Install several instances of an applet
+     *
+     * @param loadFile LoadFile containing the applet class
+     * @param moduleAID AID of the module (applet class) in <code>loadFile</code>
+     * @param appletAIDs AIDs of the applet instances
+     * @param bArray the array containing installation parameters
+     * @param bOffset the starting offset in bArray
+     * @param bLength the length in bytes of the parameter data in bArray
+     * @throws SystemException if an applet cannot be installed
+     * @see SimulatorRuntime#installApplets
+     */
+    public void installApplets(LoadFile loadFile, AID moduleAID, AID[] appletAIDs, byte bArray[], short bOffset,
+            byte bLength) throws SystemException {
+        if (loadFile == null) {
+            throw new NullPointerException("loadFile");
+        }
+        if (appletAIDs == null) {
+            throw new NullPointerException("appletAIDs");
+        }
+        try {
+            runtime.enter();
+            try {
+                runtime.installApplets(loadFile, moduleAID, appletAIDs, bArray, bOffset, bLength);
+            } finally {
+                runtime.exit();
+            }
+        }
+        catch (Exception e) {
+            SystemException.throwIt(SimulatorSystem.SW_APPLET_CREATION_FAILED);
         }
     }
 
@@ -241,8 +350,11 @@ public class Simulator implements JavaCardInterface {
      * @param aid applet aid
      */
     public void deleteApplet(AID aid) {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             runtime.deleteApplet(aid);
+        } finally {
+            runtime.exit();
         }
     }
 
@@ -252,26 +364,225 @@ public class Simulator implements JavaCardInterface {
     }
     
     public byte[] selectAppletWithResult(AID aid) throws SystemException {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             return runtime.transmitCommand(AIDUtil.select(aid));
+        } finally {
+            runtime.exit();
         }
     }
 
     public byte[] transmitCommand(byte[] command) {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             return runtime.transmitCommand(command);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Transmit a command without allocating memory
+     * @param command buffer containing the command apdu
+     * @param offset start of the command apdu in <code>command</code>
+     * @param length length of the command apdu
+     * @param response buffer receiving the response data followed by the status word
+     * @param responseOffset start of the response apdu in <code>response</code>
+     * @return length of the response apdu including the status word
+     * @see SimulatorRuntime#transmitCommand(byte[], int, int, byte[], int)
+     */
+    public int transmitCommand(byte[] command, int offset, int length, byte[] response, int responseOffset) {
+        runtime.enter();
+        try {
+            return runtime.transmitCommand(command, offset, length, response, responseOffset);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Transmit a sequence of commands while holding the runtime lock once
+     * @param commands command apdus
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return response apdus, one for each transmitted command
+     * @see SimulatorRuntime#transmitBatch(java.util.List, boolean)
+     */
+    public List<byte[]> transmitBatch(List<byte[]> commands, boolean stopOnError) {
+        runtime.enter();
+        try {
+            return runtime.transmitBatch(commands, stopOnError);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Transmit a sequence of commands while holding the runtime lock once
+     * @param commands command apdus
+     * @param responses receives the response apdu of each transmitted command
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return number of transmitted commands
+     * @see SimulatorRuntime#transmitBatch(java.util.Iterator, com.licel.jcardsim.utils.Consumer, boolean)
+     */
+    public int transmitBatch(Iterator<byte[]> commands, Consumer<byte[]> responses, boolean stopOnError) {
+        runtime.enter();
+        try {
+            return runtime.transmitBatch(commands, responses, stopOnError);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Transmit a command read from <code>command</code> and write the response to <code>response</code>
+     * @param command buffer containing the command apdu
+     * @param response buffer receiving the response apdu
+     * @return length of the response apdu including the status word
+     * @see SimulatorRuntime#transmitCommand(java.nio.ByteBuffer, java.nio.ByteBuffer)
+     */
+    public int transmitCommand(ByteBuffer command, ByteBuffer response) {
+        runtime.enter();
+        try {
+            return runtime.transmitCommand(command, response);
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Transmit a command on a background thread.
+     * <p>Asynchronous commands of one <code>Simulator</code> are processed one at a time
+     * in submission order, commands of different simulators run concurrently.</p>
+     * @param command command apdu
+     * @return future response apdu
+     * @throws java.lang.NullPointerException if <code>command</code> is null
+     * @see #transmitAsync(byte[], com.licel.jcardsim.utils.Consumer, com.licel.jcardsim.utils.Consumer)
+     */
+    public Future<byte[]> transmitAsync(byte[] command) {
+        return transmitAsync(command, null, null);
+    }
+
+    /**
+     * Transmit a command on a background thread and notify the caller on completion.
+     * <p>Asynchronous commands of one <code>Simulator</code> are processed one at a time
+     * in submission order, commands of different simulators run concurrently.
+     * The callbacks are invoked in submission order on a background thread once their command
+     * has finished, the next command does not wait for them.</p>
+     * @param command command apdu
+     * @param onResponse receives the response apdu, may be null
+     * @param onFailure receives the exception thrown while processing <code>command</code>, may be null
+     * @return future response apdu
+     * @throws java.lang.NullPointerException if <code>command</code> is null
+     * @see #setAsyncExecutor(java.util.concurrent.Executor)
+     */
+    public Future<byte[]> transmitAsync(final byte[] command, final Consumer<byte[]> onResponse,
+                                        final Consumer<Throwable> onFailure) {
+        if (command == null) {
+            throw new NullPointerException("command");
         }
+        final byte[] commandCopy = command.clone();
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return transmitCommand(commandCopy);
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (isCancelled() || (onResponse == null && onFailure == null)) {
+                    return;
+                }
+                callbackExecutor.execute(new Runnable() {
+                    public void run() {
+                        notifyCallbacks();
+                    }
+                });
+            }
+
+            private void notifyCallbacks() {
+                byte[] response;
+                try {
+                    response = get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    if (onFailure != null) {
+                        onFailure.accept(e.getCause());
+                    }
+                    return;
+                }
+                if (onResponse != null) {
+                    onResponse.accept(response);
+                }
+            }
+        };
+        asyncExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Set the threads running the commands and callbacks of <code>transmitAsync</code>.
+     * <p>By default all simulators share a pool of daemon threads, one per processor.
+     * A command occupies a thread of the pool while it is processed, so long commands
+     * delay the commands of other simulators once all threads are busy, and a callback
+     * waiting for a later command needs a second free thread. An unbounded or dedicated
+     * executor avoids both.</p>
+     * @param executor executor running the tasks of this simulator
+     * @throws java.lang.NullPointerException if <code>executor</code> is null
+     */
+    public void setAsyncExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        asyncExecutor.setExecutor(executor);
+        callbackExecutor.setExecutor(executor);
     }
 
     public void reset() {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             runtime.reset();
+        } finally {
+            runtime.exit();
         }
     }
 
     public final void resetRuntime() {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             runtime.resetRuntime();
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Capture the state of the simulated card
+     * @return snapshot for <code>restore(Snapshot)</code>
+     * @see SimulatorRuntime#snapshot()
+     */
+    public Snapshot snapshot() {
+        runtime.enter();
+        try {
+            return runtime.snapshot();
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    /**
+     * Return the simulated card to a previously captured state.
+     * This is much cheaper than <code>resetRuntime()</code> followed by
+     * installing and personalizing all applets again.
+     * @param snapshot snapshot taken from this simulator
+     * @see SimulatorRuntime#restore(Snapshot)
+     */
+    public void restore(Snapshot snapshot) {
+        runtime.enter();
+        try {
+            runtime.restore(snapshot);
+        } finally {
+            runtime.exit();
         }
     }
 
@@ -318,9 +629,12 @@ public class Simulator implements JavaCardInterface {
      * @see com.licel.jcardsim.io.JavaCardInterface#changeProtocol(String)
      */
     public void changeProtocol(String protocol) {
-        synchronized (runtime) {
+        runtime.enter();
+        try {
             runtime.changeProtocol(getProtocolByte(protocol));
             this.protocol = protocol;
+        } finally {
+            runtime.exit();
         }
     }
 
@@ -339,20 +653,129 @@ public class Simulator implements JavaCardInterface {
         return (Class<? extends Applet>) aClass;
     }
 
-    class AppletClassLoader extends URLClassLoader {
+    /**
+     * Loads classes from applet JAR files kept in memory.
+     * Classes are looked up by name in an index over all added JAR files,
+     * the first JAR file providing a name wins.
+     */
+    static final class AppletClassLoader extends ClassLoader {
+        // SHA-256 of the added JAR files
+        private final Set<String> jarDigests = new HashSet<String>();
+        // entry name -> entry bytes of all added JAR files
+        private final Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        // classes whose static initializer has started, see AllocationBarrier.classInitialized
+        private final List<Class<?>> initializedClasses = new ArrayList<Class<?>>();
+
+        AppletClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        synchronized void addAppletContents(byte[] appletJarContents) throws IOException {
+            String digest = ClassBytesCache.sha256(appletJarContents);
+            if (jarDigests.contains(digest)) {
+                return;
+            }
+            Map<String, byte[]> jarEntries = ClassBytesCache.SHARED.getJarEntries(digest, appletJarContents);
+            for (Map.Entry<String, byte[]> entry : jarEntries.entrySet()) {
+                if (!entries.containsKey(entry.getKey())) {
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            jarDigests.add(digest);
+        }
+
+        @Override
+        protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = entries.get(name.replace('.', '/') + ".class");
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            bytes = ClassBytesCache.SHARED.getInstrumentedClassBytes(bytes);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+
+        void classInitialized(Class<?> cls) {
+            synchronized (initializedClasses) {
+                initializedClasses.add(cls);
+            }
+        }
+
+        List<Class<?>> getInitializedClasses() {
+            synchronized (initializedClasses) {
+                return new ArrayList<Class<?>>(initializedClasses);
+            }
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            InputStream is = super.getResourceAsStream(name);
+            if (is == null) {
+                byte[] bytes;
+                synchronized (this) {
+                    bytes = entries.get(name);
+                }
+                if (bytes != null) {
+                    is = new ByteArrayInputStream(bytes);
+                }
+            }
+            return is;
+        }
+
+        /**
+         * Resources of the added JAR files, so <code>getResource</code> and
+         * <code>getResources</code> find them after the parent loader.
+         */
+        @Override
+        protected URL findResource(String name) {
+            final byte[] bytes;
+            synchronized (this) {
+                bytes = entries.get(name);
+            }
+            if (bytes == null) {
+                return null;
+            }
+            try {
+                return new URL("jcardsim", null, -1, "/" + name, new EntryURLStreamHandler(bytes));
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) {
+            URL url = findResource(name);
+            return Collections.enumeration(url == null ? Collections.<URL>emptyList() : Collections.singletonList(url));
+        }
+    }
+
+    /**
+     * Opens an entry of an uploaded JAR file that is only held in memory
+     */
+    private static final class EntryURLStreamHandler extends URLStreamHandler {
+        private final byte[] bytes;
 
-        AppletClassLoader(URL[] urls) {
-            super(urls, Simulator.class.getClassLoader());
+        EntryURLStreamHandler(byte[] bytes) {
+            this.bytes = bytes;
         }
 
-        void addAppletContents(byte[] appletJarContents) throws IOException {
-            File downloadedAppletJar = File.createTempFile("applet", "contents");
-            downloadedAppletJar.deleteOnExit();
-            FileOutputStream fos = new FileOutputStream(downloadedAppletJar);
-            fos.write(appletJarContents);
-            fos.close();
-            addURL(downloadedAppletJar.toURI().toURL());
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public int getContentLength() {
+                    return bytes.length;
+                }
 
+                @Override
+                public InputStream getInputStream() {
+                    return new ByteArrayInputStream(bytes);
+                }
+            };
         }
     }
 }
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.Supplier;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A pool of independent simulated cards that all start from the same template state.</p>
+ * <p>Every pooled <code>Simulator</code> owns its own <code>SimulatorRuntime</code>. The
+ * template callback installs and personalizes the applets of a prototype runtime once,
+ * every pooled runtime starts with copies of its applets and their objects
+ * (see <code>Snapshot</code>). Returning a simulator to the pool restores its
+ * snapshot instead of reinstalling the applets.</p>
+ * <p>The template is called for every pooled simulator instead if the prototype can not be
+ * copied or the runtimes use an <code>IsolatingClassLoader</code>, whose applet classes and
+ * static fields would be shared by the copies.</p>
+ * <p>Applet classes of the default class loader, and their static fields, are shared by all
+ * simulators and not restored by <code>checkin</code>. To isolate them pass a runtime factory
+ * that gives every runtime its own <code>IsolatingClassLoader</code>.</p>
+ * <p>Example:</p>
+ * <pre>
+ * SimulatorPool pool = new SimulatorPool(16, new Consumer&lt;Simulator&gt;() {
+ *     public void accept(Simulator simulator) {
+ *         simulator.installApplet(appletAID, MyApplet.class);
+ *         simulator.selectApplet(appletAID);
+ *     }
+ * });
+ *
+ * Simulator simulator = pool.checkout();
+ * try {
+ *     simulator.transmitCommand(command);
+ * } finally {
+ *     pool.checkin(simulator);
+ * }
+ * </pre>
+ * @see Snapshot
+ */
+public class SimulatorPool {
+    private static final Supplier<SimulatorRuntime> DEFAULT_RUNTIME_FACTORY = new Supplier<SimulatorRuntime>() {
+        public SimulatorRuntime get() {
+            return new SimulatorRuntime();
+        }
+    };
+
+    private final Supplier<? extends SimulatorRuntime> runtimeFactory;
+    private final Consumer<? super Simulator> template;
+    private final int size;
+    private final boolean workerAffinity;
+    private final AtomicInteger created = new AtomicInteger(0);
+    // guards idle
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition checkedIn = lock.newCondition();
+    // idle entries in the order they were returned
+    private final LinkedHashSet<Entry> idle = new LinkedHashSet<Entry>();
+    private final ConcurrentHashMap<Simulator, Entry> entries = new ConcurrentHashMap<Simulator, Entry>();
+    // entry last returned by the current thread, used for worker affinity
+    private final ThreadLocal<Entry> lastEntry = new ThreadLocal<Entry>();
+    // state of the prototype personalized by the template, never checked out, guarded by this
+    private Snapshot prototype;
+    private String prototypeProtocol;
+    // false if every simulator is personalized by the template, guarded by this
+    private boolean copyPrototype = true;
+
+    /**
+     * Create a pool and personalize all <code>size</code> simulators immediately.
+     * @param size maximum number of simulators
+     * @param template callback that installs and personalizes applets of a new simulator
+     * @throws java.lang.NullPointerException if <code>template</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>size</code> is less than 1
+     */
+    public SimulatorPool(int size, Consumer<? super Simulator> template) {
+        this(size, size, false, template);
+    }
+
+    /**
+     * Create a pool.
+     * @param size maximum number of simulators
+     * @param warmUp number of simulators personalized by this constructor,
+     *               the remaining ones are created on demand by <code>checkout()</code>
+     * @param workerAffinity if true a thread preferably gets back the simulator it returned last
+     * @param template callback that installs and personalizes applets of a new simulator
+     * @throws java.lang.NullPointerException if <code>template</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>size</code> is less than 1
+     * or <code>warmUp</code> is not in the range <code>0..size</code>
+     */
+    public SimulatorPool(int size, int warmUp, boolean workerAffinity, Consumer<? super Simulator> template) {
+        this(size, warmUp, workerAffinity, DEFAULT_RUNTIME_FACTORY, template);
+    }
+
+    /**
+     * Create a pool whose simulators use runtimes created by <code>runtimeFactory</code>.
+     * <p>Example of a pool isolating the static fields of the applets:</p>
+     * <pre>
+     * new SimulatorPool(16, 16, false, new Supplier&lt;SimulatorRuntime&gt;() {
+     *     public SimulatorRuntime get() {
+     *         SimulatorRuntime runtime = new SimulatorRuntime();
+     *         runtime.setAppletClassLoader(new IsolatingClassLoader(MyApplet.class.getClassLoader()));
+     *         return runtime;
+     *     }
+     * }, template);
+     * </pre>
+     * @param size maximum number of simulators
+     * @param warmUp number of simulators personalized by this constructor,
+     *               the remaining ones are created on demand by <code>checkout()</code>
+     * @param workerAffinity if true a thread preferably gets back the simulator it returned last
+     * @param runtimeFactory creates a new runtime for every simulator
+     * @param template callback that installs and personalizes applets of a new simulator
+     * @throws java.lang.NullPointerException if <code>runtimeFactory</code> or <code>template</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>size</code> is less than 1
+     * or <code>warmUp</code> is not in the range <code>0..size</code>
+     */
+    public SimulatorPool(int size, int warmUp, boolean workerAffinity,
+                         Supplier<? extends SimulatorRuntime> runtimeFactory, Consumer<? super Simulator> template) {
+        if (runtimeFactory == null) {
+            throw new NullPointerException("runtimeFactory");
+        }
+        if (template == null) {
+            throw new NullPointerException("template");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be positive but was " + size);
+        }
+        if (warmUp < 0 || warmUp > size) {
+            throw new IllegalArgumentException("warmUp must be between 0 and " + size + " but was " + warmUp);
+        }
+        this.runtimeFactory = runtimeFactory;
+        this.template = template;
+        this.size = size;
+        this.workerAffinity = workerAffinity;
+        for (int i = 0; i < warmUp; i++) {
+            release(createEntry());
+        }
+    }
+
+    /**
+     * Take a simulator from the pool, waiting until one is returned if all are in use.
+     * @return simulator in template state
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Simulator checkout() throws InterruptedException {
+        Entry entry = pollIdle();
+        if (entry == null) {
+            lock.lockInterruptibly();
+            try {
+                while ((entry = takeIdle()) == null) {
+                    checkedIn.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return lease(entry);
+    }
+
+    /**
+     * Take a simulator from the pool, waiting up to <code>timeout</code> if all are in use.
+     * @param timeout time to wait
+     * @param unit time unit of <code>timeout</code>
+     * @return simulator in template state or <code>null</code> if the timeout elapsed
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public Simulator checkout(long timeout, TimeUnit unit) throws InterruptedException {
+        Entry entry = pollIdle();
+        if (entry == null) {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while ((entry = takeIdle()) == null) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = checkedIn.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return lease(entry);
+    }
+
+    /**
+     * Return a simulator to the pool. The simulator is restored to the template state.
+     * If the restore fails the simulator is returned anyway and restored again by the next
+     * <code>checkout()</code>.
+     * @param simulator simulator obtained by <code>checkout()</code>
+     * @throws java.lang.IllegalArgumentException if <code>simulator</code> does not belong to this pool
+     * @throws java.lang.IllegalStateException if <code>simulator</code> is not checked out
+     */
+    public void checkin(Simulator simulator) {
+        Entry entry = simulator == null ? null : entries.get(simulator);
+        if (entry == null) {
+            throw new IllegalArgumentException("Simulator does not belong to this pool");
+        }
+        if (!entry.checkedOut.compareAndSet(true, false)) {
+            throw new IllegalStateException("Simulator is not checked out");
+        }
+        entry.restored = false;
+        try {
+            simulator.restore(entry.snapshot);
+            entry.restored = true;
+        } finally {
+            if (workerAffinity) {
+                lastEntry.set(entry);
+            }
+            release(entry);
+        }
+    }
+
+    /**
+     * @return maximum number of simulators
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of simulators personalized so far
+     */
+    public int getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return number of personalized simulators waiting for <code>checkout()</code>
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry pollIdle() {
+        lock.lock();
+        try {
+            Entry entry = takeIdle();
+            if (entry != null) {
+                return entry;
+            }
+        } finally {
+            lock.unlock();
+        }
+        while (true) {
+            int count = created.get();
+            if (count >= size) {
+                return null;
+            }
+            if (created.compareAndSet(count, count + 1)) {
+                try {
+                    return personalize();
+                } catch (RuntimeException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // lock must be held
+    private Entry takeIdle() {
+        if (workerAffinity) {
+            Entry preferred = lastEntry.get();
+            if (preferred != null && idle.remove(preferred)) {
+                return preferred;
+            }
+        }
+        Iterator<Entry> iterator = idle.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Entry entry = iterator.next();
+        iterator.remove();
+        return entry;
+    }
+
+    private void release(Entry entry) {
+        lock.lock();
+        try {
+            idle.add(entry);
+            checkedIn.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Entry createEntry() {
+        created.incrementAndGet();
+        return personalize();
+    }
+
+    private Entry personalize() {
+        Simulator simulator = copyPrototype();
+        if (simulator == null) {
+            simulator = new Simulator(newRuntime());
+            template.accept(simulator);
+        }
+        Entry entry = new Entry(simulator, simulator.snapshot());
+        entries.put(simulator, entry);
+        return entry;
+    }
+
+    /**
+     * @return new simulator holding copies of the applets of the prototype,
+     * null if simulators are personalized by the template
+     */
+    private synchronized Simulator copyPrototype() {
+        if (!copyPrototype) {
+            return null;
+        }
+        if (prototype == null) {
+            Simulator simulator = new Simulator(newRuntime());
+            template.accept(simulator);
+            if (simulator.runtime.getAppletClassLoader() instanceof IsolatingClassLoader) {
+                // copies would share the applet classes, the prototype becomes a pooled simulator
+                copyPrototype = false;
+                return simulator;
+            }
+            prototype = simulator.snapshot();
+            prototypeProtocol = simulator.getProtocol();
+        }
+        Simulator simulator = new Simulator(newRuntime());
+        simulator.changeProtocol(prototypeProtocol);
+        simulator.runtime.enter();
+        try {
+            simulator.runtime.copyFrom(prototype);
+        } catch (UnsupportedOperationException e) {
+            copyPrototype = false;
+            return null;
+        } finally {
+            simulator.runtime.exit();
+        }
+        return simulator;
+    }
+
+    private SimulatorRuntime newRuntime() {
+        SimulatorRuntime runtime = runtimeFactory.get();
+        if (runtime == null) {
+            throw new NullPointerException("runtime");
+        }
+        return runtime;
+    }
+
+    private Simulator lease(Entry entry) {
+        if (!entry.restored) {
+            try {
+                entry.simulator.restore(entry.snapshot);
+                entry.restored = true;
+            } catch (RuntimeException e) {
+                release(entry);
+                throw e;
+            }
+        }
+        entry.checkedOut.set(true);
+        return entry.simulator;
+    }
+
+    private static final class Entry {
+        final Simulator simulator;
+        final Snapshot snapshot;
+        final AtomicBoolean checkedOut = new AtomicBoolean(false);
+        // false if the last restore failed
+        volatile boolean restored = true;
+
+        Entry(Simulator simulator, Snapshot snapshot) {
+            this.simulator = simulator;
+            this.snapshot = snapshot;
+        }
+    }
+}
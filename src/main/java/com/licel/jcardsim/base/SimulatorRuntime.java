@@ -15,17 +15,23 @@
  */
 package com.licel.jcardsim.base;
 
+import com.licel.jcardsim.framework.InternalAPDU;
 import com.licel.jcardsim.utils.AIDUtil;
 import com.licel.jcardsim.utils.BiConsumer;
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
 import javacard.framework.*;
 import javacardx.apdu.ExtendedLength;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Base implementation of Java Card Runtime.
@@ -35,29 +41,68 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class SimulatorRuntime {
     // holds the Applet registration callback
     protected final ThreadLocal<BiConsumer<Applet,AID>> registrationCallback;
-    /** storage for installed applets */
-    protected final SortedMap<AID, ApplicationInstance> applets = new TreeMap<AID, ApplicationInstance>(AIDUtil.comparator());
+    /** index of installed applets */
+    final AIDIndex<ApplicationInstance> appletIndex = new AIDIndex<ApplicationInstance>();
+    /** storage for installed applets, a view of <code>appletIndex</code> */
+    protected final SortedMap<AID, ApplicationInstance> applets = appletIndex.asSortedMap();
     /** storage for load files */
     protected final SortedMap<AID, LoadFile> loadFiles = new TreeMap<AID, LoadFile>(AIDUtil.comparator());
     /** storage for automatically generated loadFile AIDs */
     protected final SortedMap<AID, AID> generatedLoadFileAIDs = new TreeMap<AID, AID>(AIDUtil.comparator());
-    /** method for resetting APDUs */
-    protected final Method apduPrivateResetMethod;
-    /** outbound response byte array buffer */
-    protected final byte[] responseBuffer = new byte[Short.MAX_VALUE + 2];
+    /** generated loadFile AID of each applet class, only valid while the loadFile is loaded */
+    private final Map<Class<?>, AID> generatedLoadFileByClass = new HashMap<Class<?>, AID>();
+    /** number used by the next generated loadFile AID */
+    private int nextGeneratedLoadFile;
+    /** registration callback used by <code>installApplet</code> */
+    private final Registration registration = new Registration();
+    /** INS of GET RESPONSE */
+    static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    /** size of the internal response buffer: response data and status word */
+    private static final int RESPONSE_BUFFER_SIZE = Short.MAX_VALUE + 2;
+    /** size of the internal command buffer: extended APDU with Lc and Le */
+    private static final int COMMAND_BUFFER_SIZE = Short.MAX_VALUE + 10;
+    /** creates <code>APDU$Internal</code> instances */
+    private static final Constructor<?> apduConstructor;
     /** transient memory */
     protected final TransientMemory transientMemory;
     /** regular APDU */
     protected final APDU shortAPDU;
-    /** extended APDU */
-    protected final APDU extendedAPDU;
+    /** extended APDU, created when an <code>ExtendedLength</code> applet receives an extended APDU */
+    protected APDU extendedAPDU;
+    /** runtime side handles of <code>shortAPDU</code> and <code>extendedAPDU</code> */
+    private final InternalAPDU shortAPDUInternal;
+    private InternalAPDU extendedAPDUInternal;
+
+    /** held by <code>SimulatorSystem</code> for the thread that used this runtime last */
+    final WeakReference<SimulatorRuntime> weakReference = new WeakReference<SimulatorRuntime>(this);
+
+    /** response buffer of the byte array and batch transmit methods, created on first use */
+    protected byte[] responseBuffer;
+    /** command buffer for commands not at offset 0 or in direct buffers, created on first use */
+    protected byte[] commandBuffer;
+    /** <code>responseBuffer</code> is used by the command in progress */
+    private boolean responseBufferLeased;
+    /** <code>commandBuffer</code> is used by the command in progress */
+    private boolean commandBufferLeased;
 
     /** current selected applet */
     protected AID currentAID;
     /** previous selected applet */
     protected AID previousAID;
+    /** applet selected on each logical channel, null if none */
+    protected final AID[] channelAIDs = new AID[LogicalChannelUtil.CHANNEL_COUNT];
+    /** open logical channels, the basic channel is always open */
+    protected final boolean[] openChannels = new boolean[LogicalChannelUtil.CHANNEL_COUNT];
+    /** logical channel of the current command */
+    protected byte currentChannel;
     /** outbound response byte array buffer size */
     protected short responseBufferSize = 0;
+    /** buffer receiving the response of the current command */
+    protected byte[] outputBuffer;
+    /** start of the response in <code>outputBuffer</code> */
+    protected int outputOffset = 0;
+    /** end of the usable range of <code>outputBuffer</code>, 0 if no command is processed */
+    protected int outputLimit = 0;
     /** if the applet is currently being selected */
     protected boolean selecting = false;
     /** if extended APDUs are used  */
@@ -66,8 +111,64 @@ public class SimulatorRuntime {
     protected byte currentProtocol = APDU.PROTOCOL_T0;
     /** current depth of transaction */
     protected byte transactionDepth = 0;
+    /** the current transaction journals writes, see <code>beginTransaction()</code> */
+    private boolean transactionJournaled;
+    /** undo log of the current transaction */
+    private final TransactionJournal journal = new TransactionJournal();
+    /** size of the commit buffer in bytes */
+    private short maxCommitCapacity = Short.MAX_VALUE;
+    /** memory sizes of the card */
+    private MemoryProfile memoryProfile = MemoryProfile.UNLIMITED;
+    /** bytes of persistent objects created by applets */
+    long persistentMemoryUsed;
+    /** the allocation barriers count for this runtime, see <code>enter()</code> */
+    private boolean allocationBarrierEnabled;
+    /** class -> bytes used by an instance */
+    private final Map<Class<?>, Integer> instanceSizes = new HashMap<Class<?>, Integer>();
+    /** reachability mark of the requested object deletion, null if none is pending */
+    private ObjectMarker objectMarker;
+    /** the write barriers report writes to <code>objectMarker</code>, see <code>enter()</code> */
+    private boolean markBarrierEnabled;
+    /** objects marked after each command while an object deletion is pending */
+    private int objectDeletionStepSize = 4096;
+    /** maximum response data per APDU, 0 if responses are not split */
+    private int responseChunkSize;
+    /** response data not yet fetched with GET RESPONSE */
+    private byte[] pendingResponse;
+    /** start of the data in <code>pendingResponse</code> */
+    private int pendingResponseOffset;
+    /** bytes left in <code>pendingResponse</code> */
+    private int pendingResponseLength;
+    /** logical channel of the command that produced <code>pendingResponse</code> */
+    private byte pendingResponseChannel;
+    /** interceptors of the commands of this runtime */
+    private final InterceptorChain interceptors = new InterceptorChain();
+    /** limits the execution of applets per command */
+    private ExecutionBudget executionBudget = ExecutionBudget.UNLIMITED;
+    /** backward branches of the current command, -1 if its budget is not limited */
+    private long backEdges = -1;
+    /** <code>System.nanoTime()</code> at which the current command exceeds its time budget */
+    private long budgetDeadline;
+    /** the current command exceeded its budget */
+    private boolean budgetExceeded;
     /** previousActiveObject */
     protected Object previousActiveObject;
+    /** guards the runtime, see <code>enter()</code> */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** loads applet classes by name */
+    private volatile ClassLoader appletClassLoader = SimulatorRuntime.class.getClassLoader();
+    /** Java Card runtime environment-owned exception instances, created on first use */
+    private final Map<Class<?>, Throwable> jcreOwnedExceptions = new HashMap<Class<?>, Throwable>();
+
+    static {
+        try {
+            apduConstructor = Class.forName(APDU.class.getName() + "$Internal", true, APDU.class.getClassLoader())
+                    .getDeclaredConstructor(boolean.class);
+            apduConstructor.setAccessible(true);
+        } catch (Exception e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
 
     public SimulatorRuntime() {
         this(new TransientMemory());
@@ -76,15 +177,10 @@ public class SimulatorRuntime {
     @SuppressWarnings("unchecked")
     public SimulatorRuntime(TransientMemory transientMemory) {
         this.transientMemory = transientMemory;
+        this.openChannels[0] = true;
         try {
-            Constructor<?> ctor = APDU.class.getDeclaredConstructors()[0];
-            ctor.setAccessible(true);
-
-            shortAPDU = (APDU) ctor.newInstance(false);
-            extendedAPDU = (APDU) ctor.newInstance(true);
-
-            apduPrivateResetMethod = APDU.class.getDeclaredMethod("internalReset", byte.class, ApduCase.class, byte[].class);
-            apduPrivateResetMethod.setAccessible(true);
+            shortAPDUInternal = (InternalAPDU) apduConstructor.newInstance(false);
+            shortAPDU = shortAPDUInternal.getAPDU();
 
             Field f = Applet.class.getDeclaredField("registrationCallback");
             f.setAccessible(true);
@@ -101,6 +197,112 @@ public class SimulatorRuntime {
         SimulatorSystem.setCurrentInstance(this);
     }
 
+    /**
+     * Acquire exclusive access to this runtime and make it the active runtime
+     * of the calling thread.
+     * <p>Every call must be followed by a call of <code>exit()</code> in a
+     * <code>finally</code> block. Calls may be nested, <code>exit()</code> restores
+     * the runtime that was active before.</p>
+     * <p>While an object deletion is pending the write barriers of applet classes report
+     * writes only while the runtime is entered, so a mark does not slow down other runtimes.</p>
+     * <pre>
+     * runtime.enter();
+     * try {
+     *     runtime.transmitCommand(command);
+     * } finally {
+     *     runtime.exit();
+     * }
+     * </pre>
+     */
+    public final void enter() {
+        lock.lock();
+        SimulatorSystem.enterScope(this);
+        if (objectMarker != null) {
+            enableMarkBarrier();
+        }
+        updateAllocationBarrier();
+    }
+
+    /**
+     * Release the runtime acquired by <code>enter()</code>
+     * @throws java.lang.IllegalMonitorStateException if the current thread has not entered this runtime
+     */
+    public final void exit() {
+        if (!lock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException();
+        }
+        try {
+            if (lock.getHoldCount() == 1) {
+                disableMarkBarrier();
+                disableAllocationBarrier();
+            }
+            SimulatorSystem.exitScope();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Return the class loader used to load applet classes by name.
+     * Unless set with <code>setAppletClassLoader</code> this is the class loader
+     * of jCardSim, so applet classes and their static fields are shared with the caller.
+     * @return applet class loader
+     */
+    public ClassLoader getAppletClassLoader() {
+        return appletClassLoader;
+    }
+
+    /**
+     * Set the class loader used to load applet classes by name.
+     * <p>Pass an <code>IsolatingClassLoader</code> to give the applets of this runtime
+     * their own copy of their classes and static fields. Applet classes loaded this way
+     * get the transaction, allocation and execution budget barriers, but can not be cast
+     * to the classes seen by the caller. Pass the same <code>IsolatingClassLoader</code>
+     * to a group of runtimes to share applet classes between them.
+     * Must be called before a <code>Simulator</code> is created for this runtime.</p>
+     * @param appletClassLoader class loader
+     * @throws java.lang.NullPointerException if <code>appletClassLoader</code> is null
+     */
+    public void setAppletClassLoader(ClassLoader appletClassLoader) {
+        if (appletClassLoader == null) {
+            throw new NullPointerException("appletClassLoader");
+        }
+        this.appletClassLoader = appletClassLoader;
+    }
+
+    /**
+     * Return the instance of <code>exceptionClass</code> owned by this runtime.
+     * Instances are only reused while the current thread has entered this runtime,
+     * otherwise a new instance is created.
+     * @param exceptionClass a subclass of <code>CardException</code> or <code>CardRuntimeException</code>
+     * @param reason the reason for the exception
+     * @return exception with <code>reason</code>
+     * @see SimulatorSystem#getJCREOwnedException(Class, short)
+     */
+    Throwable getJCREOwnedException(Class<? extends Throwable> exceptionClass, short reason) {
+        if (!lock.isHeldByCurrentThread()) {
+            return newCardException(exceptionClass, reason);
+        }
+        Throwable exception = jcreOwnedExceptions.get(exceptionClass);
+        if (exception == null) {
+            exception = newCardException(exceptionClass, reason);
+            jcreOwnedExceptions.put(exceptionClass, exception);
+        } else if (exception instanceof CardRuntimeException) {
+            ((CardRuntimeException) exception).setReason(reason);
+        } else {
+            ((CardException) exception).setReason(reason);
+        }
+        return exception;
+    }
+
+    static Throwable newCardException(Class<? extends Throwable> exceptionClass, short reason) {
+        try {
+            return exceptionClass.getConstructor(Short.TYPE).newInstance(reason);
+        } catch (Exception e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
 
     /**
      * @return current applet context AID or null
@@ -117,13 +319,8 @@ public class SimulatorRuntime {
      * @return Applet AID or null
      */
     public AID lookupAID(byte buffer[], short offset, byte length) {
-        // no construct new AID, iterate applets
-        for (AID aid : applets.keySet()) {
-            if (aid.equals(buffer, offset, length)) {
-                return aid;
-            }
-        }
-        return null;
+        // no construct new AID, lookup registered instance
+        return appletIndex.lookup(buffer, offset, length);
     }
 
     /**
@@ -132,12 +329,7 @@ public class SimulatorRuntime {
      * @return ApplicationInstance or null
      */
     public ApplicationInstance lookupApplet(AID lookupAid) {
-        for (AID aid : applets.keySet()) {
-            if (aid.equals(lookupAid)) {
-                return applets.get(aid);
-            }
-        }
-        return null;
+        return appletIndex.get(lookupAid);
     }
 
     /**
@@ -167,16 +359,33 @@ public class SimulatorRuntime {
      * @param appletClass Applet class
      */
     public void loadApplet(AID aid, Class<? extends Applet> appletClass) {
+        if (executionBudget.isLimited()) {
+            requireInstrumented(appletClass);
+        }
         if (generatedLoadFileAIDs.keySet().contains(aid)) {
             throw new SystemException(SystemException.ILLEGAL_AID);
         }
-        // generate a load file AID
+        // applets of the same class share a load file and its module
+        AID loadedAID = generatedLoadFileByClass.get(appletClass);
+        if (loadedAID != null) {
+            LoadFile loadFile = loadFiles.get(loadedAID);
+            Module module = loadFile == null ? null : loadFile.getModule(loadedAID);
+            if (module != null && module.getAppletClass() == appletClass) {
+                generatedLoadFileAIDs.put(aid, loadedAID);
+                return;
+            }
+        }
+        // generate a load file AID, skipping AIDs restored from a snapshot
         byte[] generated = new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0, 0};
-        Util.setShort(generated, (short) 3, (short) generatedLoadFileAIDs.size());
-        AID generatedAID = AIDUtil.create(generated);
+        AID generatedAID;
+        do {
+            Util.setShort(generated, (short) 3, (short) nextGeneratedLoadFile++);
+            generatedAID = AIDUtil.create(generated);
+        } while (loadFiles.containsKey(generatedAID));
 
-        generatedLoadFileAIDs.put(aid, generatedAID);
         loadLoadFile(new LoadFile(generatedAID, generatedAID, appletClass));
+        generatedLoadFileAIDs.put(aid, generatedAID);
+        generatedLoadFileByClass.put(appletClass, generatedAID);
     }
 
     /**
@@ -185,7 +394,7 @@ public class SimulatorRuntime {
      */
     public void loadLoadFile(LoadFile loadFile) {
         AID key = loadFile.getAid();
-        if (loadFiles.keySet().contains(key) || applets.keySet().contains(key)) {
+        if (loadFiles.keySet().contains(key) || appletIndex.containsKey(key)) {
             throw new IllegalStateException("LoadFile AID already used");
         }
         loadFiles.put(key, loadFile);
@@ -202,23 +411,31 @@ public class SimulatorRuntime {
             throw new SystemException(SystemException.ILLEGAL_AID);
         }
 
-        applets.remove(aid);
+        appletIndex.remove(aid);
         Applet applet = applicationInstance.getApplet();
         if (applet == null) {
             return;
         }
 
-        if (getApplet(currentAID) == applet) {
-            deselect(applicationInstance);
+        for (byte channel = 0; channel < channelAIDs.length; channel++) {
+            if (aid.equals(channelAIDs[channel])) {
+                deselect(applicationInstance, channel);
+                channelAIDs[channel] = null;
+            }
         }
+        currentAID = channelAIDs[currentChannel];
 
         if (applet instanceof AppletEvent) {
+            Object previousContext = transientMemory.setContext(applicationInstance.getContext());
             try {
                 ((AppletEvent) applet).uninstall();
             }
             catch (Exception e) {
                 // ignore all
             }
+            finally {
+                transientMemory.setContext(previousContext);
+            }
         }
     }
 
@@ -237,33 +454,377 @@ public class SimulatorRuntime {
      * @return response apdu
      */
     public byte[] transmitCommand(byte[] command) throws SystemException {
+        if (command == null) {
+            throw new NullPointerException("command");
+        }
+        byte[] buffer = leaseResponseBuffer();
+        try {
+            int length = transmitCommand(command, 0, command.length, buffer, 0);
+            byte[] response = new byte[length];
+            System.arraycopy(buffer, 0, response, 0, length);
+            return response;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Transmit APDU to previous selected applet without allocating memory.
+     * <p>Response data sent by the applet is written directly into <code>response</code>,
+     * followed by the status word.</p>
+     * @param command buffer containing the command apdu
+     * @param offset start of the command apdu in <code>command</code>
+     * @param length length of the command apdu
+     * @param response buffer receiving the response apdu
+     * @param responseOffset start of the response apdu in <code>response</code>
+     * @return length of the response apdu including the status word
+     * @throws java.lang.NullPointerException if <code>command</code> or <code>response</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>offset</code> or <code>length</code> are invalid
+     * or if <code>response</code> has no room for the status word
+     */
+    public int transmitCommand(byte[] command, int offset, int length, byte[] response, int responseOffset)
+            throws SystemException {
+        if (command == null) {
+            throw new NullPointerException("command");
+        }
+        if (response == null) {
+            throw new NullPointerException("response");
+        }
         activateSimulatorRuntimeInstance();
+        return processCommand(command, offset, length, response, responseOffset, response.length);
+    }
 
-        final ApduCase apduCase = ApduCase.getCase(command);
-        final byte[] theSW = new byte[2];
-        byte[] response;
+    /**
+     * Transmit a sequence of APDUs. The runtime is activated once for the whole batch.
+     * @param commands command apdus
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return response apdus, one for each transmitted command
+     * @throws java.lang.NullPointerException if <code>commands</code> or one of its elements is null
+     */
+    public List<byte[]> transmitBatch(List<byte[]> commands, boolean stopOnError) throws SystemException {
+        if (commands == null) {
+            throw new NullPointerException("commands");
+        }
+        final ArrayList<byte[]> responses = new ArrayList<byte[]>(commands.size());
+        activateSimulatorRuntimeInstance();
+        for (byte[] command : commands) {
+            byte[] response = processBatchCommand(command);
+            responses.add(response);
+            if (stopOnError && !isSuccess(response)) {
+                break;
+            }
+        }
+        return responses;
+    }
 
-        Applet applet = getApplet(getAID());
+    /**
+     * Transmit a sequence of APDUs, passing each response to <code>responses</code>
+     * before the next command is taken from <code>commands</code>.
+     * @param commands command apdus
+     * @param responses receives the response apdu of each transmitted command
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return number of transmitted commands
+     * @throws java.lang.NullPointerException if an argument or a command is null
+     */
+    public int transmitBatch(Iterator<byte[]> commands, Consumer<byte[]> responses, boolean stopOnError)
+            throws SystemException {
+        if (commands == null) {
+            throw new NullPointerException("commands");
+        }
+        if (responses == null) {
+            throw new NullPointerException("responses");
+        }
+        int count = 0;
+        while (commands.hasNext()) {
+            byte[] command = commands.next();
+            // the callbacks may have used another runtime on this thread
+            activateSimulatorRuntimeInstance();
+            byte[] response = processBatchCommand(command);
+            count++;
+            responses.accept(response);
+            if (stopOnError && !isSuccess(response)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private byte[] processBatchCommand(byte[] command) {
+        if (command == null) {
+            throw new NullPointerException("command");
+        }
+        byte[] buffer = leaseResponseBuffer();
+        try {
+            int length = processCommand(command, 0, command.length, buffer, 0, buffer.length);
+            byte[] response = new byte[length];
+            System.arraycopy(buffer, 0, response, 0, length);
+            return response;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Take <code>responseBuffer</code> or allocate a buffer if it is in use by a nested command
+     * @return buffer, must be passed to <code>releaseBuffer</code>
+     */
+    private byte[] leaseResponseBuffer() {
+        if (responseBufferLeased) {
+            return new byte[RESPONSE_BUFFER_SIZE];
+        }
+        if (responseBuffer == null) {
+            responseBuffer = new byte[RESPONSE_BUFFER_SIZE];
+        }
+        responseBufferLeased = true;
+        return responseBuffer;
+    }
+
+    /**
+     * Take <code>commandBuffer</code> or allocate a buffer if it is in use by a nested command
+     * @return buffer, must be passed to <code>releaseBuffer</code>
+     */
+    private byte[] leaseCommandBuffer() {
+        if (commandBufferLeased) {
+            return new byte[COMMAND_BUFFER_SIZE];
+        }
+        if (commandBuffer == null) {
+            commandBuffer = new byte[COMMAND_BUFFER_SIZE];
+        }
+        commandBufferLeased = true;
+        return commandBuffer;
+    }
+
+    /**
+     * Return a buffer obtained from <code>leaseResponseBuffer</code> or <code>leaseCommandBuffer</code>
+     * @param buffer leased buffer
+     */
+    private void releaseBuffer(byte[] buffer) {
+        if (buffer == responseBuffer) {
+            responseBufferLeased = false;
+        } else if (buffer == commandBuffer) {
+            commandBufferLeased = false;
+        }
+    }
+
+    private static boolean isSuccess(byte[] response) {
+        int length = response.length;
+        return response[length - 2] == (byte) 0x90 && response[length - 1] == 0x00;
+    }
+
+    /**
+     * Transmit APDU to previous selected applet.
+     * <p>The command is read from <code>command.position()</code> up to <code>command.limit()</code>,
+     * afterwards the position of <code>command</code> equals its limit. The response apdu is
+     * written at <code>response.position()</code> and the position is advanced.</p>
+     * <p>Heap buffers are used directly, direct buffers are copied once into internal buffers.</p>
+     * <p>As with <code>javax.smartcardio.CardChannel</code>, <code>response</code> must have room
+     * for the largest response the command allows: at least 258 bytes, or Ne plus the status word
+     * for an extended command. The command is not sent otherwise.</p>
+     * @param command buffer containing the command apdu
+     * @param response buffer receiving the response apdu
+     * @return length of the response apdu including the status word
+     * @throws java.lang.NullPointerException if <code>command</code> or <code>response</code> is null
+     * @throws java.lang.IllegalArgumentException if the command is malformed
+     * or if <code>response</code> may not have sufficient space for the response
+     * @throws java.nio.ReadOnlyBufferException if <code>response</code> is read-only
+     */
+    public int transmitCommand(ByteBuffer command, ByteBuffer response) throws SystemException {
+        if (command == null) {
+            throw new NullPointerException("command");
+        }
+        if (response == null) {
+            throw new NullPointerException("response");
+        }
+        if (response.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        final int length = command.remaining();
+        if (!command.hasArray() && length > COMMAND_BUFFER_SIZE) {
+            throw new IllegalArgumentException("command: APDU too long");
+        }
+
+        activateSimulatorRuntimeInstance();
+        byte[] commandCopy = null;
+        byte[] responseCopy = null;
+        try {
+            final byte[] commandArray;
+            final int commandOffset;
+            if (command.hasArray()) {
+                commandArray = command.array();
+                commandOffset = command.arrayOffset() + command.position();
+            } else {
+                commandCopy = leaseCommandBuffer();
+                int position = command.position();
+                command.get(commandCopy, 0, length);
+                command.position(position);
+                commandArray = commandCopy;
+                commandOffset = 0;
+            }
+            if (response.remaining() < getMaxResponseLength(commandArray, commandOffset, length)) {
+                throw new IllegalArgumentException("response: insufficient space");
+            }
+
+            final int responseLength;
+            if (response.hasArray()) {
+                int responseOffset = response.arrayOffset() + response.position();
+                responseLength = processCommand(commandArray, commandOffset, length,
+                        response.array(), responseOffset, response.arrayOffset() + response.limit());
+                response.position(response.position() + responseLength);
+            } else {
+                responseCopy = leaseResponseBuffer();
+                int responseLimit = Math.min(responseCopy.length, response.remaining());
+                responseLength = processCommand(commandArray, commandOffset, length, responseCopy, 0, responseLimit);
+                response.put(responseCopy, 0, responseLength);
+            }
+            command.position(command.limit());
+            return responseLength;
+        } finally {
+            if (commandCopy != null) {
+                releaseBuffer(commandCopy);
+            }
+            if (responseCopy != null) {
+                releaseBuffer(responseCopy);
+            }
+        }
+    }
+
+    /**
+     * Return the length of the largest response allowed by a command
+     * @throws java.lang.IllegalArgumentException if the command is malformed
+     */
+    static int getMaxResponseLength(byte[] command, int offset, int length) {
+        final int end = offset + length;
+        final int ne;
+        switch (ApduCase.getCase(command, offset, length)) {
+            case Case2Extended:
+            case Case4Extended: {
+                int le = ((command[end - 2] & 0xFF) << 8) | (command[end - 1] & 0xFF);
+                ne = le == 0 ? 65536 : le;
+                break;
+            }
+            default:
+                ne = 0;
+                break;
+        }
+        // short commands may get 256 bytes, extended ones at most what the response buffer holds
+        return Math.max(258, Math.min(ne + 2, RESPONSE_BUFFER_SIZE));
+    }
+
+    // the caller must activate this runtime
+    private int processCommand(byte[] command, int offset, int length, byte[] response, int responseOffset,
+                               int responseLimit) {
+        if (offset < 0 || length < 0 || offset + length > command.length) {
+            throw new IllegalArgumentException("command: invalid offset or length");
+        }
+        if (responseOffset < 0 || responseOffset + 2 > responseLimit) {
+            throw new IllegalArgumentException("response: no room for status word");
+        }
+
+        final ApduInterceptor[] chain = interceptors.get();
+        if (chain.length != 0) {
+            return interceptCommand(chain, command, offset, length, response, responseOffset, responseLimit);
+        }
+        if (offset != 0) {
+            // the APDU code expects the command at offset 0
+            byte[] commandCopy = leaseCommandBuffer();
+            try {
+                System.arraycopy(command, offset, commandCopy, 0, length);
+                return executeCommand(commandCopy, length, response, responseOffset, responseLimit);
+            } finally {
+                releaseBuffer(commandCopy);
+            }
+        }
+        return executeCommand(command, length, response, responseOffset, responseLimit);
+    }
+
+    /**
+     * Process a command with the interceptors. The command is copied, so interceptors
+     * can change it without changing the buffer of the caller.
+     */
+    private int interceptCommand(ApduInterceptor[] chain, byte[] command, int offset, int length,
+                                 final byte[] response, final int responseOffset, final int responseLimit) {
+        byte[] commandCopy = leaseCommandBuffer();
+        try {
+            ApduView commandView = new ApduView(commandCopy, 0, 0, commandCopy.length, true);
+            commandView.setApdu(command, offset, length);
+            ApduView responseView = new ApduView(response, responseOffset, 0, responseLimit, false);
+            InterceptorChain.process(chain, commandView, responseView, new InterceptorChain.Target() {
+                public void process(ApduView command, ApduView response) {
+                    response.setLength(executeCommand(command.getBuffer(), command.getLength(),
+                            response.getBuffer(), responseOffset, responseLimit));
+                }
+            });
+            return responseView.getLength();
+        } finally {
+            releaseBuffer(commandCopy);
+        }
+    }
+
+    /**
+     * Process a command starting at offset 0 of <code>command</code>
+     */
+    private int executeCommand(byte[] command, int length, byte[] response, int responseOffset,
+                               int responseLimit) {
+        final ApduCase apduCase = ApduCase.getCase(command, 0, length);
+        byte channel = LogicalChannelUtil.getChannel(command[ISO7816.OFFSET_CLA]);
+        final boolean channelEncoded = openChannels[channel];
+        if (!channelEncoded) {
+            if (isAnyOtherChannelOpen((byte) 0)) {
+                pendingResponseLength = 0;
+                return writeStatusWord(response, responseOffset, ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+            }
+            // no logical channel is open: the CLA is passed to the applet of the basic
+            // channel unchanged, as applets using proprietary CLA values expect
+            channel = 0;
+        }
+        if (pendingResponseLength != 0) {
+            if (channel == pendingResponseChannel && isGetResponse(command, apduCase)) {
+                return sendPendingResponse(command, apduCase, response, responseOffset, responseLimit);
+            }
+            // any other command discards the remaining data
+            pendingResponseLength = 0;
+        }
+        // switching channels needs no selection, each channel keeps its applet
+        currentChannel = channel;
+        currentAID = channelAIDs[channel];
+        if (channelEncoded && LogicalChannelUtil.isManageChannel(command)) {
+            return manageChannel(command, response, responseOffset, responseLimit);
+        }
+
+        ApplicationInstance instance = currentAID == null ? null : lookupApplet(currentAID);
 
         selecting = false;
         // check if there is an applet to be selected
         if (!apduCase.isExtended() && isAppletSelectionApdu(command)) {
             AID newAid = findAppletForSelectApdu(command, apduCase);
             if (newAid != null) {
-                deselect(lookupApplet(getAID()));
-                currentAID = newAid;
-                applet = getApplet(getAID());
+                ApplicationInstance newInstance = lookupApplet(newAid);
+                if (!isSelectable(newInstance, channel)) {
+                    return writeStatusWord(response, responseOffset, ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+                }
+                // the budget covers deselect, select and process
+                startBudget();
+                deselect(instance, channel);
+                // reselecting the current applet keeps the APDU buffer and the lookup
+                if (instance == null || !newAid.equals(currentAID)) {
+                    // no data of the previous applet must remain in the APDU buffer
+                    clearAPDUBuffers();
+                    currentAID = newAid;
+                    instance = newInstance;
+                }
+                channelAIDs[channel] = currentAID;
                 selecting = true;
             }
-            else if (applet == null) {
-                Util.setShort(theSW, (short) 0, ISO7816.SW_APPLET_SELECT_FAILED);
-                return theSW;
+            else if (instance == null) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_APPLET_SELECT_FAILED);
             }
         }
 
+        Applet applet = instance == null ? null : instance.getApplet();
         if (applet == null) {
-            Util.setShort(theSW, (short) 0, ISO7816.SW_COMMAND_NOT_ALLOWED);
-            return theSW;
+            finishBudget();
+            return writeStatusWord(response, responseOffset, ISO7816.SW_COMMAND_NOT_ALLOWED);
         }
 
         if (apduCase.isExtended()) {
@@ -271,8 +832,7 @@ public class SimulatorRuntime {
                 usingExtendedAPDUs = true;
             }
             else {
-                Util.setShort(theSW, (short)0, ISO7816.SW_WRONG_LENGTH);
-                return theSW;
+                return writeStatusWord(response, responseOffset, ISO7816.SW_WRONG_LENGTH);
             }
         }
         else {
@@ -280,12 +840,20 @@ public class SimulatorRuntime {
         }
 
         responseBufferSize = 0;
+        outputBuffer = response;
+        outputOffset = responseOffset;
+        outputLimit = responseLimit;
+        short sw;
         APDU apdu = getCurrentAPDU();
+        Object previousContext = transientMemory.setContext(instance.getContext());
+        if (!selecting) {
+            startBudget();
+        }
         try {
             if (selecting) {
                 boolean success;
                 try {
-                    success = applet.select();
+                    success = select(instance, channel);
                 }
                 catch (Exception e) {
                     success = false;
@@ -296,72 +864,319 @@ public class SimulatorRuntime {
             }
 
             // set apdu
-            resetAPDU(apdu, apduCase, command);
+            resetAPDU(apdu, apduCase, command, length);
 
             applet.process(apdu);
-            Util.setShort(theSW, (short) 0, (short) 0x9000);
+            sw = ISO7816.SW_NO_ERROR;
         } catch (Throwable e) {
-            Util.setShort(theSW, (short) 0, ISO7816.SW_UNKNOWN);
+            sw = ISO7816.SW_UNKNOWN;
             if (e instanceof CardException) {
-                Util.setShort(theSW, (short) 0, ((CardException) e).getReason());
+                sw = ((CardException) e).getReason();
             } else if (e instanceof CardRuntimeException) {
-                Util.setShort(theSW, (short) 0, ((CardRuntimeException) e).getReason());
+                sw = ((CardRuntimeException) e).getReason();
             }
         }
         finally {
+            finishBudget();
+            // a transaction left open by the applet is aborted
+            endTransaction(true);
+            continueObjectDeletion(objectDeletionStepSize);
+            transientMemory.setContext(previousContext);
             selecting = false;
             resetAPDU(apdu, null, null);
+            outputBuffer = null;
+            outputOffset = 0;
+            outputLimit = 0;
+        }
+        if (budgetExceeded) {
+            // the applet may have caught the error, the command is aborted anyway
+            budgetExceeded = false;
+            responseBufferSize = 0;
+            sw = executionBudget.getStatusWord();
         }
 
-        // if theSW = 0x61XX or 0x9XYZ than return data (ISO7816-3)
-        if(theSW[0] == 0x61 || (theSW[0] >= (byte)0x90 && theSW[0] <= (byte)0x9F)) {
-            response = new byte[responseBufferSize + 2];
-            Util.arrayCopyNonAtomic(responseBuffer, (short) 0, response, (short) 0, responseBufferSize);
-            Util.arrayCopyNonAtomic(theSW, (short) 0, response, responseBufferSize, (short) 2);
+        // if sw = 0x61XX or 0x9XYZ than return data (ISO7816-3)
+        final byte sw1 = (byte) (sw >> 8);
+        if (sw1 == 0x61 || (sw1 >= (byte) 0x90 && sw1 <= (byte) 0x9F)) {
+            if (sw == ISO7816.SW_NO_ERROR && responseChunkSize != 0 && responseBufferSize > responseChunkSize) {
+                return splitResponse(response, responseOffset, responseBufferSize);
+            }
+            return responseBufferSize + writeStatusWord(response, responseOffset + responseBufferSize, sw);
         }
-        else {
-            response = theSW;
+        return writeStatusWord(response, responseOffset, sw);
+    }
+
+    /**
+     * Keep the response data beyond the first chunk for GET RESPONSE
+     * @return length of the first chunk and the status word 61XX
+     */
+    private int splitResponse(byte[] response, int responseOffset, int dataLength) {
+        int remaining = dataLength - responseChunkSize;
+        if (pendingResponse == null || pendingResponse.length < remaining) {
+            pendingResponse = new byte[Math.max(remaining, RESPONSE_BUFFER_SIZE / 4)];
+        }
+        System.arraycopy(response, responseOffset + responseChunkSize, pendingResponse, 0, remaining);
+        pendingResponseOffset = 0;
+        pendingResponseLength = remaining;
+        pendingResponseChannel = currentChannel;
+        return responseChunkSize + writeStatusWord(response, responseOffset + responseChunkSize,
+                bytesRemaining(remaining));
+    }
+
+    /**
+     * Answer GET RESPONSE with the next chunk of the pending response data
+     */
+    private int sendPendingResponse(byte[] command, ApduCase apduCase, byte[] response, int responseOffset,
+                                    int responseLimit) {
+        int le = apduCase == ApduCase.Case2 ? command[ISO7816.OFFSET_LC] & 0xFF : 0;
+        if (le == 0) {
+            le = 256;
         }
+        int length = Math.min(Math.min(le, responseChunkSize), pendingResponseLength);
+        length = Math.min(length, responseLimit - responseOffset - 2);
+        System.arraycopy(pendingResponse, pendingResponseOffset, response, responseOffset, length);
+        pendingResponseOffset += length;
+        pendingResponseLength -= length;
+        short sw = pendingResponseLength == 0 ? ISO7816.SW_NO_ERROR : bytesRemaining(pendingResponseLength);
+        return length + writeStatusWord(response, responseOffset + length, sw);
+    }
+
+    private static boolean isGetResponse(byte[] command, ApduCase apduCase) {
+        return (apduCase == ApduCase.Case1 || apduCase == ApduCase.Case2)
+                && (command[ISO7816.OFFSET_CLA] & 0x80) == 0
+                && command[ISO7816.OFFSET_INS] == INS_GET_RESPONSE
+                && command[ISO7816.OFFSET_P1] == 0 && command[ISO7816.OFFSET_P2] == 0;
+    }
+
+    // 61XX, XX = 00 for 256 bytes or more
+    private static short bytesRemaining(int length) {
+        return (short) (ISO7816.SW_BYTES_REMAINING_00 | (length >= 256 ? 0 : length));
+    }
 
-        return response;
+    private static int writeStatusWord(byte[] response, int offset, short sw) {
+        response[offset] = (byte) (sw >> 8);
+        response[offset + 1] = (byte) sw;
+        return 2;
     }
 
     protected AID findAppletForSelectApdu(byte[] selectApdu, ApduCase apduCase) {
         if (apduCase == ApduCase.Case1 || apduCase == ApduCase.Case2) {
             // on a regular Smartcard we would select the CardManager applet
             // in this case we just select the first applet
-            return applets.isEmpty() ? null : applets.firstKey();
+            return appletIndex.firstKey();
         }
 
-        for (AID aid : applets.keySet()) {
-            if (aid.equals(selectApdu, ISO7816.OFFSET_CDATA, selectApdu[ISO7816.OFFSET_LC])) {
-                return aid;
-            }
-        }
-
-        for (AID aid : applets.keySet()) {
-            if (aid.partialEquals(selectApdu, ISO7816.OFFSET_CDATA, selectApdu[ISO7816.OFFSET_LC])) {
-                return aid;
-            }
+        AID aid = appletIndex.lookup(selectApdu, ISO7816.OFFSET_CDATA, selectApdu[ISO7816.OFFSET_LC]);
+        if (aid != null) {
+            return aid;
         }
-
-        return null;
+        return appletIndex.findPrefix(selectApdu, ISO7816.OFFSET_CDATA, selectApdu[ISO7816.OFFSET_LC]);
     }
 
     protected void deselect(ApplicationInstance applicationInstance) {
+        deselect(applicationInstance, currentChannel);
+    }
+
+    /**
+     * Deselect the applet of <code>channel</code>. <code>CLEAR_ON_DESELECT</code> arrays
+     * are only cleared if no applet of the same context stays active on another channel.
+     * @param applicationInstance applet selected on <code>channel</code> or null
+     * @param channel logical channel
+     */
+    private void deselect(ApplicationInstance applicationInstance, byte channel) {
         activateSimulatorRuntimeInstance();
+        Object context = null;
+        boolean contextActive = false;
         if (applicationInstance != null) {
+            context = applicationInstance.getContext();
+            contextActive = isActive(applicationInstance, channel, false);
+            Object previousContext = transientMemory.setContext(context);
             try {
                 Applet applet = applicationInstance.getApplet();
-                applet.deselect();
+                if (contextActive && applet instanceof MultiSelectable) {
+                    ((MultiSelectable) applet).deselect(isActive(applicationInstance, channel, true));
+                } else {
+                    applet.deselect();
+                }
             } catch (Exception e) {
                 // ignore all
+            } catch (Watchdog.BudgetExceededError e) {
+                // the budget stays exceeded, the command is aborted
+            } finally {
+                transientMemory.setContext(previousContext);
             }
         }
         if (getTransactionDepth() != 0) {
             abortTransaction();
         }
-        transientMemory.clearOnDeselect();
+        if (contextActive) {
+            return;
+        }
+        if (applicationInstance != null && context != null) {
+            transientMemory.clearOnDeselect(context);
+        } else if (isAnyOtherChannelActive(channel)) {
+            // only clear unowned arrays, applets on other channels keep theirs
+            transientMemory.clearOnDeselect((Object) null);
+        } else {
+            // owner unknown, clear all contexts
+            transientMemory.clearOnDeselect();
+        }
+    }
+
+    /**
+     * Call <code>select</code> of an applet being selected on <code>channel</code>
+     * @param applicationInstance applet
+     * @param channel logical channel
+     * @return result of <code>select</code>
+     */
+    private boolean select(ApplicationInstance applicationInstance, byte channel) {
+        Applet applet = applicationInstance.getApplet();
+        if (applet instanceof MultiSelectable && isActive(applicationInstance, channel, false)) {
+            return ((MultiSelectable) applet).select(isActive(applicationInstance, channel, true));
+        }
+        return applet.select();
+    }
+
+    /**
+     * An applet can be selected on several channels if it is <code>MultiSelectable</code>
+     * or if no applet of its context is active on another channel.
+     * @param applicationInstance applet
+     * @param channel logical channel
+     * @return true if <code>applicationInstance</code> can be selected on <code>channel</code>
+     */
+    private boolean isSelectable(ApplicationInstance applicationInstance, byte channel) {
+        return applicationInstance.getApplet() instanceof MultiSelectable
+                || !isActive(applicationInstance, channel, false);
+    }
+
+    /**
+     * @param applicationInstance applet
+     * @param channel logical channel to ignore
+     * @param sameApplet if true look for the applet itself, otherwise for any applet of its context
+     * @return true if the applet or its context is active on a channel other than <code>channel</code>
+     */
+    private boolean isActive(ApplicationInstance applicationInstance, byte channel, boolean sameApplet) {
+        Object context = applicationInstance.getContext();
+        for (byte i = 0; i < channelAIDs.length; i++) {
+            if (i == channel || channelAIDs[i] == null) {
+                continue;
+            }
+            ApplicationInstance other = lookupApplet(channelAIDs[i]);
+            if (other == null) {
+                continue;
+            }
+            if (other.getApplet() == applicationInstance.getApplet()
+                    || (!sameApplet && context != null && other.getContext() == context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyOtherChannelActive(byte channel) {
+        for (byte i = 0; i < channelAIDs.length; i++) {
+            if (i != channel && channelAIDs[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyOtherChannelOpen(byte channel) {
+        for (byte i = 0; i < openChannels.length; i++) {
+            if (i != channel && openChannels[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Process MANAGE CHANNEL. Opening a channel from a channel other than the basic channel
+     * selects the applet of the origin channel on the new channel.
+     */
+    private int manageChannel(byte[] command, byte[] response, int responseOffset, int responseLimit) {
+        final byte origin = currentChannel;
+        final byte p1 = command[ISO7816.OFFSET_P1];
+        final int p2 = command[ISO7816.OFFSET_P2] & 0xFF;
+        if (p1 == LogicalChannelUtil.P1_CLOSE) {
+            if (p2 == 0 || p2 >= openChannels.length || !openChannels[p2]) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_INCORRECT_P1P2);
+            }
+            closeChannel((byte) p2);
+            return writeStatusWord(response, responseOffset, ISO7816.SW_NO_ERROR);
+        }
+        if (p1 != LogicalChannelUtil.P1_OPEN || p2 >= openChannels.length || (p2 != 0 && openChannels[p2])) {
+            return writeStatusWord(response, responseOffset, ISO7816.SW_INCORRECT_P1P2);
+        }
+        byte channel = (byte) p2;
+        if (channel == 0) {
+            while (channel < openChannels.length && openChannels[channel]) {
+                channel++;
+            }
+            if (channel == openChannels.length) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_FUNC_NOT_SUPPORTED);
+            }
+            if (responseOffset + 3 > responseLimit) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_WRONG_LENGTH);
+            }
+        }
+        ApplicationInstance instance = channelAIDs[origin] == null ? null : lookupApplet(channelAIDs[origin]);
+        if (origin != 0 && instance != null) {
+            if (!isSelectable(instance, channel)) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            boolean success;
+            Object previousContext = transientMemory.setContext(instance.getContext());
+            currentChannel = channel;
+            try {
+                success = select(instance, channel);
+            } catch (Exception e) {
+                success = false;
+            } finally {
+                currentChannel = origin;
+                transientMemory.setContext(previousContext);
+            }
+            if (!success) {
+                return writeStatusWord(response, responseOffset, ISO7816.SW_APPLET_SELECT_FAILED);
+            }
+            channelAIDs[channel] = channelAIDs[origin];
+        }
+        openChannels[channel] = true;
+        if (p2 != 0) {
+            return writeStatusWord(response, responseOffset, ISO7816.SW_NO_ERROR);
+        }
+        response[responseOffset] = channel;
+        return 1 + writeStatusWord(response, responseOffset + 1, ISO7816.SW_NO_ERROR);
+    }
+
+    private void closeChannel(byte channel) {
+        AID aid = channelAIDs[channel];
+        ApplicationInstance instance = aid == null ? null : lookupApplet(aid);
+        if (instance != null) {
+            byte origin = currentChannel;
+            currentChannel = channel;
+            try {
+                deselect(instance, channel);
+            } finally {
+                currentChannel = origin;
+            }
+        }
+        channelAIDs[channel] = null;
+        openChannels[channel] = false;
+        if (channel == currentChannel) {
+            currentAID = null;
+        }
+    }
+
+    /**
+     * Close all logical channels except the basic channel and forget all selections
+     */
+    private void resetChannels() {
+        Arrays.fill(channelAIDs, null);
+        Arrays.fill(openChannels, false);
+        openChannels[0] = true;
+        currentChannel = 0;
     }
 
     /**
@@ -371,42 +1186,117 @@ public class SimulatorRuntime {
      * @param len the length in bytes of the response
      */
     public void sendAPDU(byte[] buffer, short bOff, short len) {
-        responseBufferSize = Util.arrayCopyNonAtomic(buffer, bOff, responseBuffer, responseBufferSize, len);
+        int position = outputOffset + responseBufferSize;
+        // keep room for the status word
+        if (position + len + 2 > outputLimit) {
+            APDUException.throwIt(APDUException.IO_ERROR);
+        }
+        System.arraycopy(buffer, bOff, outputBuffer, position, len);
+        responseBufferSize += len;
+    }
+
+    /**
+     * Zero the buffers of both APDU instances
+     */
+    private void clearAPDUBuffers() {
+        shortAPDUInternal.internalClearBuffer();
+        if (extendedAPDUInternal != null) {
+            extendedAPDUInternal.internalClearBuffer();
+        }
     }
 
     /**
      * powerdown/powerup
      */
     public void reset() {
-        Arrays.fill(responseBuffer, (byte) 0);
-        transactionDepth = 0;
+        clearAPDUBuffers();
+        // power loss rolls back an unfinished transaction
+        endTransaction(true);
         responseBufferSize = 0;
         currentAID = null;
         previousAID = null;
+        resetChannels();
+        pendingResponseLength = 0;
         transientMemory.clearOnReset();
     }
 
     public void resetRuntime() {
         activateSimulatorRuntimeInstance();
-        Iterator<AID> aids = applets.keySet().iterator();
-        ArrayList<AID> aidsToTrash = new ArrayList<AID>();
-        while (aids.hasNext()) {
-            AID aid = aids.next();
-            aidsToTrash.add(aid);
-        }
-        for (AID anAidsToTrash : aidsToTrash) {
+        for (AID anAidsToTrash : appletIndex.keys()) {
             deleteApplet(anAidsToTrash);
         }
 
         loadFiles.clear();
         generatedLoadFileAIDs.clear();
-        Arrays.fill(responseBuffer, (byte) 0);
-        transactionDepth = 0;
+        generatedLoadFileByClass.clear();
+        nextGeneratedLoadFile = 0;
+        clearAPDUBuffers();
+        endTransaction(false);
         responseBufferSize = 0;
         currentAID = null;
         previousAID = null;
+        resetChannels();
+        pendingResponseLength = 0;
         transientMemory.clearOnReset();
         transientMemory.forgetBuffers();
+        persistentMemoryUsed = 0;
+        cancelObjectDeletion();
+    }
+
+    /**
+     * Capture the current state of the card: installed applets, load files,
+     * applet object graphs, transient memory and the selected applet.
+     * @return snapshot that can be passed to <code>restore(Snapshot)</code>
+     * @see Snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Return the card to the state captured by <code>snapshot()</code>.
+     * No applet is reinstalled and no applet callback is invoked.
+     * @param snapshot snapshot taken from this runtime
+     * @throws java.lang.NullPointerException if <code>snapshot</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>snapshot</code> was taken from another runtime
+     */
+    public void restore(Snapshot snapshot) {
+        if (snapshot == null) {
+            throw new NullPointerException("snapshot");
+        }
+        activateSimulatorRuntimeInstance();
+        cancelObjectDeletion();
+        snapshot.restoreInto(this);
+        endTransaction(false);
+        responseBufferSize = 0;
+        pendingResponseLength = 0;
+        selecting = false;
+    }
+
+    /**
+     * Install copies of the applets recorded by <code>snapshot</code> and take over the settings
+     * of the runtime it was taken from: memory profile, commit capacity, execution budget, response
+     * chunk size, object deletion step size, applet class loader and interceptors.
+     * @param snapshot snapshot of another runtime, its runtime must not be modified concurrently
+     * @throws java.lang.IllegalStateException if applets are installed
+     * @throws java.lang.UnsupportedOperationException if a recorded object can not be copied
+     * @see Snapshot#copyInto(SimulatorRuntime)
+     */
+    void copyFrom(Snapshot snapshot) {
+        if (!appletIndex.isEmpty()) {
+            throw new IllegalStateException("Applets are installed");
+        }
+        SimulatorRuntime source = snapshot.getRuntime();
+        setMemoryProfile(source.memoryProfile);
+        setMaxCommitCapacity(source.maxCommitCapacity);
+        setExecutionBudget(source.executionBudget);
+        setResponseChunkSize(source.responseChunkSize);
+        setObjectDeletionStepSize(source.objectDeletionStepSize);
+        setAppletClassLoader(source.appletClassLoader);
+        for (ApduInterceptor interceptor : source.interceptors.get()) {
+            addInterceptor(interceptor);
+        }
+        snapshot.copyInto(this);
     }
 
     public TransientMemory getTransientMemory() {
@@ -414,33 +1304,70 @@ public class SimulatorRuntime {
     }
 
     protected void resetAPDU(APDU apdu, ApduCase apduCase, byte[] buffer) {
-        try {
-            apduPrivateResetMethod.invoke(apdu, currentProtocol, apduCase, buffer);
-        } catch (Exception e) {
-            throw new RuntimeException("Internal reflection error", e);
-        }
+        resetAPDU(apdu, apduCase, buffer, buffer == null ? 0 : buffer.length);
+    }
+
+    protected void resetAPDU(APDU apdu, ApduCase apduCase, byte[] buffer, int length) {
+        InternalAPDU internal = apdu == shortAPDU ? shortAPDUInternal : extendedAPDUInternal;
+        internal.internalReset(currentProtocol, apduCase, buffer, length);
     }
 
     public APDU getCurrentAPDU() {
-        return usingExtendedAPDUs ? extendedAPDU : shortAPDU;
+        return usingExtendedAPDUs ? getExtendedAPDU() : shortAPDU;
+    }
+
+    /**
+     * @return the extended APDU, created on first use
+     */
+    private APDU getExtendedAPDU() {
+        if (extendedAPDU == null) {
+            try {
+                extendedAPDUInternal = (InternalAPDU) apduConstructor.newInstance(true);
+            } catch (Exception e) {
+                throw new RuntimeException("Internal reflection error", e);
+            }
+            extendedAPDU = extendedAPDUInternal.getAPDU();
+            resetAPDU(extendedAPDU, null, null);
+        }
+        return extendedAPDU;
     }
 
     /**
-     * Change protocol
+     * @return protocol bits of the active protocol
+     * @see javacard.framework.APDU#getProtocol()
+     */
+    public byte getProtocol() {
+        return currentProtocol;
+    }
+
+    /**
+     * Change protocol, nothing is done if <code>protocol</code> is already active
      * @param protocol protocol bits
      * @see javacard.framework.APDU#getProtocol()
      */
     public void changeProtocol(byte protocol) {
+        if (protocol == currentProtocol) {
+            return;
+        }
         this.currentProtocol = protocol;
         resetAPDU(shortAPDU, null, null);
-        resetAPDU(extendedAPDU, null, null);
+        if (extendedAPDU != null) {
+            resetAPDU(extendedAPDU, null, null);
+        }
     }
 
+    /**
+     * @see javacard.framework.JCSystem#getAssignedChannel()
+     * @return logical channel of the current command
+     */
     public byte getAssignedChannel() {
-        return 0; // basic channel
+        return currentChannel;
     }
 
     /**
+     * Writes are journaled and rolled back by an abort only if the applet of the current context
+     * was loaded by an <code>IsolatingClassLoader</code>. Most writes of other applets have no barrier,
+     * so none of their writes are journaled rather than a part of them.
      * @see javacard.framework.JCSystem#beginTransaction()
      */
     public void beginTransaction() {
@@ -448,6 +1375,11 @@ public class SimulatorRuntime {
             TransactionException.throwIt(TransactionException.IN_PROGRESS);
         }
         transactionDepth = 1;
+        Applet applet = getApplet(getAID());
+        transactionJournaled = applet == null || AppletClassInstrumenter.isInstrumented(applet.getClass());
+        if (transactionJournaled) {
+            TransactionBarrier.transactionOpened();
+        }
     }
 
     /**
@@ -457,7 +1389,7 @@ public class SimulatorRuntime {
         if (transactionDepth == 0) {
             TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
         }
-        transactionDepth = 0;
+        endTransaction(true);
     }
 
     /**
@@ -467,7 +1399,27 @@ public class SimulatorRuntime {
         if (transactionDepth == 0) {
             TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
         }
+        endTransaction(false);
+    }
+
+    /**
+     * Close the current transaction, if any
+     * @param rollback true to undo the journaled writes, false to keep them
+     */
+    private void endTransaction(boolean rollback) {
+        if (transactionDepth == 0) {
+            return;
+        }
         transactionDepth = 0;
+        if (transactionJournaled) {
+            transactionJournaled = false;
+            TransactionBarrier.transactionClosed();
+        }
+        if (rollback) {
+            journal.rollback();
+        } else {
+            journal.clear();
+        }
     }
 
     /**
@@ -480,42 +1432,304 @@ public class SimulatorRuntime {
 
     /**
      * @see javacard.framework.JCSystem#getUnusedCommitCapacity()
-     * @return The current implementation always returns 32767
+     * @return bytes left in the commit buffer
      */
     public short getUnusedCommitCapacity() {
-        return Short.MAX_VALUE;
+        return (short) Math.max(0, maxCommitCapacity - journal.getUsed());
     }
 
     /**
      * @see javacard.framework.JCSystem#getMaxCommitCapacity()
-     * @return The current implementation always returns 32767
+     * @return size of the commit buffer, 32767 unless changed with <code>setMaxCommitCapacity</code>
      */
     public short getMaxCommitCapacity() {
-        return Short.MAX_VALUE;
+        return maxCommitCapacity;
+    }
+
+    /**
+     * Set the size of the commit buffer. A transaction that would journal more bytes
+     * fails with <code>TransactionException.BUFFER_FULL</code>.
+     * @param maxCommitCapacity commit buffer size in bytes
+     * @throws java.lang.IllegalArgumentException if <code>maxCommitCapacity</code> is negative
+     * @see TransactionJournal#ENTRY_OVERHEAD
+     */
+    public void setMaxCommitCapacity(short maxCommitCapacity) {
+        if (maxCommitCapacity < 0) {
+            throw new IllegalArgumentException("maxCommitCapacity must not be negative");
+        }
+        this.maxCommitCapacity = maxCommitCapacity;
+    }
+
+    /**
+     * Journal a write of an array element if a journaled transaction is in progress
+     * and <code>array</code> is persistent
+     * @param array array written
+     * @param index element index
+     */
+    void journalArrayElement(Object array, int index) {
+        if (transactionJournaled && isPersistent(array)) {
+            journal.recordElement(array, index, maxCommitCapacity);
+        }
+    }
+
+    /**
+     * Journal a write of an array range if a journaled transaction is in progress
+     * and <code>array</code> is persistent
+     * @param array array written
+     * @param offset start of the range
+     * @param length length of the range
+     */
+    void journalArrayRange(byte[] array, int offset, int length) {
+        if (transactionJournaled && isPersistent(array)) {
+            journal.recordRange(array, offset, length, maxCommitCapacity);
+        }
+    }
+
+    /**
+     * Journal a field write if a journaled transaction is in progress
+     * @param target object written, null for static fields
+     * @param owner class named by the instruction writing the field
+     * @param name field name
+     */
+    void journalField(Object target, Class<?> owner, String name) {
+        if (transactionJournaled) {
+            try {
+                journal.recordField(target, journal.getField(owner, name), maxCommitCapacity);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Internal reflection error", e);
+            }
+        }
+    }
+
+    /**
+     * @param array array
+     * @return true if <code>array</code> is neither transient nor an APDU buffer
+     */
+    boolean isPersistent(Object array) {
+        // the APDU buffer is not subject to transactions
+        if (array == shortAPDU.getBuffer() || (extendedAPDU != null && array == extendedAPDU.getBuffer())) {
+            return false;
+        }
+        return array != null && transientMemory.isTransient(array) == JCSystem.NOT_A_TRANSIENT_OBJECT;
+    }
+
+    /**
+     * Set the memory sizes of the card. Memory that is already used stays used.
+     * Persistent objects are only counted while the persistent size is limited.
+     * @param memoryProfile memory sizes, <code>MemoryProfile.UNLIMITED</code> by default
+     * @throws java.lang.NullPointerException if <code>memoryProfile</code> is null
+     */
+    public void setMemoryProfile(MemoryProfile memoryProfile) {
+        if (memoryProfile == null) {
+            throw new NullPointerException("memoryProfile");
+        }
+        this.memoryProfile = memoryProfile;
+        transientMemory.setLimits(memoryProfile.getTransientResetSize(), memoryProfile.getTransientDeselectSize());
+        if (lock.isHeldByCurrentThread()) {
+            updateAllocationBarrier();
+        }
+    }
+
+    /**
+     * @return memory sizes of the card
+     */
+    public MemoryProfile getMemoryProfile() {
+        return memoryProfile;
+    }
+
+    /**
+     * <p>Split the response data of commands into chunks fetched with GET RESPONSE, as the
+     * T=0 transport layer of a card does.</p>
+     * <p>If a command completes with 0x9000 and more than <code>responseChunkSize</code> bytes
+     * of data, only the first chunk is returned with the status word 0x61XX. XX is the number of
+     * bytes left, 00 for 256 bytes or more. Each GET RESPONSE command (INS 0xC0, P1 P2 0x0000)
+     * returns the next chunk of at most Le bytes, the last chunk with 0x9000. GET RESPONSE must be
+     * sent on the logical channel of the command, any other command discards the data left.</p>
+     * @param responseChunkSize maximum response data per APDU, 1-256, or 0 to return all data at once
+     * @throws java.lang.IllegalArgumentException if <code>responseChunkSize</code> is not in the range 0-256
+     * @see CardManager#transmitChained(com.licel.jcardsim.io.JavaCardInterface, byte[], byte[], int,
+     * com.licel.jcardsim.utils.Consumer)
+     */
+    public void setResponseChunkSize(int responseChunkSize) {
+        if (responseChunkSize < 0 || responseChunkSize > 256) {
+            throw new IllegalArgumentException("responseChunkSize must be in the range 0-256");
+        }
+        this.responseChunkSize = responseChunkSize;
+        pendingResponseLength = 0;
+    }
+
+    /**
+     * @return maximum response data per APDU, 0 if responses are not split
+     */
+    public int getResponseChunkSize() {
+        return responseChunkSize;
+    }
+
+    /**
+     * Add an interceptor of the commands transmitted to this runtime. Interceptors are called
+     * for every <code>transmitCommand</code> and <code>transmitBatch</code> command.
+     * Without interceptors commands are processed without any additional cost.
+     * @param interceptor interceptor, called after the interceptors added before
+     * @throws java.lang.NullPointerException if <code>interceptor</code> is null
+     * @see ApduInterceptor
+     */
+    public void addInterceptor(ApduInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Remove an interceptor added with <code>addInterceptor</code>
+     * @param interceptor interceptor
+     * @return true if <code>interceptor</code> was removed
+     */
+    public boolean removeInterceptor(ApduInterceptor interceptor) {
+        return interceptors.remove(interceptor);
+    }
+
+    /**
+     * Set the budget of every command. Commands exceeding it are aborted with the status
+     * word of the budget, see <code>ExecutionBudget</code>.
+     * @param executionBudget budget, <code>ExecutionBudget.UNLIMITED</code> by default
+     * @throws java.lang.NullPointerException if <code>executionBudget</code> is null
+     * @throws java.lang.IllegalStateException if <code>executionBudget</code> is limited and an installed
+     * applet class is not instrumented
+     */
+    public void setExecutionBudget(ExecutionBudget executionBudget) {
+        if (executionBudget == null) {
+            throw new NullPointerException("executionBudget");
+        }
+        if (executionBudget.isLimited()) {
+            for (ApplicationInstance instance : appletIndex.values()) {
+                requireInstrumented(instance.getApplet().getClass());
+            }
+        }
+        this.executionBudget = executionBudget;
+    }
+
+    /**
+     * A budget can only be enforced for applet classes with the barriers of <code>Watchdog</code>
+     * @throws java.lang.IllegalStateException if <code>appletClass</code> has no barriers
+     */
+    private static void requireInstrumented(Class<?> appletClass) {
+        if (!AppletClassInstrumenter.isInstrumented(appletClass)) {
+            throw new IllegalStateException("Execution budget can not be enforced for " + appletClass.getName()
+                    + ", load it with an IsolatingClassLoader");
+        }
+    }
+
+    /**
+     * @return budget of every command
+     */
+    public ExecutionBudget getExecutionBudget() {
+        return executionBudget;
+    }
+
+    private void startBudget() {
+        budgetExceeded = false;
+        if (!executionBudget.isLimited()) {
+            return;
+        }
+        backEdges = 0;
+        budgetDeadline = System.nanoTime() + executionBudget.getTimeMillis() * 1000000L;
+        Watchdog.budgetStarted();
+    }
+
+    private void finishBudget() {
+        if (backEdges >= 0) {
+            backEdges = -1;
+            Watchdog.budgetFinished();
+        }
+    }
+
+    /**
+     * Count a backward branch of an applet. The time budget is checked every 256 branches.
+     * @throws Watchdog.BudgetExceededError if the budget of the current command is exceeded
+     */
+    void backEdge() {
+        if (backEdges < 0) {
+            return;
+        }
+        if (!budgetExceeded) {
+            backEdges++;
+            long instructions = executionBudget.getInstructions();
+            budgetExceeded = (instructions != ExecutionBudget.UNLIMITED_VALUE && backEdges > instructions)
+                    || (executionBudget.getTimeMillis() != ExecutionBudget.UNLIMITED_VALUE
+                    && (backEdges & 0xFF) == 0 && System.nanoTime() - budgetDeadline > 0);
+        }
+        if (budgetExceeded) {
+            throw new Watchdog.BudgetExceededError();
+        }
+    }
+
+    /**
+     * Count a new persistent object
+     * @param bytes size of the object
+     * @throws SystemException <code>NO_RESOURCE</code> if there is not enough persistent memory
+     */
+    void allocatePersistent(long bytes) {
+        if (bytes > memoryProfile.getPersistentSize() - persistentMemoryUsed) {
+            SystemException.throwIt(SystemException.NO_RESOURCE);
+        }
+        persistentMemoryUsed += bytes;
+    }
+
+    /**
+     * @param type class
+     * @return bytes used by an instance of <code>type</code>
+     */
+    int instanceSize(Class<?> type) {
+        Integer size = instanceSizes.get(type);
+        if (size == null) {
+            size = AllocationBarrier.instanceSize(type);
+            instanceSizes.put(type, size);
+        }
+        return size;
+    }
+
+    private void updateAllocationBarrier() {
+        if (memoryProfile.getPersistentSize() != MemoryProfile.UNLIMITED_SIZE) {
+            if (!allocationBarrierEnabled) {
+                allocationBarrierEnabled = true;
+                AllocationBarrier.profilingStarted();
+            }
+        } else {
+            disableAllocationBarrier();
+        }
+    }
+
+    private void disableAllocationBarrier() {
+        if (allocationBarrierEnabled) {
+            allocationBarrierEnabled = false;
+            AllocationBarrier.profilingFinished();
+        }
     }
 
     /**
      * @see javacard.framework.JCSystem#getAvailableMemory(byte)
-     * @return The current implementation always returns 32767
+     * @return available persistent bytes, at most 32767
      */
     public short getAvailablePersistentMemory() {
-        return Short.MAX_VALUE;
+        return available(memoryProfile.getPersistentSize() - persistentMemoryUsed);
     }
 
     /**
      * @see javacard.framework.JCSystem#getAvailableMemory(byte)
-     * @return The current implementation always returns 32767
+     * @return available bytes for <code>CLEAR_ON_RESET</code> arrays, at most 32767
      */
     public short getAvailableTransientResetMemory() {
-        return Short.MAX_VALUE;
+        return available(transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_RESET));
     }
 
     /**
      * @see javacard.framework.JCSystem#getAvailableMemory(byte)
-     * @return The current implementation always returns 32767
+     * @return available bytes for <code>CLEAR_ON_DESELECT</code> arrays, at most 32767
      */
     public short getAvailableTransientDeselectMemory() {
-        return Short.MAX_VALUE;
+        return available(transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_DESELECT));
+    }
+
+    private static short available(long bytes) {
+        return (short) Math.max(0, Math.min(Short.MAX_VALUE, bytes));
     }
 
     /**
@@ -535,18 +1749,96 @@ public class SimulatorRuntime {
 
     /**
      * @see javacard.framework.JCSystem#isObjectDeletionSupported()
-     * @return always false
+     * @return always true
      */
     public boolean isObjectDeletionSupported() {
-        return false;
+        return true;
     }
 
     /**
+     * Start an object deletion. Objects reachable from the applets, the transient arrays and
+     * the static fields of applet classes are marked, the persistent memory of all other
+     * objects becomes available again. The mark is spread over the following commands,
+     * see <code>setObjectDeletionStepSize</code>.
+     * <p>Memory of transient arrays is given back once the JVM has collected them.</p>
      * @see javacard.framework.JCSystem#requestObjectDeletion()
      */
     public void requestObjectDeletion() {
-        if (!isObjectDeletionSupported()) {
-            throw new SystemException(SystemException.ILLEGAL_USE);
+        if (objectMarker == null) {
+            objectMarker = new ObjectMarker(this);
+            if (lock.isHeldByCurrentThread()) {
+                enableMarkBarrier();
+            }
+        }
+    }
+
+    /**
+     * @return true if an object deletion was requested and is not finished yet
+     */
+    public boolean isObjectDeletionPending() {
+        return objectMarker != null;
+    }
+
+    /**
+     * Set the number of objects marked after each command while an object deletion is pending
+     * @param objectDeletionStepSize objects per command, 0 to finish the mark after the
+     * command requesting the deletion
+     * @throws java.lang.IllegalArgumentException if <code>objectDeletionStepSize</code> is negative
+     */
+    public void setObjectDeletionStepSize(int objectDeletionStepSize) {
+        if (objectDeletionStepSize < 0) {
+            throw new IllegalArgumentException("objectDeletionStepSize must not be negative");
+        }
+        this.objectDeletionStepSize = objectDeletionStepSize;
+    }
+
+    /**
+     * Continue the pending object deletion
+     * @param budget number of objects to mark, 0 to finish
+     * @return true if no object deletion is pending any more
+     */
+    boolean continueObjectDeletion(int budget) {
+        if (objectMarker == null) {
+            return true;
+        }
+        if (!objectMarker.step(budget)) {
+            return false;
+        }
+        // objects created during the mark are marked as well, unless they are unreachable
+        persistentMemoryUsed = Math.min(persistentMemoryUsed, objectMarker.getLiveMemory());
+        transientMemory.recountUsedMemory();
+        cancelObjectDeletion();
+        return true;
+    }
+
+    private void cancelObjectDeletion() {
+        if (objectMarker != null) {
+            objectMarker = null;
+            disableMarkBarrier();
+        }
+    }
+
+    private void enableMarkBarrier() {
+        if (!markBarrierEnabled) {
+            markBarrierEnabled = true;
+            TransactionBarrier.markStarted();
+        }
+    }
+
+    private void disableMarkBarrier() {
+        if (markBarrierEnabled) {
+            markBarrierEnabled = false;
+            TransactionBarrier.markFinished();
+        }
+    }
+
+    /**
+     * Report a write into <code>target</code> to the pending object deletion
+     * @param target object or array written, null for static fields
+     */
+    void objectWritten(Object target) {
+        if (objectMarker != null) {
+            objectMarker.written(target);
         }
     }
 
@@ -601,33 +1893,86 @@ public class SimulatorRuntime {
             throw new IllegalArgumentException("Module AID not found " + AIDUtil.toString(moduleAID));
         }
 
-        Class<? extends Applet> appletClass = module.getAppletClass();
-        Method initMethod;
+        installApplet(loadFile, module, appletAID, bArray, bOffset, bLength);
+    }
+
+    /**
+     * Install several instances of a module. <code>loadFile</code> is loaded first
+     * unless it is already loaded. The same <code>LoadFile</code> instance can be
+     * installed into many runtimes, the install method of its modules is looked up only once.
+     * <p>If the applet class loader is an <code>IsolatingClassLoader</code> the module classes
+     * are loaded again by it and this runtime uses a copy of <code>loadFile</code> with its own
+     * classes, so it does not share static fields with other runtimes.</p>
+     * @param loadFile LoadFile containing the module
+     * @param moduleAID AID of the module (applet class) to install
+     * @param appletAIDs AIDs of the applet instances
+     * @param bArray the array containing installation parameters, passed to every instance
+     * @param bOffset the starting offset in bArray
+     * @param bLength the length in bytes of the parameter data in bArray
+     * @throws java.lang.NullPointerException if <code>loadFile</code> or <code>appletAIDs</code> is null
+     * @throws java.lang.IllegalArgumentException if <code>moduleAID</code> is not part of <code>loadFile</code>
+     * or a module class can not be loaded by the applet class loader
+     * @throws java.lang.IllegalStateException if another LoadFile with the same AID is loaded
+     * @throws SystemException if an applet cannot be installed
+     */
+    public void installApplets(LoadFile loadFile, AID moduleAID, AID[] appletAIDs,
+                               byte[] bArray, short bOffset, byte bLength) {
+        if (loadFile == null) {
+            throw new NullPointerException("loadFile");
+        }
+        if (appletAIDs == null) {
+            throw new NullPointerException("appletAIDs");
+        }
+        activateSimulatorRuntimeInstance();
+        if (loadFile.getModule(moduleAID) == null) {
+            throw new IllegalArgumentException("Module AID not found " + AIDUtil.toString(moduleAID));
+        }
+        LoadFile loaded = loadFiles.get(loadFile.getAid());
+        if (loaded == null || !loaded.isResolvedFrom(loadFile)) {
+            loaded = resolveLoadFile(loadFile);
+            loadLoadFile(loaded);
+        }
+        Module module = loaded.getModule(moduleAID);
+        for (AID appletAID : appletAIDs) {
+            installApplet(loaded, module, appletAID, bArray, bOffset, bLength);
+        }
+    }
+
+    private LoadFile resolveLoadFile(LoadFile loadFile) {
+        ClassLoader classLoader = appletClassLoader;
+        if (!(classLoader instanceof IsolatingClassLoader)) {
+            return loadFile;
+        }
         try {
-            initMethod = appletClass.getMethod("install",
-                    new Class[]{byte[].class, short.class, byte.class});
-        } catch (NoSuchMethodException e) {
-            throw new IllegalArgumentException("Class does not provide install method");
-        }
-
-        final AtomicInteger callCount = new AtomicInteger(0);
-        registrationCallback.set(new BiConsumer<Applet,AID>() {
-            public void accept(Applet applet, AID installAID) {
-                // disallow second call to register
-                if (callCount.incrementAndGet() != 1) {
-                    throw new SystemException(SystemException.ILLEGAL_AID);
-                }
+            return loadFile.resolve(classLoader);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Applet class not found " + e.getMessage());
+        }
+    }
 
-                // register applet
-                if (installAID != null) {
-                    applets.put(installAID, new ApplicationInstance(installAID, applet));
-                }
-                else {
-                    applets.put(appletAID, new ApplicationInstance(appletAID, applet));
-                }
-            }
-        });
+    private void installApplet(LoadFile loadFile, Module module, AID appletAID,
+                               byte[] bArray, short bOffset, byte bLength) {
+        Method initMethod = module.getInstallMethod();
+        if (executionBudget.isLimited()) {
+            requireInstrumented(module.getAppletClass());
+        }
 
+        AID previousAppletAID = registration.appletAID;
+        Object previousRegistrationContext = registration.context;
+        int previousCallCount = registration.callCount;
+        registration.appletAID = appletAID;
+        registration.context = loadFile;
+        registration.callCount = 0;
+        registrationCallback.set(registration);
+        // the new applet runs in the context of its load file
+        Object previousContext = transientMemory.setContext(loadFile);
+
+        int callCount;
+        // an install during a command is part of the budget of the command
+        boolean budgeted = backEdges < 0;
+        if (budgeted) {
+            startBudget();
+        }
         try {
             initMethod.invoke(null, bArray, bOffset, bLength);
         }
@@ -638,28 +1983,77 @@ public class SimulatorRuntime {
             throw new SystemException(SystemException.ILLEGAL_AID);
         }
         finally {
-            registrationCallback.set(null);
+            if (budgeted) {
+                finishBudget();
+                budgetExceeded = false;
+            }
+            transientMemory.setContext(previousContext);
+            callCount = registration.callCount;
+            registration.appletAID = previousAppletAID;
+            registration.context = previousRegistrationContext;
+            registration.callCount = previousCallCount;
+            registrationCallback.set(previousAppletAID == null ? null : registration);
         }
 
-        if (callCount.get() != 1) {
+        if (callCount != 1) {
             throw new SystemException(SystemException.ILLEGAL_AID);
         }
     }
 
+    /** Registers the applet created by an install method, reused by every install */
+    private final class Registration implements BiConsumer<Applet,AID> {
+        AID appletAID;
+        Object context;
+        int callCount;
+
+        public void accept(Applet applet, AID installAID) {
+            // disallow second call to register
+            if (++callCount != 1) {
+                throw new SystemException(SystemException.ILLEGAL_AID);
+            }
+
+            // register applet
+            if (installAID != null) {
+                appletIndex.put(installAID, new ApplicationInstance(installAID, applet, context));
+            }
+            else {
+                appletIndex.put(appletAID, new ApplicationInstance(appletAID, applet, context));
+            }
+        }
+    }
+
     /** Represents an Applet instance */
     public static class ApplicationInstance {
         private final AID aid;
         private final Applet applet;
+        private final Object context;
 
         public ApplicationInstance(AID aid, Applet applet) {
+            this(aid, applet, null);
+        }
+
+        /**
+         * @param aid applet AID
+         * @param applet applet instance
+         * @param context context owning the transient arrays of the applet, e.g. its <code>LoadFile</code>
+         */
+        public ApplicationInstance(AID aid, Applet applet, Object context) {
             this.aid = aid;
             this.applet = applet;
+            this.context = context;
         }
 
         public Applet getApplet(){
             return applet;
         }
 
+        /**
+         * @return context owning the transient arrays of the applet
+         */
+        public Object getContext() {
+            return context;
+        }
+
         @Override
         public String toString() {
             return String.format("ApplicationInstance (%s)", AIDUtil.toString(aid));
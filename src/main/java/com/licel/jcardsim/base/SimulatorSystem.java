@@ -17,6 +17,7 @@ package com.licel.jcardsim.base;
 
 import javacard.framework.*;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Constructor;
 
 /**
@@ -42,9 +43,23 @@ public class SimulatorSystem {
 
 
     /**
-     * Holds the currently active instance
+     * System property, if set to <code>true</code> Java Card exceptions record stack traces
+     * and <code>throwIt</code> creates a new instance on every call.
+     * Intended for debugging applets.
      */
-    private static final ThreadLocal<SimulatorRuntime> currentRuntime = new ThreadLocal<SimulatorRuntime>();
+    public static final String EXCEPTION_STACK_TRACE_PROPERTY = "com.licel.jcardsim.exceptions.stackTrace";
+
+    private static volatile boolean exceptionStackTraceEnabled = Boolean.getBoolean(EXCEPTION_STACK_TRACE_PROPERTY);
+
+    /**
+     * Holds the currently active instance and the runtimes entered by the current thread
+     */
+    private static final ThreadLocal<RuntimeScope> currentScope = new ThreadLocal<RuntimeScope>() {
+        @Override
+        protected RuntimeScope initialValue() {
+            return new RuntimeScope();
+        }
+    };
 
     /**
      * the default instance. Used by <code>Simulator</code>
@@ -60,20 +75,147 @@ public class SimulatorSystem {
      * @return current instance
      */
     public static SimulatorRuntime instance() {
-        SimulatorRuntime simulatorRuntime = currentRuntime.get();
+        SimulatorRuntime simulatorRuntime = currentScope.get().current();
         if (simulatorRuntime == null) {
             throw new AssertionError("No current simulator instance");
         }
         return simulatorRuntime;
     }
 
+    /**
+     * @return the currently active SimulatorRuntime instance or null
+     */
+    static SimulatorRuntime currentInstance() {
+        return currentScope.get().current();
+    }
+
     /**
      * Internal method to set the currently active SimulatorRuntime
      * @param simulatorRuntime simulatorRuntime to set
      * @return <code>simulatorRuntime</code>
      */
     static SimulatorRuntime setCurrentInstance(SimulatorRuntime simulatorRuntime) {
-        currentRuntime.set(simulatorRuntime);
+        currentScope.get().replace(simulatorRuntime);
         return simulatorRuntime;
     }
+
+    /**
+     * @return true if Java Card exceptions record stack traces
+     * @see #EXCEPTION_STACK_TRACE_PROPERTY
+     */
+    public static boolean isExceptionStackTraceEnabled() {
+        return exceptionStackTraceEnabled;
+    }
+
+    /**
+     * Enable or disable stack traces of Java Card exceptions.
+     * Overrides <code>EXCEPTION_STACK_TRACE_PROPERTY</code>.
+     * @param enabled true to record stack traces
+     */
+    public static void setExceptionStackTraceEnabled(boolean enabled) {
+        exceptionStackTraceEnabled = enabled;
+    }
+
+    /**
+     * Internal method used by the <code>throwIt</code> methods of the Java Card exception classes
+     * @param exceptionClass a subclass of <code>CardException</code> or <code>CardRuntimeException</code>
+     * @param reason the reason for the exception
+     * @return the Java Card runtime environment-owned instance of <code>exceptionClass</code>
+     * with <code>reason</code>. A new instance if no runtime is active or stack traces are enabled.
+     */
+    public static Throwable getJCREOwnedException(Class<? extends Throwable> exceptionClass, short reason) {
+        SimulatorRuntime simulatorRuntime = currentScope.get().current();
+        if (simulatorRuntime == null || exceptionStackTraceEnabled) {
+            return SimulatorRuntime.newCardException(exceptionClass, reason);
+        }
+        return simulatorRuntime.getJCREOwnedException(exceptionClass, reason);
+    }
+
+    /**
+     * Internal method used by the objects jCardSim creates for applets, e.g. keys and ciphers,
+     * to create a transient byte array that is not counted against the memory of the card
+     * @param length the length of the array
+     * @param event the <code>CLEAR_ON...</code> event which causes the array elements to be cleared
+     * @return the new transient array
+     * @see TransientMemory#makeInternalByteArray(int, byte)
+     */
+    public static byte[] makeInternalTransientArray(int length, byte event) {
+        return instance().getTransientMemory().makeInternalByteArray(length, event);
+    }
+
+    /**
+     * Internal method to make <code>simulatorRuntime</code> the active instance until
+     * the matching call of <code>exitScope</code>
+     * @param simulatorRuntime simulatorRuntime to activate
+     * @see SimulatorRuntime#enter()
+     */
+    static void enterScope(SimulatorRuntime simulatorRuntime) {
+        currentScope.get().push(simulatorRuntime);
+    }
+
+    /**
+     * Internal method to restore the instance that was active before the
+     * matching call of <code>enterScope</code>
+     * @see SimulatorRuntime#exit()
+     */
+    static void exitScope() {
+        currentScope.get().pop();
+    }
+
+    /**
+     * Per thread stack of entered runtimes. Does not allocate once the stack
+     * is deep enough, so entering a runtime for each command is cheap.
+     * <p>Outside of any scope the last activated runtime stays active, as calls of
+     * <code>JCSystem</code> made directly by tests and tools expect. A runtime that
+     * was only active within a scope is held weakly, so threads of a pool do not
+     * keep the runtimes they worked with alive.</p>
+     */
+    private static final class RuntimeScope {
+        // runtime activated outside of any scope
+        private SimulatorRuntime unscoped;
+        // runtime active when the outermost scope was left, if no runtime was activated since
+        private WeakReference<SimulatorRuntime> lastScoped;
+        private SimulatorRuntime[] entered = new SimulatorRuntime[4];
+        private int depth;
+
+        SimulatorRuntime current() {
+            if (depth != 0) {
+                return entered[depth - 1];
+            }
+            if (unscoped == null && lastScoped != null) {
+                return lastScoped.get();
+            }
+            return unscoped;
+        }
+
+        void replace(SimulatorRuntime simulatorRuntime) {
+            if (depth == 0) {
+                unscoped = simulatorRuntime;
+                lastScoped = null;
+            } else {
+                entered[depth - 1] = simulatorRuntime;
+            }
+        }
+
+        void push(SimulatorRuntime simulatorRuntime) {
+            if (depth == entered.length) {
+                SimulatorRuntime[] tmp = new SimulatorRuntime[depth * 2];
+                System.arraycopy(entered, 0, tmp, 0, depth);
+                entered = tmp;
+            }
+            entered[depth++] = simulatorRuntime;
+        }
+
+        void pop() {
+            if (depth == 0) {
+                throw new IllegalStateException("No runtime scope entered");
+            }
+            SimulatorRuntime last = entered[--depth];
+            entered[depth] = null;
+            if (depth == 0 && last != null) {
+                unscoped = null;
+                lastScoped = last.weakReference;
+            }
+        }
+    }
 }
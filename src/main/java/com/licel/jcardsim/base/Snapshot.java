@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Point-in-time image of a <code>SimulatorRuntime</code>.
+ *
+ * <p>A snapshot records the installed applets, the load files, the open logical channels
+ * and their selected applets, the registered transient arrays, the memory used and the
+ * contents of every object reachable from the applet instances.</p>
+ *
+ * <p>Restoring writes the recorded values back into the very same objects, so applets
+ * are neither reinstalled nor re-personalized and references held by applets stay valid.
+ * Objects created after the snapshot was taken simply become unreachable.</p>
+ *
+ * <p>Objects of <code>java.*</code> and <code>javax.*</code> classes (except arrays),
+ * <code>AID</code>s and <code>APDU</code>s are treated as immutable and are not recorded.
+ * Static fields are shared by every runtime that uses the applet class and are not recorded
+ * either.</p>
+ *
+ * <p>A snapshot can also be copied into a new runtime, see <code>copyInto</code>. The new
+ * runtime gets copies of all recorded objects, objects that are not recorded are shared.</p>
+ *
+ * @see SimulatorRuntime#snapshot()
+ * @see SimulatorRuntime#restore(Snapshot)
+ */
+public final class Snapshot {
+    private final SimulatorRuntime runtime;
+    private final AIDIndex<SimulatorRuntime.ApplicationInstance> applets;
+    private final SortedMap<AID, LoadFile> loadFiles;
+    private final SortedMap<AID, AID> generatedLoadFileAIDs;
+    private final Map<Object, TransientArraySet> clearOnDeselect;
+    private final TransientArraySet clearOnReset;
+    private final long persistentMemoryUsed;
+    private final long[] transientMemoryUsed;
+    private final AID currentAID;
+    private final AID previousAID;
+    private final AID[] channelAIDs;
+    private final boolean[] openChannels;
+    private final byte currentChannel;
+    // instance fields per class, shared by capture and restore
+    private final HashMap<Class<?>, Field[]> fieldsByClass = new HashMap<Class<?>, Field[]>();
+    // recorded objects and their saved contents (array copy or field values)
+    private final ArrayList<Object> objects = new ArrayList<Object>();
+    private final ArrayList<Object> contents = new ArrayList<Object>();
+
+    Snapshot(SimulatorRuntime runtime) {
+        this.runtime = runtime;
+        this.applets = new AIDIndex<SimulatorRuntime.ApplicationInstance>(runtime.appletIndex);
+        this.loadFiles = new TreeMap<AID, LoadFile>(runtime.loadFiles);
+        this.generatedLoadFileAIDs = new TreeMap<AID, AID>(runtime.generatedLoadFileAIDs);
+        this.clearOnDeselect = runtime.transientMemory.copyDeselectArrays();
+        this.clearOnReset = runtime.transientMemory.resetArrays.copy();
+        this.persistentMemoryUsed = runtime.persistentMemoryUsed;
+        this.transientMemoryUsed = runtime.transientMemory.getUsedMemory();
+        this.currentAID = runtime.currentAID;
+        this.previousAID = runtime.previousAID;
+        this.channelAIDs = runtime.channelAIDs.clone();
+        this.openChannels = runtime.openChannels.clone();
+        this.currentChannel = runtime.currentChannel;
+
+        ArrayList<Object> pending = new ArrayList<Object>();
+        for (SimulatorRuntime.ApplicationInstance instance : applets.values()) {
+            pending.add(instance.getApplet());
+        }
+        for (TransientArraySet arrays : clearOnDeselect.values()) {
+            pending.addAll(arrays.toList());
+        }
+        pending.addAll(clearOnReset.toList());
+        captureGraph(pending);
+    }
+
+    /**
+     * @return the number of objects recorded in this snapshot
+     */
+    public int getObjectCount() {
+        return objects.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Snapshot (%d applets, %d objects, selected %s)", applets.size(), objects.size(),
+                currentAID == null ? "none" : AIDUtil.toString(currentAID));
+    }
+
+    /**
+     * Write the recorded state back into <code>target</code>
+     * @param target runtime to restore
+     * @throws IllegalArgumentException if this snapshot was taken from another runtime
+     */
+    void restoreInto(SimulatorRuntime target) {
+        if (target != runtime) {
+            throw new IllegalArgumentException("Snapshot was taken from a different SimulatorRuntime");
+        }
+        target.appletIndex.clear();
+        target.appletIndex.putAll(applets);
+        target.loadFiles.clear();
+        target.loadFiles.putAll(loadFiles);
+        target.generatedLoadFileAIDs.clear();
+        target.generatedLoadFileAIDs.putAll(generatedLoadFileAIDs);
+        target.transientMemory.setArrays(clearOnDeselect, clearOnReset);
+        target.transientMemory.setUsedMemory(transientMemoryUsed);
+        target.persistentMemoryUsed = persistentMemoryUsed;
+        target.currentAID = currentAID;
+        target.previousAID = previousAID;
+        System.arraycopy(channelAIDs, 0, target.channelAIDs, 0, channelAIDs.length);
+        System.arraycopy(openChannels, 0, target.openChannels, 0, openChannels.length);
+        target.currentChannel = currentChannel;
+
+        try {
+            for (int i = 0; i < objects.size(); i++) {
+                Object object = objects.get(i);
+                Object saved = contents.get(i);
+                if (object.getClass().isArray()) {
+                    System.arraycopy(saved, 0, object, 0, Array.getLength(saved));
+                } else {
+                    Field[] fields = fieldsByClass.get(object.getClass());
+                    Object[] values = (Object[]) saved;
+                    for (int j = 0; j < fields.length; j++) {
+                        fields[j].set(object, values[j]);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
+
+    /**
+     * @return runtime this snapshot was taken from
+     */
+    SimulatorRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Install copies of the recorded applets and objects into <code>target</code>, in the state
+     * they had when this snapshot was taken. The snapshot itself is not modified.
+     * @param target runtime without applets
+     * @throws UnsupportedOperationException if a recorded object can not be copied
+     */
+    void copyInto(SimulatorRuntime target) {
+        IdentityHashMap<Object, Object> copies = new IdentityHashMap<Object, Object>();
+        HashMap<Class<?>, Constructor<?>> constructors = new HashMap<Class<?>, Constructor<?>>();
+        for (int i = 0; i < objects.size(); i++) {
+            Object object = objects.get(i);
+            Class<?> cls = object.getClass();
+            if (cls.isArray()) {
+                copies.put(object, Array.newInstance(cls.getComponentType(), Array.getLength(object)));
+            } else if (fieldsByClass.get(cls).length != 0) {
+                copies.put(object, newInstance(cls, constructors));
+            }
+            // objects without recorded fields are immutable, they are shared
+        }
+        try {
+            for (int i = 0; i < objects.size(); i++) {
+                Object copy = copies.get(objects.get(i));
+                Object saved = contents.get(i);
+                if (copy == null) {
+                    continue;
+                }
+                if (copy instanceof Object[]) {
+                    Object[] elements = (Object[]) saved;
+                    for (int j = 0; j < elements.length; j++) {
+                        ((Object[]) copy)[j] = copyOf(copies, elements[j]);
+                    }
+                } else if (copy.getClass().isArray()) {
+                    System.arraycopy(saved, 0, copy, 0, Array.getLength(saved));
+                } else {
+                    Field[] fields = fieldsByClass.get(copy.getClass());
+                    Object[] values = (Object[]) saved;
+                    for (int j = 0; j < fields.length; j++) {
+                        fields[j].set(copy, copyOf(copies, values[j]));
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+
+        for (AID aid : applets.keys()) {
+            SimulatorRuntime.ApplicationInstance instance = applets.get(aid);
+            target.appletIndex.put(aid, new SimulatorRuntime.ApplicationInstance(aid,
+                    (Applet) copyOf(copies, instance.getApplet()), copyOf(copies, instance.getContext())));
+        }
+        target.loadFiles.putAll(loadFiles);
+        target.generatedLoadFileAIDs.putAll(generatedLoadFileAIDs);
+        HashMap<Object, TransientArraySet> deselectCopies = new HashMap<Object, TransientArraySet>();
+        for (Map.Entry<Object, TransientArraySet> entry : clearOnDeselect.entrySet()) {
+            deselectCopies.put(copyOf(copies, entry.getKey()), entry.getValue().copy(copies));
+        }
+        target.transientMemory.setArrays(deselectCopies, clearOnReset.copy(copies));
+        target.transientMemory.setUsedMemory(transientMemoryUsed);
+        target.persistentMemoryUsed = persistentMemoryUsed;
+        target.currentAID = currentAID;
+        target.previousAID = previousAID;
+        System.arraycopy(channelAIDs, 0, target.channelAIDs, 0, channelAIDs.length);
+        System.arraycopy(openChannels, 0, target.openChannels, 0, openChannels.length);
+        target.currentChannel = currentChannel;
+    }
+
+    private static Object copyOf(Map<Object, Object> copies, Object object) {
+        Object copy = copies.get(object);
+        return copy == null ? object : copy;
+    }
+
+    // creates an instance without calling a constructor of cls, like deserialization does
+    private static Object newInstance(Class<?> cls, Map<Class<?>, Constructor<?>> constructors) {
+        try {
+            Constructor<?> constructor = constructors.get(cls);
+            if (constructor == null) {
+                Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+                Object factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+                constructor = (Constructor<?>) factoryClass
+                        .getMethod("newConstructorForSerialization", Class.class, Constructor.class)
+                        .invoke(factory, cls, Object.class.getDeclaredConstructor());
+                constructor.setAccessible(true);
+                constructors.put(cls, constructor);
+            }
+            return constructor.newInstance();
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Instances of " + cls.getName() + " can not be copied", e);
+        }
+    }
+
+    private void captureGraph(ArrayList<Object> pending) {
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        try {
+            while (!pending.isEmpty()) {
+                Object object = pending.remove(pending.size() - 1);
+                if (!isRecorded(object) || visited.put(object, Boolean.TRUE) != null) {
+                    continue;
+                }
+                Class<?> cls = object.getClass();
+                Object saved;
+                if (cls.isArray()) {
+                    int length = Array.getLength(object);
+                    saved = Array.newInstance(cls.getComponentType(), length);
+                    System.arraycopy(object, 0, saved, 0, length);
+                    if (object instanceof Object[]) {
+                        for (Object element : (Object[]) object) {
+                            pending.add(element);
+                        }
+                    }
+                } else {
+                    Field[] fields = fieldsOf(cls);
+                    Object[] values = new Object[fields.length];
+                    for (int i = 0; i < fields.length; i++) {
+                        values[i] = fields[i].get(object);
+                        if (!fields[i].getType().isPrimitive()) {
+                            pending.add(values[i]);
+                        }
+                    }
+                    saved = values;
+                }
+                objects.add(object);
+                contents.add(saved);
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        }
+    }
+
+    private Field[] fieldsOf(Class<?> cls) {
+        Field[] fields = fieldsByClass.get(cls);
+        if (fields != null) {
+            return fields;
+        }
+        ArrayList<Field> list = new ArrayList<Field>();
+        try {
+            for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        list.add(field);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // fields can not be made accessible, treat instances as immutable
+            list.clear();
+        }
+        fields = list.toArray(new Field[list.size()]);
+        fieldsByClass.put(cls, fields);
+        return fields;
+    }
+
+    private static boolean isRecorded(Object object) {
+        if (object == null || object instanceof AID || object instanceof APDU
+                || object instanceof Enum || object instanceof SimulatorRuntime
+                || object instanceof TransientMemory) {
+            return false;
+        }
+        Class<?> cls = object.getClass();
+        if (cls.isArray()) {
+            return true;
+        }
+        String name = cls.getName();
+        return !name.startsWith("java.") && !name.startsWith("javax.");
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Write barriers of persistent memory.</p>
+ * <p><code>AppletClassInstrumenter</code> rewrites applet classes to call these methods
+ * for array stores and field writes. While no runtime has an open transaction and no entered
+ * runtime has a pending object deletion every barrier costs one volatile read. Otherwise the write is recorded in
+ * the journal of the active runtime, if that runtime has a transaction in progress, and
+ * reported to its object deletion mark.</p>
+ * <p>The methods are public only because instrumented classes live in other packages.
+ * They must not be called directly.</p>
+ * @see TransactionJournal
+ */
+public final class TransactionBarrier {
+    // number of transactions in progress and of entered runtimes with a pending object deletion
+    private static final AtomicInteger activeBarriers = new AtomicInteger(0);
+
+    private TransactionBarrier() {
+    }
+
+    /**
+     * Replaces <code>bastore</code>
+     * @param array <code>byte[]</code> or <code>boolean[]</code>
+     * @param index element index
+     * @param value new value
+     */
+    public static void bastore(Object array, int index, int value) {
+        if (activeBarriers.get() != 0) {
+            recordElement(array, index);
+        }
+        if (array instanceof byte[]) {
+            ((byte[]) array)[index] = (byte) value;
+        } else {
+            ((boolean[]) array)[index] = (value & 1) != 0;
+        }
+    }
+
+    /**
+     * Replaces <code>sastore</code>
+     * @param array array
+     * @param index element index
+     * @param value new value
+     */
+    public static void sastore(short[] array, int index, int value) {
+        if (activeBarriers.get() != 0) {
+            recordElement(array, index);
+        }
+        array[index] = (short) value;
+    }
+
+    /**
+     * Replaces <code>iastore</code>
+     * @param array array
+     * @param index element index
+     * @param value new value
+     */
+    public static void iastore(int[] array, int index, int value) {
+        if (activeBarriers.get() != 0) {
+            recordElement(array, index);
+        }
+        array[index] = value;
+    }
+
+    /**
+     * Replaces <code>aastore</code>
+     * @param array array
+     * @param index element index
+     * @param value new value
+     */
+    public static void aastore(Object[] array, int index, Object value) {
+        if (activeBarriers.get() != 0) {
+            recordElement(array, index);
+        }
+        array[index] = value;
+    }
+
+    /**
+     * Called before <code>putfield</code>
+     * @param target object written
+     * @param owner class named by the <code>putfield</code> instruction
+     * @param name field name
+     */
+    public static void putField(Object target, Class<?> owner, String name) {
+        if (activeBarriers.get() != 0 && target != null) {
+            recordField(target, owner, name);
+        }
+    }
+
+    /**
+     * Called before <code>putstatic</code>
+     * @param owner class named by the <code>putstatic</code> instruction
+     * @param name field name
+     */
+    public static void putStatic(Class<?> owner, String name) {
+        if (activeBarriers.get() != 0) {
+            recordField(null, owner, name);
+        }
+    }
+
+    /**
+     * Called before an atomic write of a byte array range, e.g. by <code>Util.arrayCopy</code>
+     * @param array destination array
+     * @param offset start of the written range
+     * @param length length of the written range
+     * @throws ArrayIndexOutOfBoundsException if a transaction is in progress and
+     * the range is outside of <code>array</code>
+     */
+    public static void arrayWrite(byte[] array, int offset, int length) {
+        if (activeBarriers.get() != 0) {
+            SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+            if (runtime != null) {
+                runtime.journalArrayRange(array, offset, length);
+            }
+        }
+    }
+
+    static void transactionOpened() {
+        activeBarriers.incrementAndGet();
+    }
+
+    static void transactionClosed() {
+        activeBarriers.decrementAndGet();
+    }
+
+    static void markStarted() {
+        activeBarriers.incrementAndGet();
+    }
+
+    static void markFinished() {
+        activeBarriers.decrementAndGet();
+    }
+
+    private static void recordElement(Object array, int index) {
+        SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+        if (runtime != null) {
+            runtime.objectWritten(array);
+            runtime.journalArrayElement(array, index);
+        }
+    }
+
+    private static void recordField(Object target, Class<?> owner, String name) {
+        SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+        if (runtime != null) {
+            runtime.objectWritten(target);
+            runtime.journalField(target, owner, name);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import javacard.framework.TransactionException;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Undo log of the persistent writes of one transaction.</p>
+ * <p>Each entry saves the old value of an array element, an array range or a field.
+ * Entries are stored in parallel primitive arrays that grow as needed and are reused
+ * by the next transaction. Saved array ranges share one byte pool, fields are looked up
+ * once per class and name.</p>
+ * <p>Every entry uses commit buffer space: the size of the saved data plus
+ * <code>ENTRY_OVERHEAD</code> bytes. References count as 2 bytes, like on a card.</p>
+ * <p>This class is not thread-safe, it is guarded by the lock of the runtime.</p>
+ */
+final class TransactionJournal {
+    /** commit buffer bytes used by an entry in addition to the saved data */
+    static final int ENTRY_OVERHEAD = 4;
+
+    private static final byte BYTE_ELEMENT = 0;
+    private static final byte BOOLEAN_ELEMENT = 1;
+    private static final byte SHORT_ELEMENT = 2;
+    private static final byte INT_ELEMENT = 3;
+    private static final byte REFERENCE_ELEMENT = 4;
+    private static final byte BYTE_RANGE = 5;
+    private static final byte PRIMITIVE_FIELD = 6;
+    private static final byte REFERENCE_FIELD = 7;
+
+    private byte[] kinds = new byte[16];
+    // array or object written, null for static fields
+    private Object[] targets = new Object[16];
+    // array index or range offset
+    private int[] offsets = new int[16];
+    // old primitive value
+    private long[] values = new long[16];
+    // old reference or Field
+    private Object[] saved = new Object[16];
+    // old value of reference fields
+    private Object[] savedReferences = new Object[16];
+    // saved array ranges, the value of a range entry is its offset and length in the pool
+    private byte[] rangePool = new byte[64];
+    private int rangePoolUsed;
+    // class named by a field write -> field name -> accessible field
+    private final Map<Class<?>, Map<String, Field>> fields = new HashMap<Class<?>, Map<String, Field>>();
+    private int size;
+    private int used;
+
+    /**
+     * @return commit buffer bytes used by this transaction
+     */
+    int getUsed() {
+        return used;
+    }
+
+    /**
+     * @return number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Save the element <code>index</code> of <code>array</code>
+     * @param array <code>byte[]</code>, <code>boolean[]</code>, <code>short[]</code>,
+     * <code>int[]</code> or <code>Object[]</code>
+     * @param index element index
+     * @param capacity commit buffer size
+     * @throws TransactionException <code>BUFFER_FULL</code> if the commit buffer is full
+     */
+    void recordElement(Object array, int index, int capacity) {
+        byte kind;
+        long value = 0;
+        Object reference = null;
+        int length;
+        if (array instanceof byte[]) {
+            kind = BYTE_ELEMENT;
+            value = ((byte[]) array)[index];
+            length = 1;
+        } else if (array instanceof short[]) {
+            kind = SHORT_ELEMENT;
+            value = ((short[]) array)[index];
+            length = 2;
+        } else if (array instanceof boolean[]) {
+            kind = BOOLEAN_ELEMENT;
+            value = ((boolean[]) array)[index] ? 1 : 0;
+            length = 1;
+        } else if (array instanceof int[]) {
+            kind = INT_ELEMENT;
+            value = ((int[]) array)[index];
+            length = 4;
+        } else if (array instanceof Object[]) {
+            kind = REFERENCE_ELEMENT;
+            reference = ((Object[]) array)[index];
+            length = 2;
+        } else {
+            return;
+        }
+        int entry = add(kind, array, index, length, capacity);
+        values[entry] = value;
+        saved[entry] = reference;
+    }
+
+    /**
+     * Save <code>length</code> bytes of <code>array</code> starting at <code>offset</code>
+     * @param array byte array
+     * @param offset start of the range
+     * @param length length of the range
+     * @param capacity commit buffer size
+     * @throws ArrayIndexOutOfBoundsException if the range is outside of <code>array</code>
+     * @throws TransactionException <code>BUFFER_FULL</code> if the commit buffer is full
+     */
+    void recordRange(byte[] array, int offset, int length, int capacity) {
+        if (length < 0) {
+            throw new ArrayIndexOutOfBoundsException(length);
+        }
+        if (rangePool.length - rangePoolUsed < length) {
+            byte[] newPool = new byte[Math.max(rangePool.length * 2, rangePoolUsed + length)];
+            System.arraycopy(rangePool, 0, newPool, 0, rangePoolUsed);
+            rangePool = newPool;
+        }
+        System.arraycopy(array, offset, rangePool, rangePoolUsed, length);
+        int entry = add(BYTE_RANGE, array, offset, length, capacity);
+        values[entry] = ((long) rangePoolUsed << 32) | length;
+        rangePoolUsed += length;
+    }
+
+    /**
+     * Return the field written by a <code>putfield</code> or <code>putstatic</code> instruction
+     * @param owner class named by the instruction
+     * @param name field name
+     * @return accessible field declared by <code>owner</code> or a superclass
+     * @throws NoSuchFieldError if there is no such field
+     */
+    Field getField(Class<?> owner, String name) {
+        Map<String, Field> ownerFields = fields.get(owner);
+        if (ownerFields == null) {
+            ownerFields = new HashMap<String, Field>();
+            fields.put(owner, ownerFields);
+        }
+        Field field = ownerFields.get(name);
+        if (field == null) {
+            field = findField(owner, name);
+            ownerFields.put(name, field);
+        }
+        return field;
+    }
+
+    private static Field findField(Class<?> owner, String name) {
+        for (Class<?> c = owner; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // declared by a superclass
+            }
+        }
+        throw new NoSuchFieldError(owner.getName() + "." + name);
+    }
+
+    /**
+     * Save the value of <code>field</code>
+     * @param target object, null for static fields
+     * @param field field to save, accessible
+     * @param capacity commit buffer size
+     * @throws TransactionException <code>BUFFER_FULL</code> if the commit buffer is full
+     */
+    void recordField(Object target, Field field, int capacity) throws IllegalAccessException {
+        Class<?> type = field.getType();
+        if (!type.isPrimitive()) {
+            Object reference = field.get(target);
+            int entry = add(REFERENCE_FIELD, target, 0, 2, capacity);
+            saved[entry] = field;
+            savedReferences[entry] = reference;
+            return;
+        }
+        long value;
+        int length;
+        if (type == boolean.class) {
+            value = field.getBoolean(target) ? 1 : 0;
+            length = 1;
+        } else if (type == float.class) {
+            value = Float.floatToRawIntBits(field.getFloat(target));
+            length = 4;
+        } else if (type == double.class) {
+            value = Double.doubleToRawLongBits(field.getDouble(target));
+            length = 8;
+        } else {
+            value = field.getLong(target);
+            length = type == byte.class ? 1 : (type == short.class || type == char.class) ? 2
+                    : type == int.class ? 4 : 8;
+        }
+        int entry = add(PRIMITIVE_FIELD, target, 0, length, capacity);
+        saved[entry] = field;
+        values[entry] = value;
+    }
+
+    /**
+     * Forget all entries, the writes become permanent
+     */
+    void clear() {
+        Arrays.fill(targets, 0, size, null);
+        Arrays.fill(saved, 0, size, null);
+        Arrays.fill(savedReferences, 0, size, null);
+        size = 0;
+        used = 0;
+        rangePoolUsed = 0;
+    }
+
+    /**
+     * Undo all writes in reverse order and forget all entries
+     */
+    void rollback() {
+        try {
+            for (int i = size - 1; i >= 0; i--) {
+                Object target = targets[i];
+                switch (kinds[i]) {
+                    case BYTE_ELEMENT:
+                        ((byte[]) target)[offsets[i]] = (byte) values[i];
+                        break;
+                    case BOOLEAN_ELEMENT:
+                        ((boolean[]) target)[offsets[i]] = values[i] != 0;
+                        break;
+                    case SHORT_ELEMENT:
+                        ((short[]) target)[offsets[i]] = (short) values[i];
+                        break;
+                    case INT_ELEMENT:
+                        ((int[]) target)[offsets[i]] = (int) values[i];
+                        break;
+                    case REFERENCE_ELEMENT:
+                        ((Object[]) target)[offsets[i]] = saved[i];
+                        break;
+                    case BYTE_RANGE:
+                        System.arraycopy(rangePool, (int) (values[i] >>> 32), target, offsets[i],
+                                (int) values[i]);
+                        break;
+                    case REFERENCE_FIELD:
+                        ((Field) saved[i]).set(target, savedReferences[i]);
+                        break;
+                    case PRIMITIVE_FIELD:
+                        restoreField((Field) saved[i], target, values[i]);
+                        break;
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Internal reflection error", e);
+        } finally {
+            clear();
+        }
+    }
+
+    private static void restoreField(Field field, Object target, long value) throws IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == boolean.class) {
+            field.setBoolean(target, value != 0);
+        } else if (type == byte.class) {
+            field.setByte(target, (byte) value);
+        } else if (type == short.class) {
+            field.setShort(target, (short) value);
+        } else if (type == char.class) {
+            field.setChar(target, (char) value);
+        } else if (type == int.class) {
+            field.setInt(target, (int) value);
+        } else if (type == float.class) {
+            field.setFloat(target, Float.intBitsToFloat((int) value));
+        } else if (type == double.class) {
+            field.setDouble(target, Double.longBitsToDouble(value));
+        } else {
+            field.setLong(target, value);
+        }
+    }
+
+    private int add(byte kind, Object target, int offset, int length, int capacity) {
+        int cost = length + ENTRY_OVERHEAD;
+        if (used + cost > capacity) {
+            TransactionException.throwIt(TransactionException.BUFFER_FULL);
+        }
+        if (size == kinds.length) {
+            grow();
+        }
+        int entry = size++;
+        used += cost;
+        kinds[entry] = kind;
+        targets[entry] = target;
+        offsets[entry] = offset;
+        return entry;
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2;
+        byte[] newKinds = new byte[capacity];
+        System.arraycopy(kinds, 0, newKinds, 0, size);
+        kinds = newKinds;
+        Object[] newTargets = new Object[capacity];
+        System.arraycopy(targets, 0, newTargets, 0, size);
+        targets = newTargets;
+        int[] newOffsets = new int[capacity];
+        System.arraycopy(offsets, 0, newOffsets, 0, size);
+        offsets = newOffsets;
+        long[] newValues = new long[capacity];
+        System.arraycopy(values, 0, newValues, 0, size);
+        values = newValues;
+        Object[] newSaved = new Object[capacity];
+        System.arraycopy(saved, 0, newSaved, 0, size);
+        saved = newSaved;
+        Object[] newSavedReferences = new Object[capacity];
+        System.arraycopy(savedReferences, 0, newSavedReferences, 0, size);
+        savedReferences = newSavedReferences;
+    }
+}
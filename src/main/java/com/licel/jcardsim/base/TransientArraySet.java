@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Set of transient arrays cleared by the same event.</p>
+ * <p>Arrays are compared by identity and held through weak references, so arrays
+ * that are no longer reachable drop out of the set by themselves. The arrays of
+ * each element type are linked together, so zeroing needs no type checks.</p>
+ * <p>This class is not thread-safe, it is guarded by the lock of the runtime.</p>
+ * @see TransientMemory
+ */
+final class TransientArraySet {
+    private static final int BYTE = 0;
+    private static final int SHORT = 1;
+    private static final int BOOLEAN = 2;
+    private static final int OBJECT = 3;
+    // objects that are not arrays of a Java Card type, never zeroed
+    private static final int OTHER = 4;
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+    // first entry of each element type
+    private final Entry[] heads = new Entry[OTHER + 1];
+    private Entry[] table = new Entry[16];
+    private int size;
+
+    /**
+     * Add <code>array</code> to the set
+     * @param array array to add
+     * @return true if <code>array</code> was not part of the set
+     */
+    boolean add(Object array) {
+        return add(array, null, true);
+    }
+
+    /**
+     * Add <code>array</code> to the set
+     * @param array array to add
+     * @param owner context owning <code>array</code>, may be null
+     * @param counted if false, <code>array</code> is not part of <code>getMemory()</code>
+     * @return true if <code>array</code> was not part of the set
+     */
+    boolean add(Object array, Object owner, boolean counted) {
+        if (array == null) {
+            throw new NullPointerException("array");
+        }
+        expungeStaleEntries();
+        int hash = hash(array);
+        int index = hash & (table.length - 1);
+        for (Entry e = table[index]; e != null; e = e.next) {
+            if (e.get() == array) {
+                return false;
+            }
+        }
+        Entry entry = new Entry(array, queue, hash, typeOf(array), owner, counted, table[index]);
+        table[index] = entry;
+        linkType(entry);
+        if (++size > table.length - (table.length >>> 2)) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * Add all arrays of <code>arrays</code> to the set
+     * @param arrays arrays to add
+     */
+    void addAll(Collection<?> arrays) {
+        for (Object array : arrays) {
+            add(array);
+        }
+    }
+
+    /**
+     * @param array array to look for
+     * @return true if this very array is part of the set
+     */
+    boolean contains(Object array) {
+        if (array == null) {
+            return false;
+        }
+        Entry[] tab = table;
+        for (Entry e = tab[hash(array) & (tab.length - 1)]; e != null; e = e.next) {
+            if (e.get() == array) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param array array to look for
+     * @return owner passed to <code>add</code> or null if <code>array</code> is not part of the set
+     */
+    Object getOwner(Object array) {
+        if (array == null) {
+            return null;
+        }
+        Entry[] tab = table;
+        for (Entry e = tab[hash(array) & (tab.length - 1)]; e != null; e = e.next) {
+            if (e.get() == array) {
+                return e.owner;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of arrays in the set that are still reachable
+     */
+    int size() {
+        expungeStaleEntries();
+        return size;
+    }
+
+    /**
+     * @return bytes used by the counted arrays of the set that are still reachable
+     * @see TransientMemory#sizeOf(Object)
+     */
+    long getMemory() {
+        expungeStaleEntries();
+        long bytes = 0;
+        for (Entry head : heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                if (e.counted) {
+                    bytes += TransientMemory.sizeOf(e.get());
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return new set holding the arrays of this set with their owners
+     */
+    TransientArraySet copy() {
+        TransientArraySet copy = new TransientArraySet();
+        copy.addAll(this);
+        return copy;
+    }
+
+    /**
+     * @param replacements arrays and owners to replace, others are kept
+     * @return new set holding the arrays of this set with their owners, replaced by <code>replacements</code>
+     */
+    TransientArraySet copy(Map<Object, Object> replacements) {
+        TransientArraySet copy = new TransientArraySet();
+        expungeStaleEntries();
+        for (Entry head : heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                Object array = e.get();
+                if (array != null) {
+                    copy.add(replace(replacements, array), replace(replacements, e.owner), e.counted);
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static Object replace(Map<Object, Object> replacements, Object object) {
+        Object replacement = replacements.get(object);
+        return replacement == null ? object : replacement;
+    }
+
+    /**
+     * Add the arrays of <code>other</code> with their owners
+     * @param other set to copy from
+     */
+    void addAll(TransientArraySet other) {
+        other.expungeStaleEntries();
+        for (Entry head : other.heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                Object array = e.get();
+                if (array != null) {
+                    add(array, e.owner, e.counted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add all arrays of the set to <code>target</code>
+     * @param target collection to add to
+     */
+    void copyTo(Collection<Object> target) {
+        expungeStaleEntries();
+        for (Entry head : heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                Object array = e.get();
+                if (array != null) {
+                    target.add(array);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return new list holding all arrays of the set
+     */
+    List<Object> toList() {
+        expungeStaleEntries();
+        ArrayList<Object> list = new ArrayList<Object>(size);
+        for (Entry head : heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                Object array = e.get();
+                if (array != null) {
+                    list.add(array);
+                }
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Remove all arrays from the set
+     */
+    void clear() {
+        for (Entry head : heads) {
+            for (Entry e = head; e != null; e = e.nextOfType) {
+                // a cleared reference is not enqueued any more
+                e.clear();
+            }
+        }
+        Arrays.fill(table, null);
+        Arrays.fill(heads, null);
+        size = 0;
+        while (queue.poll() != null) {
+            // drain
+        }
+    }
+
+    /**
+     * Set all elements of all arrays to their default value
+     */
+    void zero() {
+        expungeStaleEntries();
+        for (Entry e = heads[BYTE]; e != null; e = e.nextOfType) {
+            byte[] array = (byte[]) e.get();
+            if (array != null) {
+                Arrays.fill(array, (byte) 0);
+            }
+        }
+        for (Entry e = heads[SHORT]; e != null; e = e.nextOfType) {
+            short[] array = (short[]) e.get();
+            if (array != null) {
+                Arrays.fill(array, (short) 0);
+            }
+        }
+        for (Entry e = heads[BOOLEAN]; e != null; e = e.nextOfType) {
+            boolean[] array = (boolean[]) e.get();
+            if (array != null) {
+                Arrays.fill(array, false);
+            }
+        }
+        for (Entry e = heads[OBJECT]; e != null; e = e.nextOfType) {
+            Object[] array = (Object[]) e.get();
+            if (array != null) {
+                Arrays.fill(array, null);
+            }
+        }
+    }
+
+    private static int hash(Object array) {
+        int h = System.identityHashCode(array);
+        return h ^ (h >>> 16);
+    }
+
+    private static int typeOf(Object array) {
+        if (array instanceof byte[]) {
+            return BYTE;
+        } else if (array instanceof short[]) {
+            return SHORT;
+        } else if (array instanceof boolean[]) {
+            return BOOLEAN;
+        } else if (array instanceof Object[]) {
+            return OBJECT;
+        }
+        return OTHER;
+    }
+
+    private void linkType(Entry entry) {
+        Entry head = heads[entry.type];
+        entry.nextOfType = head;
+        if (head != null) {
+            head.previousOfType = entry;
+        }
+        heads[entry.type] = entry;
+    }
+
+    private void unlinkType(Entry entry) {
+        if (entry.previousOfType != null) {
+            entry.previousOfType.nextOfType = entry.nextOfType;
+        } else {
+            heads[entry.type] = entry.nextOfType;
+        }
+        if (entry.nextOfType != null) {
+            entry.nextOfType.previousOfType = entry.previousOfType;
+        }
+        entry.previousOfType = null;
+        entry.nextOfType = null;
+    }
+
+    private void resize() {
+        Entry[] newTable = new Entry[table.length * 2];
+        for (Entry bucket : table) {
+            Entry e = bucket;
+            while (e != null) {
+                Entry next = e.next;
+                int index = e.hash & (newTable.length - 1);
+                e.next = newTable[index];
+                newTable[index] = e;
+                e = next;
+            }
+        }
+        table = newTable;
+    }
+
+    private void expungeStaleEntries() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry stale = (Entry) ref;
+            int index = stale.hash & (table.length - 1);
+            Entry previous = null;
+            for (Entry e = table[index]; e != null; previous = e, e = e.next) {
+                if (e == stale) {
+                    if (previous == null) {
+                        table[index] = e.next;
+                    } else {
+                        previous.next = e.next;
+                    }
+                    e.next = null;
+                    unlinkType(e);
+                    size--;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static final class Entry extends WeakReference<Object> {
+        final int hash;
+        final int type;
+        final Object owner;
+        final boolean counted;
+        // next entry of the same hash bucket
+        Entry next;
+        // neighbours with the same element type
+        Entry previousOfType;
+        Entry nextOfType;
+
+        Entry(Object array, ReferenceQueue<Object> queue, int hash, int type, Object owner, boolean counted,
+              Entry next) {
+            super(array, queue);
+            this.hash = hash;
+            this.type = type;
+            this.owner = owner;
+            this.counted = counted;
+            this.next = next;
+        }
+    }
+}
@@ -15,21 +15,56 @@
  */
 package com.licel.jcardsim.base;
 
+import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
+
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-
-import javacard.framework.JCSystem;
-import javacard.framework.SystemException;
+import java.util.Map;
 
 /**
  * Basic implementation of storage transient memory of JCRE.
+ * <p>Transient arrays are only weakly referenced, arrays that are no longer
+ * reachable are forgotten without waiting for <code>forgetBuffers()</code>.</p>
+ * <p><code>CLEAR_ON_DESELECT</code> arrays are kept per owning context, so deselecting
+ * an applet only clears the arrays of its own context.</p>
+ * <p>The bytes of the arrays created for applets are counted per event and limited by the sizes
+ * set with <code>setLimits</code>. Arrays of jCardSim's own objects are not counted,
+ * see <code>makeInternalByteArray</code>.</p>
  */
 public class TransientMemory {
-    /** List of <code>CLEAR_ON_DESELECT</code> arrays */
+    /**
+     * List of <code>CLEAR_ON_DESELECT</code> arrays
+     * @deprecated arrays are tracked weakly per context and no longer added to this list.
+     * Arrays added by subclasses are still zeroed and reported by <code>isTransient</code>.
+     */
+    @Deprecated
     protected final ArrayList<Object> clearOnDeselect = new ArrayList<Object>();
-    /** List of <code>CLEAR_ON_RESET</code> arrays */
+    /**
+     * List of <code>CLEAR_ON_RESET</code> arrays
+     * @deprecated arrays are tracked weakly and no longer added to this list.
+     * Arrays added by subclasses are still zeroed and reported by <code>isTransient</code>.
+     */
+    @Deprecated
     protected final ArrayList<Object> clearOnReset = new ArrayList<Object>();
+    /** <code>CLEAR_ON_DESELECT</code> arrays by owning context, the key <code>null</code> holds unowned arrays */
+    final Map<Object, TransientArraySet> deselectArrays = new HashMap<Object, TransientArraySet>();
+    /** <code>CLEAR_ON_RESET</code> arrays */
+    final TransientArraySet resetArrays = new TransientArraySet();
+    /** <code>CLEAR_ON_DESELECT</code> arrays of all contexts, each with its owning context */
+    final TransientArraySet deselectIndex = new TransientArraySet();
+    /** context owning new arrays */
+    private Object context;
+    /** bytes of <code>CLEAR_ON_RESET</code> arrays created */
+    private long usedOnReset;
+    /** bytes of <code>CLEAR_ON_DESELECT</code> arrays created */
+    private long usedOnDeselect;
+    /** available bytes for <code>CLEAR_ON_RESET</code> arrays */
+    private int limitOnReset = MemoryProfile.UNLIMITED_SIZE;
+    /** available bytes for <code>CLEAR_ON_DESELECT</code> arrays */
+    private int limitOnDeselect = MemoryProfile.UNLIMITED_SIZE;
 
     /**
      * @see javacard.framework.JCSystem#makeTransientBooleanArray(short, byte)
@@ -79,32 +114,146 @@ public class TransientMemory {
         return array;
     }
 
+    /**
+     * Create a transient byte array for an object of jCardSim itself, e.g. the IV of a cipher.
+     * The array is cleared like the arrays of applets but its memory is not counted,
+     * as the card implements such objects in native code.
+     * @param length the length of the array
+     * @param event the <code>CLEAR_ON...</code> event which causes the array elements to be cleared
+     * @return the new transient array
+     */
+    public byte[] makeInternalByteArray(int length, byte event) {
+        byte[] array = new byte[length];
+        storeArray(array, event, false);
+        return array;
+    }
+
     /**
      * @see javacard.framework.JCSystem#isTransient(Object)
      * @param theObj the object being queried
      * @return <code>NOT_A_TRANSIENT_OBJECT</code>, <code>CLEAR_ON_RESET</code>, or <code>CLEAR_ON_DESELECT</code>
      */
+    @SuppressWarnings("deprecation")
     public byte isTransient(Object theObj) {
-        if (clearOnDeselect.contains(theObj)) {
+        if (resetArrays.contains(theObj)) {
+            return JCSystem.CLEAR_ON_RESET;
+        }
+        if (deselectIndex.contains(theObj)) {
+            return JCSystem.CLEAR_ON_DESELECT;
+        }
+        if (!clearOnDeselect.isEmpty() && clearOnDeselect.contains(theObj)) {
             return JCSystem.CLEAR_ON_DESELECT;
-        } else if (clearOnReset.contains(theObj)) {
+        } else if (!clearOnReset.isEmpty() && clearOnReset.contains(theObj)) {
             return JCSystem.CLEAR_ON_RESET;
         }
         return JCSystem.NOT_A_TRANSIENT_OBJECT;
     }
 
+    /**
+     * @param array <code>CLEAR_ON_DESELECT</code> array
+     * @return context owning <code>array</code>, null if it is unowned or not a <code>CLEAR_ON_DESELECT</code> array
+     */
+    Object getContext(Object array) {
+        return deselectIndex.getOwner(array);
+    }
+
+    /**
+     * Set the context that owns arrays created from now on
+     * @param context owning context, e.g. the <code>LoadFile</code> of the running applet, or null
+     * @return the previous context
+     */
+    Object setContext(Object context) {
+        Object previous = this.context;
+        this.context = context;
+        return previous;
+    }
+
+    /**
+     * Set the memory sizes. Arrays created before are still counted.
+     * @param onReset bytes available for <code>CLEAR_ON_RESET</code> arrays
+     * @param onDeselect bytes available for <code>CLEAR_ON_DESELECT</code> arrays
+     */
+    void setLimits(int onReset, int onDeselect) {
+        limitOnReset = onReset;
+        limitOnDeselect = onDeselect;
+    }
+
+    /**
+     * @see javacard.framework.JCSystem#getAvailableMemory(byte)
+     * @param event <code>CLEAR_ON_RESET</code> or <code>CLEAR_ON_DESELECT</code>
+     * @return bytes left for arrays cleared on <code>event</code>
+     */
+    public int getAvailableMemory(byte event) {
+        switch (event) {
+            case JCSystem.CLEAR_ON_RESET:
+                return (int) Math.max(0, limitOnReset - usedOnReset);
+            case JCSystem.CLEAR_ON_DESELECT:
+                return (int) Math.max(0, limitOnDeselect - usedOnDeselect);
+            default:
+                SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+                return 0;
+        }
+    }
+
+    /**
+     * @return bytes of <code>CLEAR_ON_RESET</code> and <code>CLEAR_ON_DESELECT</code> arrays created
+     */
+    long[] getUsedMemory() {
+        return new long[]{usedOnReset, usedOnDeselect};
+    }
+
+    /**
+     * @param used bytes as returned by <code>getUsedMemory()</code>
+     */
+    void setUsedMemory(long[] used) {
+        usedOnReset = used[0];
+        usedOnDeselect = used[1];
+    }
+
+    /**
+     * Count the bytes of the arrays that are still reachable, memory of collected arrays
+     * becomes available again
+     */
+    void recountUsedMemory() {
+        usedOnReset = resetArrays.getMemory();
+        usedOnDeselect = 0;
+        for (TransientArraySet arrays : deselectArrays.values()) {
+            usedOnDeselect += arrays.getMemory();
+        }
+    }
+
     /**
      * Store <code>arrayRef</code> in memory depends by event type
      * @param arrayRef array reference
      * @param event event type
+     * @throws SystemException <code>NO_RESOURCE</code> if there is not enough memory for <code>arrayRef</code>
      */
     protected void storeArray(Object arrayRef, byte event) {
+        storeArray(arrayRef, event, true);
+    }
+
+    private void storeArray(Object arrayRef, byte event, boolean counted) {
+        int size = counted ? sizeOf(arrayRef) : 0;
         switch (event) {
             case JCSystem.CLEAR_ON_DESELECT:
-                clearOnDeselect.add(arrayRef);
+                if (size > limitOnDeselect - usedOnDeselect) {
+                    SystemException.throwIt(SystemException.NO_RESOURCE);
+                }
+                usedOnDeselect += size;
+                TransientArraySet arrays = deselectArrays.get(context);
+                if (arrays == null) {
+                    arrays = new TransientArraySet();
+                    deselectArrays.put(context, arrays);
+                }
+                arrays.add(arrayRef, context, counted);
+                deselectIndex.add(arrayRef, context, counted);
                 break;
             case JCSystem.CLEAR_ON_RESET:
-                clearOnReset.add(arrayRef);
+                if (size > limitOnReset - usedOnReset) {
+                    SystemException.throwIt(SystemException.NO_RESOURCE);
+                }
+                usedOnReset += size;
+                resetArrays.add(arrayRef, null, counted);
                 break;
             default:
                 SystemException.throwIt(SystemException.ILLEGAL_VALUE);
@@ -112,9 +261,49 @@ public class TransientMemory {
     }
 
     /**
-     * Zero <code>CLEAR_ON_DESELECT</code> buffers
+     * @param array transient array
+     * @return bytes used by <code>array</code> on a card
+     */
+    static int sizeOf(Object array) {
+        if (array instanceof byte[]) {
+            return ((byte[]) array).length;
+        } else if (array instanceof boolean[]) {
+            return ((boolean[]) array).length;
+        } else if (array instanceof short[]) {
+            return ((short[]) array).length * 2;
+        } else if (array instanceof Object[]) {
+            return ((Object[]) array).length * 2;
+        }
+        return 0;
+    }
+
+    /**
+     * Zero <code>CLEAR_ON_DESELECT</code> buffers of all contexts
      */
+    @SuppressWarnings("deprecation")
     protected void clearOnDeselect() {
+        for (TransientArraySet arrays : deselectArrays.values()) {
+            arrays.zero();
+        }
+        zero(clearOnDeselect);
+    }
+
+    /**
+     * Zero <code>CLEAR_ON_DESELECT</code> buffers of <code>context</code> and unowned buffers
+     * @param context context of the deselected applet
+     */
+    @SuppressWarnings("deprecation")
+    protected void clearOnDeselect(Object context) {
+        TransientArraySet arrays = deselectArrays.get(context);
+        if (arrays != null) {
+            arrays.zero();
+        }
+        if (context != null) {
+            arrays = deselectArrays.get(null);
+            if (arrays != null) {
+                arrays.zero();
+            }
+        }
         zero(clearOnDeselect);
     }
 
@@ -122,24 +311,37 @@ public class TransientMemory {
      * Zero <code>CLEAR_ON_RESET</code> and <code>CLEAR_ON_DESELECT</code>
      * buffers
      */
+    @SuppressWarnings("deprecation")
     protected void clearOnReset() {
-        zero(clearOnDeselect);
+        clearOnDeselect();
+        resetArrays.zero();
         zero(clearOnReset);
     }
 
     /**
-     * Perform <code>clearOnReset</code> and forget all buffers
+     * Perform <code>clearOnReset</code> and forget all buffers, their memory becomes available again
      */
+    @SuppressWarnings("deprecation")
     protected void forgetBuffers() {
         clearOnReset();
+        for (TransientArraySet arrays : deselectArrays.values()) {
+            arrays.clear();
+        }
+        deselectArrays.clear();
+        deselectIndex.clear();
+        resetArrays.clear();
         clearOnDeselect.clear();
         clearOnReset.clear();
+        usedOnReset = 0;
+        usedOnDeselect = 0;
     }
 
     /**
      * Zero all arrays in list
      * @param list list of arrays
+     * @deprecated transient arrays are zeroed by <code>clearOnDeselect()</code> and <code>clearOnReset()</code>
      */
+    @Deprecated
     protected void zero(List<Object> list) {
         for (Object obj : list) {
             if (obj instanceof byte[]) {
@@ -152,11 +354,35 @@ public class TransientMemory {
                 Arrays.fill((Object[])obj, null);
             }
             else if (obj instanceof boolean[]) {
-                boolean[] array = (boolean[]) obj;
-                for (int i = 0; i < array.length; ++i) {
-                    array[i] = false;
-                }
+                Arrays.fill((boolean[]) obj, false);
             }
         }
     }
+
+    /**
+     * @return copies of the <code>CLEAR_ON_DESELECT</code> array sets of each context
+     */
+    Map<Object, TransientArraySet> copyDeselectArrays() {
+        HashMap<Object, TransientArraySet> result = new HashMap<Object, TransientArraySet>();
+        for (Map.Entry<Object, TransientArraySet> entry : deselectArrays.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().copy());
+        }
+        return result;
+    }
+
+    /**
+     * Replace all transient arrays, the given sets are copied
+     * @param arraysByContext <code>CLEAR_ON_DESELECT</code> arrays as returned by <code>copyDeselectArrays()</code>
+     * @param onReset <code>CLEAR_ON_RESET</code> arrays
+     */
+    void setArrays(Map<Object, TransientArraySet> arraysByContext, TransientArraySet onReset) {
+        deselectArrays.clear();
+        deselectIndex.clear();
+        for (Map.Entry<Object, TransientArraySet> entry : arraysByContext.entrySet()) {
+            deselectArrays.put(entry.getKey(), entry.getValue().copy());
+            deselectIndex.addAll(entry.getValue());
+        }
+        resetArrays.clear();
+        resetArrays.addAll(onReset);
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Enforces the <code>ExecutionBudget</code> of a command.</p>
+ * <p><code>AppletClassInstrumenter</code> adds a call of <code>backEdge</code> before every
+ * backward branch of applet methods. While no runtime processes a command with a limited
+ * budget the call costs one volatile read. Otherwise the branch is counted by the active
+ * runtime, which throws <code>BudgetExceededError</code> once the budget is exceeded.
+ * The error is thrown again at every following branch, so loops catching it terminate too.</p>
+ * <p>The methods are public only because instrumented classes live in other packages.
+ * They must not be called directly.</p>
+ * @see ExecutionBudget
+ */
+public final class Watchdog {
+    // number of commands with a limited budget in progress
+    private static final AtomicInteger activeBudgets = new AtomicInteger(0);
+
+    private Watchdog() {
+    }
+
+    /**
+     * Called before a backward branch
+     */
+    public static void backEdge() {
+        if (activeBudgets.get() != 0) {
+            SimulatorRuntime runtime = SimulatorSystem.currentInstance();
+            if (runtime != null) {
+                runtime.backEdge();
+            }
+        }
+    }
+
+    static void budgetStarted() {
+        activeBudgets.incrementAndGet();
+    }
+
+    static void budgetFinished() {
+        activeBudgets.decrementAndGet();
+    }
+
+    /**
+     * Thrown into an applet exceeding its budget. It is an <code>Error</code>, so it is
+     * not caught by applets handling exceptions.
+     */
+    static final class BudgetExceededError extends Error {
+        BudgetExceededError() {
+            super("Execution budget exceeded");
+        }
+    }
+}
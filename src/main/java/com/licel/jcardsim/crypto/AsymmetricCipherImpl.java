@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
@@ -69,7 +70,7 @@ public class AsymmetricCipherImpl extends Cipher {
         }
         KeyWithParameters key = (KeyWithParameters) theKey;
         engine.init(theMode == MODE_ENCRYPT, key.getParameters());
-        buffer = JCSystem.makeTransientByteArray((short) engine.getInputBlockSize(), JCSystem.CLEAR_ON_DESELECT);
+        buffer = SimulatorSystem.makeInternalTransientArray(engine.getInputBlockSize(), JCSystem.CLEAR_ON_DESELECT);
         bufferPos = 0;
         isInitialized = true;
     }
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import java.lang.reflect.Field;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
@@ -173,7 +174,7 @@ public class AsymmetricSignatureImpl extends Signature implements SignatureMessa
         if (!isInitialized) {
             CryptoException.throwIt(CryptoException.INVALID_INIT);
         }
-        preSig = JCSystem.makeTransientByteArray(sigLength, JCSystem.CLEAR_ON_RESET);
+        preSig = SimulatorSystem.makeInternalTransientArray(sigLength, JCSystem.CLEAR_ON_RESET);
         Util.arrayCopyNonAtomic(sigAndRecDataBuff, buffOffset, preSig, (short) 0, sigLength);
         try {
             ((SignerWithRecovery) engine).updateWithRecoveredMessage(preSig);
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import java.math.BigInteger;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
@@ -109,10 +110,10 @@ public final class ByteContainer {
         if (data == null) {
             switch (memoryType) {
                 case JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT:
-                    data = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_DESELECT);
+                    data = SimulatorSystem.makeInternalTransientArray(length, JCSystem.CLEAR_ON_DESELECT);
                     break;
                 case JCSystem.MEMORY_TYPE_TRANSIENT_RESET:
-                    data = JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_DESELECT);
+                    data = SimulatorSystem.makeInternalTransientArray(length, JCSystem.CLEAR_ON_DESELECT);
                     break;
                 default:
                     data = new byte[length];
@@ -144,7 +145,7 @@ public final class ByteContainer {
         if (length == 0) {
             CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
         }
-        byte[] result = JCSystem.makeTransientByteArray(length, event);
+        byte[] result = SimulatorSystem.makeInternalTransientArray(length, event);
         getBytes(result, (short) 0);
         return result;
     }
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.Checksum;
@@ -32,7 +33,7 @@ public class CRC16 extends Checksum {
     private byte crc16[];
 
     public CRC16() {
-        crc16 = JCSystem.makeTransientByteArray(LENGTH, JCSystem.CLEAR_ON_DESELECT);
+        crc16 = SimulatorSystem.makeInternalTransientArray(LENGTH, JCSystem.CLEAR_ON_DESELECT);
     }
 
     public byte getAlgorithm() {
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.Checksum;
@@ -35,7 +36,7 @@ public class CRC32 extends Checksum {
     };
 
     public CRC32() {
-        crc32 = JCSystem.makeTransientByteArray(LENGTH, JCSystem.CLEAR_ON_DESELECT);
+        crc32 = SimulatorSystem.makeInternalTransientArray(LENGTH, JCSystem.CLEAR_ON_DESELECT);
     }
 
     public byte getAlgorithm() {
@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.crypto;
 
+import com.licel.jcardsim.base.SimulatorSystem;
 import javacard.framework.JCSystem;
 import javacard.framework.Util;
 import javacard.security.CryptoException;
@@ -67,7 +68,7 @@ public class SymmetricCipherImpl extends Cipher {
                 break;
         }
         selectCipherEngine(theKey);
-        byte[] iv = JCSystem.makeTransientByteArray(bLen, JCSystem.CLEAR_ON_RESET);
+        byte[] iv = SimulatorSystem.makeInternalTransientArray(bLen, JCSystem.CLEAR_ON_RESET);
         Util.arrayCopyNonAtomic(bArray, bOff, iv, (short) 0, bLen);
         engine.init(theMode == MODE_ENCRYPT, new ParametersWithIV(((SymmetricKeyImpl) theKey).getParameters(), iv));
         isInitialized = true;
@@ -90,6 +90,20 @@ public class AIDProxy {
         }
     }
 
+    /**
+     * Returns a hash code consistent with <code>equals(Object)</code>.
+     * The value is computed like <code>java.util.Arrays.hashCode(byte[])</code> over the AID bytes,
+     * so it can also be computed for AID bytes contained in a buffer.
+     * @return hash code of the AID bytes
+     */
+    public final int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < aid.length; i++) {
+            hash = 31 * hash + aid[i];
+        }
+        return hash;
+    }
+
     /**
      * Checks if the specified AID bytes in <code>bArray</code> are the same as those encapsulated
      * in <code>this</code> <code>AID</code> object.
@@ -18,12 +18,9 @@ package com.licel.jcardsim.framework;
 import com.licel.jcardsim.base.ApduCase;
 import com.licel.jcardsim.base.SimulatorSystem;
 import com.licel.jcardsim.utils.ByteUtil;
-import java.lang.reflect.Field;
 import java.util.Arrays;
-import javacard.framework.APDU;
 import javacard.framework.APDUException;
 import javacard.framework.ISO7816;
-import javacard.framework.Util;
 
 /**
  * Implementation for <code>APDU</code>
@@ -82,13 +79,15 @@ public class APDUProxy {
     private final byte[] buffer;
     // extended APDU flag
     private final boolean extended;
+    // end of the part of buffer that was used since the last full clear
+    private int dirtyLength;
 
     APDUProxy(boolean extended) {
         this.extended = extended;
         buffer = new byte[extended ? BUFFER_EXTENDED_SIZE : BUFFER_SIZE];
         ramVars = new short[RAM_VARS_LENGTH];
         flags = new boolean[FLAGS_LENGTH];
-        internalReset(javacard.framework.APDU.PROTOCOL_T0, ApduCase.Case1, null);
+        internalReset(javacard.framework.APDU.PROTOCOL_T0, ApduCase.Case1, null, 0);
     }
 
     /**
@@ -152,8 +151,7 @@ public class APDUProxy {
      * @see <CODE>PROTOCOL_T0</CODE>
      */
     public static byte getProtocol() {
-        APDU apdu = SimulatorSystem.instance().getCurrentAPDU();
-        return (byte)((short[])getFieldInternal(apdu,"ramVars"))[ACTIVE_PROTOCOL];
+        return (byte) currentAPDUProxy().ramVars[ACTIVE_PROTOCOL];
     }
 
     /**
@@ -386,11 +384,21 @@ public class APDUProxy {
         if (len == 0) {
             return;
         }
+        send(buffer, bOff, len);
+    }
+
+    /**
+     * Pass <code>len</code> bytes of <code>data</code> to the runtime and update the outgoing state
+     */
+    private void send(byte[] data, short bOff, short len) {
         short Lr = ramVars[LR];
         if (len > Lr) {
             APDUException.throwIt(APDUException.ILLEGAL_USE);
         }
-        SimulatorSystem.instance().sendAPDU(buffer, bOff, len);
+        if (data == buffer && bOff + len > dirtyLength) {
+            dirtyLength = bOff + len;
+        }
+        SimulatorSystem.instance().sendAPDU(data, bOff, len);
 
         Lr -= len;
         if (Lr == 0) {
@@ -451,16 +459,17 @@ public class APDUProxy {
      */
     public void sendBytesLong(byte outData[], short bOff, short len)
             throws APDUException, SecurityException {
-        int sendLength = buffer.length;
-        while (len > 0) {
-            if (len < sendLength) {
-                sendLength = len;
-            }
-            Util.arrayCopy(outData, bOff, buffer, (short) 0, (short)sendLength);
-            sendBytes((short) 0, (short)sendLength);
-            len -= sendLength;
-            bOff += sendLength;
+        if (len <= 0) {
+            return;
+        }
+        if (bOff < 0 || bOff + len > outData.length) {
+            throw new ArrayIndexOutOfBoundsException();
+        }
+        if (!flags[OUTGOING_LEN_SET_FLAG] || flags[NO_GET_RESPONSE_FLAG]) {
+            APDUException.throwIt(APDUException.ILLEGAL_USE);
         }
+        // no need to stage the data in the APDU buffer
+        send(outData, bOff, len);
     }
 
     /**
@@ -530,8 +539,8 @@ public class APDUProxy {
     public static javacard.framework.APDU getCurrentAPDU()
             throws SecurityException {
         javacard.framework.APDU currentAPDU = SimulatorSystem.instance().getCurrentAPDU();
-        
-        if (!((boolean[])getFieldInternal(currentAPDU, "flags"))[ACCESS_ALLOWED_FLAG]) {
+
+        if (!((APDUProxy) (Object) currentAPDU).flags[ACCESS_ALLOWED_FLAG]) {
             throw new SecurityException("getCurrentAPDU must not be called outside of Applet#process()");
         }
         return currentAPDU;
@@ -572,8 +581,7 @@ public class APDUProxy {
      * @return logical channel number, if present, within the CLA byte, 0 otherwise
      */
     public static byte getCLAChannel() {
-        javacard.framework.APDU apdu = SimulatorSystem.instance().getCurrentAPDU();
-        return (byte)((short[])getFieldInternal(apdu,"ramVars"))[LOGICAL_CHN];
+        return SimulatorSystem.instance().getAssignedChannel();
     }
 
     /**
@@ -593,8 +601,7 @@ public class APDUProxy {
      */
     public static void waitExtension()
             throws APDUException {
-        javacard.framework.APDU apdu = SimulatorSystem.instance().getCurrentAPDU();
-        boolean[] apduFlags = (boolean[])getFieldInternal(apdu, "flags");
+        boolean[] apduFlags = currentAPDUProxy().flags;
         if (!apduFlags[ACCESS_ALLOWED_FLAG] || apduFlags[NO_CHAINING_FLAG]) {
             APDUException.throwIt(APDUException.ILLEGAL_USE);
         }
@@ -700,18 +707,29 @@ public class APDUProxy {
 
     /**
      * clear internal state of the APDU
-     * called by SimulatorRuntime via reflection
+     * called by SimulatorRuntime
+     * @see InternalAPDU
      */
-    private void internalReset(byte protocol, ApduCase apduCase, byte[] inputBuffer) {
+    private void internalReset(byte protocol, ApduCase apduCase, byte[] inputBuffer, int inputLength) {
         if (inputBuffer == null) {
             flags[ACCESS_ALLOWED_FLAG] = false;
             ramVars[ACTIVE_PROTOCOL] = protocol;
             return;
         }
 
-        Arrays.fill(buffer, (byte) 0);
+        // the first BUFFER_SIZE bytes are always cleared, beyond that everything up to
+        // the longest command or sent range since the last internalClearBuffer. The mark
+        // only grows, so an applet that reuses the area of an earlier long command as
+        // scratch space without sending it still gets a cleared buffer.
+        final int clearEnd = Math.min(buffer.length, Math.max(dirtyLength, BUFFER_SIZE));
+        if (clearEnd > inputLength) {
+            Arrays.fill(buffer, inputLength, clearEnd, (byte) 0);
+        }
+        if (inputLength > dirtyLength) {
+            dirtyLength = inputLength;
+        }
         Arrays.fill(ramVars, (short) 0);
-        System.arraycopy(inputBuffer, 0, buffer, 0, inputBuffer.length);
+        System.arraycopy(inputBuffer, 0, buffer, 0, inputLength);
         for(byte i=0;i<flags.length;i++) {flags[i]=false;}
 
         flags[ACCESS_ALLOWED_FLAG] = true;
@@ -757,15 +775,48 @@ public class APDUProxy {
         ramVars[LC] = ramVars[REMAINING_BYTES] = lc;
         ramVars[LE] = le;
     }
+
+    /**
+     * clear the whole buffer
+     * called by SimulatorRuntime
+     * @see InternalAPDU
+     */
+    private void internalClearBuffer() {
+        Arrays.fill(buffer, (byte) 0);
+        dirtyLength = 0;
+    }
     
-    private static Object getFieldInternal(APDU apdu, String fieldName){
-        try {
-            Field f = APDU.class.getDeclaredField(fieldName);
-            f.setAccessible(true);
-            return f.get(apdu);
-        } catch (Exception e){
-            throw new RuntimeException("Internal reflection error", e);
+    /**
+     * @return the current APDU, <code>JavaCardApiProcessor</code> turns the cast into a cast to <code>APDU</code>
+     */
+    private static APDUProxy currentAPDUProxy() {
+        return (APDUProxy) (Object) SimulatorSystem.instance().getCurrentAPDU();
+    }
+
+    /**
+     * Runtime side handle of an APDU.
+     * <p><code>JavaCardApiProcessor</code> copies this class to <code>APDU$Internal</code>;
+     * <code>SimulatorRuntime</code> creates it through its package-private constructor,
+     * so neither the class nor its methods are visible to applets.</p>
+     */
+    static final class Internal implements InternalAPDU {
+        private final APDUProxy apdu;
+
+        Internal(boolean extended) {
+            apdu = new APDUProxy(extended);
+        }
+
+        public javacard.framework.APDU getAPDU() {
+            return (javacard.framework.APDU) (Object) apdu;
+        }
+
+        public void internalReset(byte protocol, ApduCase apduCase, byte[] inputBuffer, int inputLength) {
+            apdu.internalReset(protocol, apduCase, inputBuffer, inputLength);
+        }
+
+        public void internalClearBuffer() {
+            apdu.internalClearBuffer();
         }
     }
-    
+
 }
@@ -15,6 +15,8 @@
  */
 package com.licel.jcardsim.framework;
 
+import com.licel.jcardsim.base.SimulatorSystem;
+
 /**
  * ProxyClass for <code>CardException</code>
  * @see CardException
@@ -61,6 +63,19 @@ public class CardExceptionProxy extends Exception {
      */
     public static void throwIt(short reason)
             throws CardExceptionProxy {
-        throw new CardExceptionProxy(reason);
+        throw (CardExceptionProxy) SimulatorSystem.getJCREOwnedException(CardExceptionProxy.class, reason);
+    }
+
+    /**
+     * Stack traces are only recorded if enabled, see
+     * <code>SimulatorSystem.EXCEPTION_STACK_TRACE_PROPERTY</code>
+     * @return this exception
+     */
+    @Override
+    public Throwable fillInStackTrace() {
+        if (SimulatorSystem.isExceptionStackTraceEnabled()) {
+            return super.fillInStackTrace();
+        }
+        return this;
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.framework;
+
+import com.licel.jcardsim.base.ApduCase;
+import javacard.framework.APDU;
+
+/**
+ * Runtime side handle of an <code>APDU</code>.
+ * <p>Implemented by the package-private <code>APDU$Internal</code>, which <code>SimulatorRuntime</code>
+ * creates once per APDU, so the runtime can drive an APDU without reflection while
+ * <code>APDU</code> itself gains no public methods.</p>
+ * @see APDUProxy
+ */
+public interface InternalAPDU {
+    /**
+     * @return the APDU driven by this handle
+     */
+    APDU getAPDU();
+
+    /**
+     * Clear the internal state of the APDU
+     * @param protocol active protocol
+     * @param apduCase case of <code>inputBuffer</code>, ignored if <code>inputBuffer</code> is null
+     * @param inputBuffer command APDU or null to finish processing of the current command
+     * @param inputLength length of the command APDU in <code>inputBuffer</code>
+     */
+    void internalReset(byte protocol, ApduCase apduCase, byte[] inputBuffer, int inputLength);
+
+    /**
+     * Clear the whole APDU buffer.
+     * <p><code>internalReset</code> only clears the part of the buffer that the commands
+     * since the last call of this method are known to have used.</p>
+     */
+    void internalClearBuffer();
+}
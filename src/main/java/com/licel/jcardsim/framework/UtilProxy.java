@@ -15,6 +15,7 @@
  */
 package com.licel.jcardsim.framework;
 
+import com.licel.jcardsim.base.TransactionBarrier;
 import javacard.framework.TransactionException;
 
 /**
@@ -29,7 +30,7 @@ public class UtilProxy {
      * <p>
      * Note:
      * <ul>
-     * <li><em>!!! CHECK <b>Current implementation use <code>System.arraycopy</code> method and no supported transactions !</b> !!!</em></li>
+     * <li><em>Inside a transaction the destination range is journaled as one entry, outside a transaction the copy is trivially atomic.</em></li>
      * <li><em>If </em><code>srcOff</code><em> or </em><code>destOff</code><em> or </em><code>length</code><em> parameter
      *    is negative an </em><code>ArrayIndexOutOfBoundsException</code><em> exception is thrown.</em></li>
      * <li><em>If </em><code>srcOff+length</code><em> is greater than </em><code>src.length</code><em>, the length
@@ -63,6 +64,7 @@ public class UtilProxy {
      */
     public static final short arrayCopy(byte src[], short srcOff, byte dest[], short destOff, short length)
             throws ArrayIndexOutOfBoundsException, NullPointerException, TransactionException {
+        TransactionBarrier.arrayWrite(dest, destOff, length);
         System.arraycopy(src, srcOff, dest, destOff, length);
         return (short) (destOff + length);
     }
@@ -242,6 +244,7 @@ public class UtilProxy {
      */
     public static final short setShort(byte bArray[], short bOff, short sValue)
             throws TransactionException, ArrayIndexOutOfBoundsException, NullPointerException {
+        TransactionBarrier.arrayWrite(bArray, bOff, 2);
         bArray[bOff] = (byte) (sValue >> 8);
         bArray[bOff + 1] = (byte) sValue;
         return (short) (bOff + 2);
@@ -20,6 +20,8 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
 import javacard.framework.AID;
 import javacard.framework.SystemException;
 
@@ -99,6 +101,21 @@ public class JavaCardRemoteClient implements JavaCardInterface {
         return null;
     }
 
+    /**
+     * Transmit a sequence of commands with a single remote call
+     * @param commands command apdus
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return response apdus, one for each transmitted command
+     */
+    public List<byte[]> transmitBatch(List<byte[]> commands, boolean stopOnError) {
+        try {
+            return remote.transmitBatch(new ArrayList<byte[]>(commands), stopOnError);
+        } catch (RemoteException e) {
+            handleRemoteException(e);
+        }
+        return null;
+    }
+
     public void reset() {
         try {
             remote.reset();
@@ -23,6 +23,7 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -109,6 +110,13 @@ public class JavaCardRemoteServer extends java.rmi.server.UnicastRemoteObject
         return sim.transmitCommand(data);
     }
 
+    /**
+     * Implementation
+     */
+    public List<byte[]> transmitBatch(List<byte[]> commands, boolean stopOnError) throws RemoteException {
+        return sim.transmitBatch(commands, stopOnError);
+    }
+
     /**
      * Implementation
      */
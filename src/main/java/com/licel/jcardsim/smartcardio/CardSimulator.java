@@ -18,10 +18,18 @@ package com.licel.jcardsim.smartcardio;
 import com.licel.jcardsim.base.CardManager;
 import com.licel.jcardsim.base.SimulatorRuntime;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
+import javacard.framework.ISO7816;
 
 import javax.smartcardio.*;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simulates a JavaCard.
@@ -33,6 +41,7 @@ public class CardSimulator extends JavaxSmartCardInterface {
     private final AtomicReference<CardTerminal> owningCardTerminalReference
             = new AtomicReference<CardTerminal>();
     private final AtomicReference<Thread> threadReference = new AtomicReference<Thread>();
+    private final ReentrantLock assignLock = new ReentrantLock();
 
     /**
      * Create a Simulator object using a new SimulatorRuntime.
@@ -68,6 +77,37 @@ public class CardSimulator extends JavaxSmartCardInterface {
         return new ResponseAPDU(transmitCommand(commandApdu.getBytes()));
     }
 
+    /**
+     * Transmit a sequence of commands while holding the runtime lock once
+     *
+     * @param commands command APDUs
+     * @param stopOnError if true, stop after the first response with a status word other than 0x9000
+     * @return responses, one for each transmitted command
+     * @see #transmitBatch(java.util.List, boolean)
+     */
+    public List<ResponseAPDU> transmitBatch(Iterable<CommandAPDU> commands, boolean stopOnError) {
+        final Iterator<CommandAPDU> iterator = commands.iterator();
+        final ArrayList<ResponseAPDU> responses = new ArrayList<ResponseAPDU>();
+        transmitBatch(new Iterator<byte[]>() {
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public byte[] next() {
+                return iterator.next().getBytes();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }, new Consumer<byte[]>() {
+            public void accept(byte[] response) {
+                responses.add(new ResponseAPDU(response));
+            }
+        }, stopOnError);
+        return responses;
+    }
+
     /**
      * <p>Assigns this simulated card to a CardTerminal.</p>
      * <p>If the card is already assigned to another CardTerminal, it will be ejected
@@ -75,23 +115,28 @@ public class CardSimulator extends JavaxSmartCardInterface {
      *
      * @param terminal card terminal or <code>null</code>
      */
-    public synchronized void assignToTerminal(CardTerminal terminal) {
-        final CardTerminal oldCardTerminal = owningCardTerminalReference.getAndSet(terminal);
+    public void assignToTerminal(CardTerminal terminal) {
+        assignLock.lock();
+        try {
+            final CardTerminal oldCardTerminal = owningCardTerminalReference.getAndSet(terminal);
 
-        if (terminal == oldCardTerminal) {
-            return;
-        }
+            if (terminal == oldCardTerminal) {
+                return;
+            }
 
-        if (oldCardTerminal != null) {
-            // eject card from old Terminal
-            ((CardTerminalSimulator.CardTerminalImpl) oldCardTerminal).assignSimulator(null);
-        }
+            if (oldCardTerminal != null) {
+                // eject card from old Terminal
+                ((CardTerminalSimulator.CardTerminalImpl) oldCardTerminal).assignSimulator(null);
+            }
 
-        if (terminal != null) {
-            // reset card
-            card.disconnect();
-            // assign to new terminal
-            ((CardTerminalSimulator.CardTerminalImpl) terminal).assignSimulator(this);
+            if (terminal != null) {
+                // reset card
+                card.disconnect();
+                // assign to new terminal
+                ((CardTerminalSimulator.CardTerminalImpl) terminal).assignSimulator(this);
+            }
+        } finally {
+            assignLock.unlock();
         }
     }
 
@@ -118,12 +163,18 @@ public class CardSimulator extends JavaxSmartCardInterface {
     }
 
     private static final class CardChannelImpl extends CardChannel {
+        private static final String MANAGE_CHANNEL_NOT_ALLOWED
+                = "MANAGE CHANNEL is not allowed, use openLogicalChannel/close";
         private final CardImpl card;
         private final int channelNr;
+        // commands of a logical channel in ByteBuffers, null for the basic channel
+        private final ChannelCommandBuffer commandBuffer;
+        private volatile boolean closed;
 
         public CardChannelImpl(CardImpl card, int channelNr) {
             this.card = card;
             this.channelNr = channelNr;
+            this.commandBuffer = channelNr == 0 ? null : new ChannelCommandBuffer(channelNr);
         }
 
         @Override
@@ -133,25 +184,71 @@ public class CardSimulator extends JavaxSmartCardInterface {
 
         @Override
         public int getChannelNumber() {
-            card.ensureConnected();
+            ensureOpen();
             return channelNr;
         }
 
         @Override
         public ResponseAPDU transmit(CommandAPDU commandAPDU) throws CardException {
-            return new ResponseAPDU(card.transmitCommand(commandAPDU.getBytes()));
+            ensureOpen();
+            return new ResponseAPDU(card.transmitCommand(prepareCommand(commandAPDU.getBytes())));
         }
 
         @Override
         public int transmit(ByteBuffer byteBuffer, ByteBuffer byteBuffer2) throws CardException {
-            byte[] result = card.transmitCommand(new CommandAPDU(byteBuffer).getBytes());
-            byteBuffer2.put(result);
-            return result.length;
+            if (byteBuffer == byteBuffer2) {
+                throw new IllegalArgumentException("command and response must not be the same buffer");
+            }
+            ensureOpen();
+            if (LogicalChannelUtil.isManageChannel(byteBuffer)) {
+                throw new IllegalArgumentException(MANAGE_CHANNEL_NOT_ALLOWED);
+            }
+            if (channelNr == 0) {
+                return card.transmitCommand(byteBuffer, byteBuffer2);
+            }
+            synchronized (commandBuffer) {
+                final int position = byteBuffer.position();
+                try {
+                    return card.transmitCommand(commandBuffer.encode(byteBuffer), byteBuffer2);
+                } catch (IllegalArgumentException e) {
+                    // the command was not sent
+                    byteBuffer.position(position);
+                    throw e;
+                }
+            }
         }
 
         @Override
         public void close() throws CardException {
-            throw new CardException("Can not close basic channel");
+            if (channelNr == 0) {
+                throw new IllegalStateException("Can not close basic channel");
+            }
+            if (closed) {
+                return;
+            }
+            byte[] response = card.transmitCommand(LogicalChannelUtil.closeChannel(channelNr));
+            if (ByteUtil.getSW(response) != ISO7816.SW_NO_ERROR) {
+                throw new CardException("Can not close logical channel " + channelNr);
+            }
+            closed = true;
+        }
+
+        private void ensureOpen() {
+            card.ensureConnected();
+            if (closed) {
+                throw new IllegalStateException("Logical channel " + channelNr + " was closed");
+            }
+        }
+
+        // rejects MANAGE CHANNEL and encodes the channel number into the CLA byte
+        private byte[] prepareCommand(byte[] command) {
+            if (LogicalChannelUtil.isManageChannel(command)) {
+                throw new IllegalArgumentException(MANAGE_CHANNEL_NOT_ALLOWED);
+            }
+            if (channelNr != 0) {
+                command[ISO7816.OFFSET_CLA] = LogicalChannelUtil.setChannel(command[ISO7816.OFFSET_CLA], channelNr);
+            }
+            return command;
         }
     }
 
@@ -191,24 +288,34 @@ public class CardSimulator extends JavaxSmartCardInterface {
 
         @Override
         public CardChannel openLogicalChannel() throws CardException {
-            throw new CardException("Logical channel not supported");
+            byte[] response = transmitCommand(LogicalChannelUtil.openChannel(0));
+            if (response.length != 3 || ByteUtil.getSW(response) != ISO7816.SW_NO_ERROR) {
+                throw new CardException("No logical channel available");
+            }
+            return new CardChannelImpl(this, response[0]);
         }
 
         @Override
         public void beginExclusive() throws CardException {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 if (!threadReference.compareAndSet(null, Thread.currentThread())) {
                     throw new CardException("Card is held exclusively by Thread " + threadReference.get());
                 }
+            } finally {
+                runtime.exit();
             }
         }
 
         @Override
         public void endExclusive() throws CardException {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 if (!threadReference.compareAndSet(Thread.currentThread(), null)) {
                     throw new CardException("Card is held exclusively by Thread " + threadReference.get());
                 }
+            } finally {
+                runtime.exit();
             }
         }
 
@@ -219,51 +326,81 @@ public class CardSimulator extends JavaxSmartCardInterface {
 
         @Override
         public void disconnect(boolean reset) throws CardException {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 if (reset) {
                     CardSimulator.this.reset();
                 }
                 state = CardState.Disconnected;
+            } finally {
+                runtime.exit();
             }
         }
 
         void connect(String protocol) {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 this.protocolByte = CardSimulator.this.getProtocolByte(protocol);
                 this.protocol = protocol;
+                // the card runs with the protocol of the connection until it changes
+                CardSimulator.this.changeProtocol(protocol);
                 this.state = CardState.Connected;
+            } finally {
+                runtime.exit();
             }
         }
 
         void eject() {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 CardSimulator.this.reset();
                 state = CardState.Ejected;
+            } finally {
+                runtime.exit();
             }
         }
 
         void disconnect() {
-            synchronized (runtime) {
+            runtime.enter();
+            try {
                 CardSimulator.this.reset();
                 state = CardState.Disconnected;
+            } finally {
+                runtime.exit();
             }
         }
 
         byte[] transmitCommand(byte[] capdu) throws CardException {
-            synchronized (runtime) {
-                ensureConnected();
-                Thread thread = threadReference.get();
-                if (thread != null && thread != Thread.currentThread()) {
-                    throw new CardException("Card is held exclusively by Thread " + thread.getName());
-                }
+            runtime.enter();
+            try {
+                beginTransmit();
+                return CardManager.dispatchApdu(CardSimulator.this, capdu);
+            } finally {
+                runtime.exit();
+            }
+        }
 
-                byte currentProtocol = getProtocolByte(CardSimulator.this.getProtocol());
-                try {
-                    runtime.changeProtocol(protocolByte);
-                    return CardManager.dispatchApdu(CardSimulator.this, capdu);
-                } finally {
-                    runtime.changeProtocol(currentProtocol);
-                }
+        int transmitCommand(ByteBuffer command, ByteBuffer response) throws CardException {
+            runtime.enter();
+            try {
+                beginTransmit();
+                return CardManager.dispatchApdu(CardSimulator.this, command, response);
+            } finally {
+                runtime.exit();
+            }
+        }
+
+        // must be called while holding the runtime lock
+        private void beginTransmit() throws CardException {
+            ensureConnected();
+            Thread thread = threadReference.get();
+            if (thread != null && thread != Thread.currentThread()) {
+                throw new CardException("Card is held exclusively by Thread " + thread.getName());
+            }
+
+            // only switch if the protocol was changed since connect
+            if (runtime.getProtocol() != protocolByte) {
+                CardSimulator.this.changeProtocol(protocol);
             }
         }
     }
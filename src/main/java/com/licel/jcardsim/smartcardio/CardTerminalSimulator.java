@@ -25,6 +25,7 @@ import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * <p>A simulated {@link javax.smartcardio.TerminalFactory}.</p>
@@ -192,21 +193,25 @@ public final class CardTerminalSimulator {
         private final AutoResetEvent terminalsChangeAutoResetEvent = new AutoResetEvent();
         private final ArrayList<CardTerminalImpl> simulatedTerminals;
         private final HashMap<CardTerminal, State> terminalStateMap;
+        // guards terminalStateMap
+        private final ReentrantLock stateLock = new ReentrantLock();
 
         CardTerminalsImpl(String[] names) {
             simulatedTerminals = new ArrayList<CardTerminalImpl>(names.length);
             terminalStateMap = new HashMap<CardTerminal, State>(names.length);
             for (String name : names) {
-                simulatedTerminals.add(new CardTerminalImpl(name, terminalStateMap, terminalsChangeAutoResetEvent));
+                simulatedTerminals.add(new CardTerminalImpl(name, terminalStateMap, stateLock,
+                        terminalsChangeAutoResetEvent));
             }
         }
 
         @Override
-        public synchronized List<CardTerminal> list(State state) throws CardException {
+        public List<CardTerminal> list(State state) throws CardException {
             if (state == null) {
                 throw new NullPointerException("state");
             }
-            synchronized (terminalStateMap) {
+            stateLock.lock();
+            try {
                 final ArrayList<CardTerminal> result = new ArrayList<CardTerminal>(simulatedTerminals.size());
 
                 for (CardTerminal terminal : simulatedTerminals) {
@@ -248,6 +253,8 @@ public final class CardTerminalSimulator {
                     }
                 }
                 return Collections.unmodifiableList(result);
+            } finally {
+                stateLock.unlock();
             }
         }
 
@@ -267,14 +274,17 @@ public final class CardTerminalSimulator {
     static final class CardTerminalImpl extends CardTerminal {
         private final String name;
         private final Map<CardTerminal, CardTerminals.State> terminalStateMap;
+        private final ReentrantLock stateLock;
         private final AutoResetEvent terminalsChangeAutoResetEvent;
         private final AutoResetEvent cardPresent = new AutoResetEvent();
         private final AutoResetEvent cardAbsent = new AutoResetEvent();
         private final AtomicReference<CardSimulator> cardSimulatorReference = new AtomicReference<CardSimulator>();
 
-        CardTerminalImpl(String name, Map<CardTerminal, CardTerminals.State> terminalStateMap, AutoResetEvent terminalsChangeAutoResetEvent) {
+        CardTerminalImpl(String name, Map<CardTerminal, CardTerminals.State> terminalStateMap, ReentrantLock stateLock,
+                         AutoResetEvent terminalsChangeAutoResetEvent) {
             this.name = name;
             this.terminalStateMap = terminalStateMap;
+            this.stateLock = stateLock;
             this.terminalsChangeAutoResetEvent = terminalsChangeAutoResetEvent;
             cardAbsent.signal();
             terminalStateMap.put(this, CardTerminals.State.CARD_ABSENT);
@@ -320,7 +330,8 @@ public final class CardTerminalSimulator {
         }
 
         void assignSimulator(CardSimulator cardSimulator) {
-            synchronized (terminalStateMap) {
+            stateLock.lock();
+            try {
                 CardSimulator oldCardSimulator = cardSimulatorReference.getAndSet(cardSimulator);
                 boolean change = false;
                 boolean present = false;
@@ -345,6 +356,8 @@ public final class CardTerminalSimulator {
                     }
                     terminalsChangeAutoResetEvent.signal();
                 }
+            } finally {
+                stateLock.unlock();
             }
         }
 
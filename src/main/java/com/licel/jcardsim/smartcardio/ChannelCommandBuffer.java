@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.smartcardio;
+
+import com.licel.jcardsim.utils.LogicalChannelUtil;
+import javacard.framework.ISO7816;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Command buffer of a logical channel. The command of the caller is copied once
+ * into a buffer that is reused by all commands of the channel, with the channel
+ * number encoded into the CLA byte.
+ */
+final class ChannelCommandBuffer {
+    // a short APDU with Lc and Le
+    private static final int INITIAL_SIZE = 261;
+
+    private final int channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_SIZE);
+
+    ChannelCommandBuffer(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Copy <code>command</code> and encode the channel number into its CLA byte.
+     * The caller must hold the lock of this object until the returned buffer is used.
+     * @param command buffer containing the command apdu, the position is set to the limit
+     * @return buffer containing the command apdu for the logical channel
+     */
+    ByteBuffer encode(ByteBuffer command) {
+        if (buffer.capacity() < command.remaining()) {
+            buffer = ByteBuffer.allocate(command.remaining());
+        }
+        buffer.clear();
+        buffer.put(command);
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            buffer.put(ISO7816.OFFSET_CLA, LogicalChannelUtil.setChannel(buffer.get(ISO7816.OFFSET_CLA), channel));
+        }
+        return buffer;
+    }
+}
@@ -17,6 +17,11 @@ package com.licel.jcardsim.smartcardio;
 
 import com.licel.jcardsim.base.CardManager;
 import com.licel.jcardsim.io.JavaCardInterface;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
+import javacard.framework.ISO7816;
+
+import java.nio.ByteBuffer;
 import javax.smartcardio.*;
 
 /**
@@ -59,10 +64,16 @@ public class JCSCard extends Card {
     }
 
     /**
-     * Always returns basic channel with id = 0
+     * Open a logical channel with MANAGE CHANNEL
+     * @return the new channel
+     * @throws CardException if no logical channel is available
      */
     public CardChannel openLogicalChannel() throws CardException {
-        return basicChannel;
+        byte[] response = CardManager.dispatchApdu(cardInterface, LogicalChannelUtil.openChannel(0));
+        if (response.length != 3 || ByteUtil.getSW(response) != ISO7816.SW_NO_ERROR) {
+            throw new CardException("No logical channel available");
+        }
+        return new JCSCardChannel(this, response[0]);
     }
 
     /**
@@ -95,4 +106,12 @@ public class JCSCard extends Card {
     ResponseAPDU transmitCommand(CommandAPDU capdu) {
         return new ResponseAPDU(CardManager.dispatchApdu(cardInterface, capdu.getBytes()));
     }
+
+    byte[] transmitCommand(byte[] capdu) {
+        return CardManager.dispatchApdu(cardInterface, capdu);
+    }
+
+    int transmitCommand(ByteBuffer command, ByteBuffer response) {
+        return CardManager.dispatchApdu(cardInterface, command, response);
+    }
 }
@@ -15,7 +15,10 @@
  */
 package com.licel.jcardsim.smartcardio;
 
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
 import java.nio.ByteBuffer;
+import javacard.framework.ISO7816;
 import javax.smartcardio.*;
 
 /**
@@ -23,12 +26,18 @@ import javax.smartcardio.*;
  * @author LICEL LLC
  */
 public class JCSCardChannel extends CardChannel {
+     private static final String MANAGE_CHANNEL_NOT_ALLOWED
+             = "MANAGE CHANNEL is not allowed, use openLogicalChannel/close";
      private JCSCard card;
      private int channel;
+     // commands of a logical channel in ByteBuffers, null for the basic channel
+     private final ChannelCommandBuffer commandBuffer;
+     private volatile boolean closed;
 
     public JCSCardChannel(JCSCard card, int channel) {
         this.card = card;
         this.channel = channel;
+        this.commandBuffer = channel == 0 ? null : new ChannelCommandBuffer(channel);
     }
      
     public Card getCard() {
@@ -36,25 +45,65 @@ public class JCSCardChannel extends CardChannel {
     }
 
     public int getChannelNumber() {
+        ensureOpen();
         return channel;
     }
 
     public ResponseAPDU transmit(CommandAPDU capdu) throws CardException {
-        return card.transmitCommand(capdu);
+        ensureOpen();
+        byte[] command = capdu.getBytes();
+        if (LogicalChannelUtil.isManageChannel(command)) {
+            throw new IllegalArgumentException(MANAGE_CHANNEL_NOT_ALLOWED);
+        }
+        return new ResponseAPDU(card.transmitCommand(channel == 0 ? command : withChannel(command)));
     }
 
     public int transmit(ByteBuffer bb, ByteBuffer bb1) throws CardException {
-        ResponseAPDU response = transmit(new CommandAPDU(bb));
-        byte[] binaryResponse = response.getBytes();
-        bb1.put(binaryResponse);
-        return binaryResponse.length;
+        if (bb == bb1) {
+            throw new IllegalArgumentException("command and response must not be the same buffer");
+        }
+        ensureOpen();
+        if (LogicalChannelUtil.isManageChannel(bb)) {
+            throw new IllegalArgumentException(MANAGE_CHANNEL_NOT_ALLOWED);
+        }
+        if (channel == 0) {
+            return card.transmitCommand(bb, bb1);
+        }
+        synchronized (commandBuffer) {
+            final int position = bb.position();
+            try {
+                return card.transmitCommand(commandBuffer.encode(bb), bb1);
+            } catch (IllegalArgumentException e) {
+                // the command was not sent
+                bb.position(position);
+                throw e;
+            }
+        }
     }
 
     /**
-     * Do nothing.
+     * Close a logical channel with MANAGE CHANNEL. Closing the basic channel does nothing.
+     * @throws CardException if the card does not close the logical channel
      */
     public void close() throws CardException {
-    
+        if (channel == 0 || closed) {
+            return;
+        }
+        byte[] response = card.transmitCommand(LogicalChannelUtil.closeChannel(channel));
+        if (ByteUtil.getSW(response) != ISO7816.SW_NO_ERROR) {
+            throw new CardException("Can not close logical channel " + channel);
+        }
+        closed = true;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Logical channel " + channel + " was closed");
+        }
+    }
+
+    private byte[] withChannel(byte[] command) {
+        command[ISO7816.OFFSET_CLA] = LogicalChannelUtil.setChannel(command[ISO7816.OFFSET_CLA], channel);
+        return command;
     }
-    
 }
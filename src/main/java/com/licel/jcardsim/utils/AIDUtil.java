@@ -25,11 +25,28 @@ import java.util.Comparator;
  * Utility methods for dealing with AIDs.
  */
 public final class AIDUtil {
+    // scratch space for two AIDs, avoids allocations while comparing
+    private static final ThreadLocal<byte[]> comparatorBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
+
+    // unsigned lexicographic order, same as comparing the hex strings
     private static final Comparator<AID> aidComparator = new Comparator<AID>() {
         public int compare(AID aid1, AID aid2) {
-            String s1 = (aid1 != null) ? AIDUtil.toString(aid1) : "";
-            String s2 = (aid1 != null) ? AIDUtil.toString(aid2) : "";
-            return s1.compareTo(s2);
+            byte[] buffer = comparatorBuffer.get();
+            int len1 = (aid1 != null) ? aid1.getBytes(buffer, (short) 0) : 0;
+            int len2 = (aid2 != null) ? aid2.getBytes(buffer, (short) 16) : 0;
+            int len = Math.min(len1, len2);
+            for (int i = 0; i < len; i++) {
+                int diff = (buffer[i] & 0xFF) - (buffer[16 + i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return len1 - len2;
         }
     };
 
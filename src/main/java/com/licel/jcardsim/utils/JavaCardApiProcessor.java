@@ -28,11 +28,13 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import static org.objectweb.asm.Opcodes.ASM4;
 import org.objectweb.asm.commons.RemappingClassAdapter;
 import org.objectweb.asm.commons.SimpleRemapper;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InnerClassNode;
 import org.objectweb.asm.tree.MethodNode;
 
 /**
@@ -50,6 +52,7 @@ public class JavaCardApiProcessor {
         allMap.put("com.licel.jcardsim.framework.APDUProxy".replace(".", "/"), "javacard.framework.APDU".replace(".", "/"));
         proxyClass(buildDir, "com.licel.jcardsim.framework.APDUProxy", "javacard.framework.APDU", false);
         copyClass(buildDir, "com.licel.jcardsim.framework.APDUProxy$1", "javacard.framework.APDU$1", allMap);
+        copyClass(buildDir, "com.licel.jcardsim.framework.APDUProxy$Internal", "javacard.framework.APDU$Internal", allMap);
         proxyExceptionClass(buildDir, "javacard.framework.APDUException");
         proxyClass(buildDir, "com.licel.jcardsim.framework.AppletProxy", "javacard.framework.Applet", false);
         proxyClass(buildDir, "com.licel.jcardsim.framework.CardExceptionProxy", "javacard.framework.CardException", false);
@@ -93,6 +96,12 @@ public class JavaCardApiProcessor {
         for (int i = 0; i < 10; i++) {
             map.put(cnProxy.name + "$1", cnTarget.name + "$1");
         }
+        for (Iterator it = cnProxy.innerClasses.iterator(); it.hasNext();) {
+            InnerClassNode icn = (InnerClassNode) it.next();
+            if (icn.name.startsWith(cnProxy.name + "$")) {
+                map.put(icn.name, cnTarget.name + icn.name.substring(cnProxy.name.length()));
+            }
+        }
         RemappingClassAdapter ra = new RemappingClassAdapter(cnProxyRemapped, new SimpleRemapper(map));
         cnProxy.accept(ra);
 
@@ -156,6 +165,12 @@ public class JavaCardApiProcessor {
             this.className = exceptionClassName;
         }
 
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            // throwIt loads a class constant
+            super.visit(Math.max(version, V1_5), access, name, signature, superName, interfaces);
+        }
+
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
             return null;
@@ -180,14 +195,16 @@ public class JavaCardApiProcessor {
             mv.visitInsn(RETURN);
             mv.visitMaxs(2, 2);
             mv.visitEnd();
+            // throw (T) SimulatorSystem.getJCREOwnedException(T.class, reason);
             mv = cv.visitMethod(ACC_PUBLIC + ACC_STATIC, "throwIt", "(S)V", null, null);
             mv.visitCode();
-            mv.visitTypeInsn(NEW, className);
-            mv.visitInsn(DUP);
+            mv.visitLdcInsn(Type.getObjectType(className));
             mv.visitVarInsn(ILOAD, 0);
-            mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "(S)V", false);
+            mv.visitMethodInsn(INVOKESTATIC, "com/licel/jcardsim/base/SimulatorSystem", "getJCREOwnedException",
+                    "(Ljava/lang/Class;S)Ljava/lang/Throwable;", false);
+            mv.visitTypeInsn(CHECKCAST, className);
             mv.visitInsn(ATHROW);
-            mv.visitMaxs(3, 1);
+            mv.visitMaxs(2, 1);
             mv.visitEnd();
         }
 
@@ -238,7 +255,8 @@ public class JavaCardApiProcessor {
         public void visit(int version, int access,
                 String name, String signature,
                 String superName, String[] interfaces) {
-            super.visit(version, access, name,
+            // proxy code may need a newer class file version, e.g. for class constants
+            super.visit(Math.max(version, cn.version), access, name,
                     signature, superName, interfaces);
             this.cname = name;
         }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.utils;
+
+import javacard.framework.ISO7816;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Utility methods for dealing with logical channels.
+ * <p>Channels 0-3 are encoded in bits 1-2 of the CLA byte (first interindustry values),
+ * channels 4-19 in bits 1-4 with bit 7 set (further interindustry values).
+ * See <em>Runtime Specification for the Java Card Platform</em>, section 4.3.</p>
+ */
+public final class LogicalChannelUtil {
+    /** number of logical channels, including the basic channel 0 */
+    public static final int CHANNEL_COUNT = 20;
+    /** INS of MANAGE CHANNEL */
+    public static final byte INS_MANAGE_CHANNEL = 0x70;
+    /** P1 of MANAGE CHANNEL opening a channel */
+    public static final byte P1_OPEN = 0x00;
+    /** P1 of MANAGE CHANNEL closing a channel */
+    public static final byte P1_CLOSE = (byte) 0x80;
+
+    private LogicalChannelUtil() {
+    }
+
+    /**
+     * @param cla CLA byte
+     * @return logical channel encoded in <code>cla</code>, 0-19
+     */
+    public static byte getChannel(byte cla) {
+        if ((cla & 0x40) == 0) {
+            return (byte) (cla & 0x03);
+        }
+        return (byte) (4 + (cla & 0x0F));
+    }
+
+    /**
+     * Encode <code>channel</code> into <code>cla</code>. Bit 8 and the chaining bit are kept.
+     * Secure messaging bits are kept for channels 0-3.
+     * @param cla CLA byte
+     * @param channel logical channel, 0-19
+     * @return CLA byte addressing <code>channel</code>
+     * @throws java.lang.IllegalArgumentException if <code>channel</code> is not in the range 0-19
+     */
+    public static byte setChannel(byte cla, int channel) {
+        if (channel < 0 || channel >= CHANNEL_COUNT) {
+            throw new IllegalArgumentException("Invalid logical channel: " + channel);
+        }
+        if (channel < 4) {
+            return (byte) ((cla & 0x9C) | channel);
+        }
+        return (byte) ((cla & 0x90) | 0x40 | (channel - 4));
+    }
+
+    /**
+     * @param apdu command APDU
+     * @return true if <code>apdu</code> is a MANAGE CHANNEL command
+     */
+    public static boolean isManageChannel(byte[] apdu) {
+        return apdu.length > ISO7816.OFFSET_INS && (apdu[ISO7816.OFFSET_CLA] & 0x80) == 0
+                && apdu[ISO7816.OFFSET_INS] == INS_MANAGE_CHANNEL;
+    }
+
+    /**
+     * @param apdu buffer containing the command APDU at its position, not modified
+     * @return true if the APDU is a MANAGE CHANNEL command
+     */
+    public static boolean isManageChannel(ByteBuffer apdu) {
+        final int position = apdu.position();
+        return apdu.remaining() > ISO7816.OFFSET_INS && (apdu.get(position + ISO7816.OFFSET_CLA) & 0x80) == 0
+                && apdu.get(position + ISO7816.OFFSET_INS) == INS_MANAGE_CHANNEL;
+    }
+
+    /**
+     * Generate a MANAGE CHANNEL APDU opening the next free logical channel
+     * @param originChannel channel sending the command
+     * @return MANAGE CHANNEL APDU (CLA=channel, INS=0x70, P1=0x00, P2=0x00, Le=0x01)
+     */
+    public static byte[] openChannel(int originChannel) {
+        return new byte[]{setChannel(ISO7816.CLA_ISO7816, originChannel), INS_MANAGE_CHANNEL, P1_OPEN, 0, 1};
+    }
+
+    /**
+     * Generate a MANAGE CHANNEL APDU closing a logical channel
+     * @param channel channel to close, sending the command
+     * @return MANAGE CHANNEL APDU (CLA=channel, INS=0x70, P1=0x80, P2=channel)
+     */
+    public static byte[] closeChannel(int channel) {
+        return new byte[]{setChannel(ISO7816.CLA_ISO7816, channel), INS_MANAGE_CHANNEL, P1_CLOSE, (byte) channel};
+    }
+}
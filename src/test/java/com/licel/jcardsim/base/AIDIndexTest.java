@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.AID;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.Random;
+
+public class AIDIndexTest extends TestCase {
+    public AIDIndexTest(String name) {
+        super(name);
+    }
+
+    public void testHashCode() {
+        byte[] bytes = ByteUtil.byteArray("D0000CAFE00001");
+        AID aid1 = AIDUtil.create(bytes);
+        AID aid2 = AIDUtil.create("D0000CAFE00001");
+        assertEquals(aid1, aid2);
+        assertEquals(aid1.hashCode(), aid2.hashCode());
+        assertEquals(Arrays.hashCode(bytes), aid1.hashCode());
+    }
+
+    public void testExactLookup() {
+        AIDIndex<String> index = new AIDIndex<String>();
+        AID aid = AIDUtil.create("D0000CAFE00001");
+        index.put(aid, "a");
+        index.put(AIDUtil.create("D0000CAFE000"), "b");
+
+        byte[] buffer = ByteUtil.byteArray("FFFFD0000CAFE00001FF");
+        assertSame(aid, index.lookup(buffer, (short) 2, (byte) 7));
+        assertEquals("a", index.get(buffer, (short) 2, (byte) 7));
+        assertNull(index.lookup(buffer, (short) 2, (byte) 8));
+        assertEquals("a", index.get(AIDUtil.create("D0000CAFE00001")));
+        assertNull(index.get(null));
+        assertEquals(2, index.size());
+    }
+
+    public void testPrefixLookupReturnsSmallestMatch() {
+        AIDIndex<String> index = new AIDIndex<String>();
+        index.put(AIDUtil.create("D0000CAFE00002"), "2");
+        index.put(AIDUtil.create("D0000CAFE001"), "x");
+        index.put(AIDUtil.create("D0000CAFE00001"), "1");
+        index.put(AIDUtil.create("010203040506070809"), "0");
+
+        byte[] buffer = ByteUtil.byteArray("D0000CAFE0");
+        assertEquals("D0000CAFE00001", AIDUtil.toString(index.findPrefix(buffer, (short) 0, (byte) 5)));
+        assertEquals("010203040506070809", AIDUtil.toString(index.firstKey()));
+        assertNull(index.findPrefix(ByteUtil.byteArray("D0000CAFE1"), (short) 0, (byte) 5));
+
+        index.remove(AIDUtil.create("D0000CAFE00001"));
+        assertEquals("D0000CAFE00002", AIDUtil.toString(index.findPrefix(buffer, (short) 0, (byte) 5)));
+        assertNull(index.lookup(ByteUtil.byteArray("D0000CAFE00001"), (short) 0, (byte) 7));
+    }
+
+    public void testOrderMatchesComparator() {
+        Random random = new Random(42);
+        AIDIndex<Integer> index = new AIDIndex<Integer>();
+        List<AID> expected = new ArrayList<AID>();
+        for (int i = 0; i < 200; i++) {
+            byte[] bytes = new byte[5 + random.nextInt(12)];
+            random.nextBytes(bytes);
+            bytes[0] = (byte) random.nextInt(3); // force shared prefixes
+            AID aid = AIDUtil.create(bytes);
+            if (!index.containsKey(aid)) {
+                expected.add(aid);
+            }
+            index.put(aid, i);
+        }
+        Collections.sort(expected, AIDUtil.comparator());
+        assertEquals(expected.size(), index.size());
+        assertEquals(expected, index.keys());
+        assertSame(expected.get(0), index.firstKey());
+
+        for (int i = 0; i < expected.size(); i += 2) {
+            index.remove(expected.get(i));
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i % 2 == 1, index.containsKey(expected.get(i)));
+        }
+        assertSame(expected.get(1), index.firstKey());
+
+        index.clear();
+        assertTrue(index.isEmpty());
+        assertNull(index.firstKey());
+    }
+
+    public void testSortedMapViewWritesThrough() {
+        AIDIndex<String> index = new AIDIndex<String>();
+        SortedMap<AID, String> map = index.asSortedMap();
+        AID a = AIDUtil.create("D0000CAFE00001");
+        AID b = AIDUtil.create("D0000CAFE000");
+        map.put(a, "a");
+        index.put(b, "b");
+
+        assertEquals(2, map.size());
+        assertEquals("a", map.get(a));
+        assertTrue(map.containsKey(b));
+        assertFalse(map.containsKey("D0000CAFE000"));
+        assertSame(b, map.firstKey());
+        assertSame(a, map.lastKey());
+        assertEquals(Arrays.asList(b, a), new ArrayList<AID>(map.keySet()));
+        assertEquals(1, map.tailMap(a).size());
+
+        Iterator<Map.Entry<AID, String>> entries = map.entrySet().iterator();
+        Map.Entry<AID, String> first = entries.next();
+        assertEquals("b", first.setValue("c"));
+        assertEquals("c", index.get(b));
+        entries.remove();
+        assertFalse(index.containsKey(b));
+
+        map.clear();
+        assertTrue(index.isEmpty());
+        try {
+            map.firstKey();
+            fail();
+        } catch (java.util.NoSuchElementException e) {
+            // expected
+        }
+    }
+}
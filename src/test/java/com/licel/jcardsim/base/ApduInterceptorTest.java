@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.samples.HelloWorldApplet;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.AID;
+import javacard.framework.ISO7816;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ApduInterceptorTest extends TestCase {
+    private static final AID APPLET_AID = AIDUtil.create("010203040506070809");
+    private static final byte[] HELLO = new byte[]{0x01, 0x01, 0x00, 0x00};
+    private static final byte[] UNSUPPORTED = new byte[]{0x01, 0x05, 0x00, 0x00};
+
+    public ApduInterceptorTest(String name) {
+        super(name);
+    }
+
+    private static class RecordingInterceptor implements ApduInterceptor {
+        private final String name;
+        private final List<String> calls;
+
+        RecordingInterceptor(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        public boolean beforeCommand(ApduView command, ApduView response) {
+            calls.add("before " + name + " " + ByteUtil.hexString(command.toByteArray()));
+            return true;
+        }
+
+        public void afterCommand(ApduView command, ApduView response) {
+            calls.add("after " + name + " " + ByteUtil.hexString(response.toByteArray()));
+        }
+    }
+
+    private static Simulator createSimulator() {
+        Simulator simulator = new Simulator(new SimulatorRuntime());
+        simulator.installApplet(APPLET_AID, HelloWorldApplet.class);
+        simulator.selectApplet(APPLET_AID);
+        return simulator;
+    }
+
+    public void testInterceptorsAreCalledInOrder() {
+        Simulator simulator = createSimulator();
+        List<String> calls = new ArrayList<String>();
+        RecordingInterceptor first = new RecordingInterceptor("1", calls);
+        simulator.runtime.addInterceptor(first);
+        simulator.runtime.addInterceptor(new RecordingInterceptor("2", calls));
+
+        simulator.transmitCommand(UNSUPPORTED);
+        assertEquals(Arrays.asList("before 1 01050000", "before 2 01050000", "after 2 6D00", "after 1 6D00"), calls);
+
+        calls.clear();
+        assertTrue(simulator.runtime.removeInterceptor(first));
+        assertFalse(simulator.runtime.removeInterceptor(first));
+        simulator.transmitCommand(UNSUPPORTED);
+        assertEquals(Arrays.asList("before 2 01050000", "after 2 6D00"), calls);
+    }
+
+    public void testInterceptorRewritesCommandAndResponse() {
+        Simulator simulator = createSimulator();
+        simulator.runtime.addInterceptor(new ApduInterceptor() {
+            public boolean beforeCommand(ApduView command, ApduView response) {
+                // unwrap: drop the trailing byte appended by the caller
+                command.setLength(command.getLength() - 1);
+                command.set(ISO7816.OFFSET_INS, (byte) 0x01);
+                return true;
+            }
+
+            public void afterCommand(ApduView command, ApduView response) {
+                response.setStatusWord((short) 0x9001);
+            }
+        });
+        byte[] command = new byte[]{0x01, 0x05, 0x00, 0x00, (byte) 0xAA};
+        byte[] response = simulator.transmitCommand(command);
+        assertEquals("Hello world !", new String(response, 0, response.length - 2));
+        assertEquals((short) 0x9001, ByteUtil.getSW(response));
+        // the command of the caller is not changed
+        assertEquals("01050000AA", ByteUtil.hexString(command));
+    }
+
+    public void testInterceptorAnswersCommand() {
+        Simulator simulator = createSimulator();
+        List<String> calls = new ArrayList<String>();
+        simulator.runtime.addInterceptor(new RecordingInterceptor("1", calls));
+        simulator.runtime.addInterceptor(new ApduInterceptor() {
+            public boolean beforeCommand(ApduView command, ApduView response) {
+                // inject a fault, the card is not called
+                response.setStatusWord(ISO7816.SW_UNKNOWN);
+                return false;
+            }
+
+            public void afterCommand(ApduView command, ApduView response) {
+            }
+        });
+        simulator.runtime.addInterceptor(new RecordingInterceptor("3", calls));
+        assertEquals("6F00", ByteUtil.hexString(simulator.transmitCommand(HELLO)));
+        assertEquals(Arrays.asList("before 1 01010000", "after 1 6F00"), calls);
+    }
+
+    public void testInterceptorWithCallerBuffers() {
+        Simulator simulator = createSimulator();
+        List<String> calls = new ArrayList<String>();
+        simulator.runtime.addInterceptor(new RecordingInterceptor("1", calls));
+        byte[] command = new byte[]{0x55, 0x01, 0x05, 0x00, 0x00};
+        byte[] response = new byte[4];
+        assertEquals(2, simulator.transmitCommand(command, 1, 4, response, 2));
+        assertEquals("00006D00", ByteUtil.hexString(response));
+        assertEquals(Arrays.asList("before 1 01050000", "after 1 6D00"), calls);
+    }
+
+    public void testCardManagerInterceptor() {
+        Simulator simulator = createSimulator();
+        List<String> calls = new ArrayList<String>();
+        RecordingInterceptor interceptor = new RecordingInterceptor("1", calls);
+        CardManager.addInterceptor(interceptor);
+        try {
+            assertEquals("6D00", ByteUtil.hexString(CardManager.dispatchApdu(simulator, UNSUPPORTED)));
+            assertEquals(Arrays.asList("before 1 01050000", "after 1 6D00"), calls);
+        } finally {
+            CardManager.removeInterceptor(interceptor);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import junit.framework.TestCase;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.lang.reflect.Method;
+
+public class AppletClassInstrumenterTest extends TestCase {
+
+    public AppletClassInstrumenterTest(String name) {
+        super(name);
+    }
+
+    public void testStackMapFramesWithUninitializedObjects() throws Exception {
+        // a Java 7 class file: the stack map frame at the branch target refers to the new object by the offset of NEW
+        Class<?> cls = new ClassFileLoader().define("Frames", AppletClassInstrumenter.instrument(framesClass("Frames")));
+        Method make = cls.getMethod("make", boolean.class);
+        assertEquals("a", make.invoke(null, true).toString());
+        assertEquals("b", make.invoke(null, false).toString());
+    }
+
+    // public class name { public static Object make(boolean c) { return new StringBuilder(c ? "a" : "b"); } }
+    private static byte[] framesClass(String name) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "make",
+                "(Z)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        Label otherwise = new Label();
+        Label end = new Label();
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/StringBuilder");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitJumpInsn(Opcodes.IFEQ, otherwise);
+        mv.visitLdcInsn("a");
+        mv.visitJumpInsn(Opcodes.GOTO, end);
+        mv.visitLabel(otherwise);
+        mv.visitLdcInsn("b");
+        mv.visitLabel(end);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static class ClassFileLoader extends ClassLoader {
+        ClassFileLoader() {
+            super(AppletClassInstrumenterTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
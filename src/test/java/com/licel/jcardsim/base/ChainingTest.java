@@ -0,0 +1,268 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
+import javacard.framework.*;
+import javacardx.apdu.ExtendedLength;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ChainingTest extends TestCase {
+    private static final AID APPLET_AID = AIDUtil.create("F000000001");
+    private static final byte CLA = (byte) 0x80;
+    private static final byte INS_READ = 0x10;
+    private static final byte INS_APPEND = 0x20;
+    private static final byte INS_DUMP = 0x30;
+    private static final short BLOCK_SIZE = 256;
+
+    public ChainingTest(String name) {
+        super(name);
+    }
+
+    private static class ChainingApplet extends Applet implements ExtendedLength {
+        private final byte[] pattern = new byte[4096];
+        private final short[] state = JCSystem.makeTransientShortArray((short) 3, JCSystem.CLEAR_ON_DESELECT);
+
+        private ChainingApplet() {
+            for (short i = 0; i < pattern.length; i++) {
+                pattern[i] = (byte) i;
+            }
+        }
+
+        @SuppressWarnings("unused")
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new ChainingApplet().register();
+        }
+
+        @Override
+        public void process(APDU apdu) throws ISOException {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            switch (buffer[ISO7816.OFFSET_INS]) {
+                case INS_READ: {
+                    // send P1P2 bytes of the pattern
+                    short length = Util.getShort(buffer, ISO7816.OFFSET_P1);
+                    apdu.setOutgoing();
+                    apdu.setOutgoingLength(length);
+                    apdu.sendBytesLong(pattern, (short) 0, length);
+                    break;
+                }
+                case INS_APPEND: {
+                    // count and sum the data of a chain
+                    short length = apdu.setIncomingAndReceive();
+                    for (short i = 0; i < length; i++) {
+                        state[0]++;
+                        state[1] += buffer[(short) (apdu.getOffsetCdata() + i)] & 0xFF;
+                    }
+                    if (apdu.isCommandChainingCLA()) {
+                        return;
+                    }
+                    Util.setShort(buffer, (short) 0, state[0]);
+                    Util.setShort(buffer, (short) 2, state[1]);
+                    state[0] = 0;
+                    state[1] = 0;
+                    apdu.setOutgoingAndSend((short) 0, (short) 4);
+                    break;
+                }
+                case INS_DUMP:
+                    // P1P2 blocks, fetched with GET RESPONSE
+                    state[2] = Util.getShort(buffer, ISO7816.OFFSET_P1);
+                    sendBlock(apdu);
+                    break;
+                case (byte) 0xC0:
+                    sendBlock(apdu);
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+        }
+
+        private void sendBlock(APDU apdu) {
+            if (state[2] == 0) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            state[2]--;
+            apdu.setOutgoing();
+            apdu.setOutgoingLength(BLOCK_SIZE);
+            apdu.sendBytesLong(pattern, (short) 0, BLOCK_SIZE);
+            if (state[2] != 0) {
+                ISOException.throwIt(ISO7816.SW_BYTES_REMAINING_00);
+            }
+        }
+    }
+
+    private static class CollectingConsumer implements Consumer<ByteBuffer> {
+        final List<Integer> chunks = new ArrayList<Integer>();
+        long total;
+        boolean matchesPattern = true;
+
+        public void accept(ByteBuffer data) {
+            assertTrue(data.isReadOnly());
+            chunks.add(data.remaining());
+            while (data.hasRemaining()) {
+                matchesPattern &= data.get() == (byte) (total++ % BLOCK_SIZE);
+            }
+        }
+    }
+
+    private static Simulator createSimulator() {
+        Simulator simulator = new Simulator(new SimulatorRuntime());
+        simulator.installApplet(APPLET_AID, ChainingApplet.class);
+        simulator.selectApplet(APPLET_AID);
+        return simulator;
+    }
+
+    public void testResponseIsSplit() {
+        Simulator simulator = createSimulator();
+        simulator.runtime.setResponseChunkSize(256);
+        byte[] response = simulator.transmitCommand(new byte[]{CLA, INS_READ, 0x02, 0x00, 0, 0, 0});
+        assertEquals(258, response.length);
+        assertEquals(ISO7816.SW_BYTES_REMAINING_00, ByteUtil.getSW(response));
+
+        response = simulator.transmitCommand(new byte[]{0, (byte) 0xC0, 0, 0, 0x10});
+        assertEquals(18, response.length);
+        assertEquals((short) 0x61F0, ByteUtil.getSW(response));
+        assertEquals(0, response[0]);
+
+        response = simulator.transmitCommand(new byte[]{0, (byte) 0xC0, 0, 0, 0});
+        assertEquals(242, response.length);
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(response));
+        assertEquals(0x10, response[0]);
+    }
+
+    public void testOtherCommandDiscardsResponse() {
+        Simulator simulator = createSimulator();
+        simulator.runtime.setResponseChunkSize(100);
+        byte[] response = simulator.transmitCommand(new byte[]{CLA, INS_READ, 0x01, 0x00, 0, 0, 0});
+        assertEquals((short) 0x619C, ByteUtil.getSW(response));
+        simulator.transmitCommand(new byte[]{CLA, INS_APPEND, 0, 0, 1, 1});
+        // the applet gets GET RESPONSE, there is no block to send
+        response = simulator.transmitCommand(new byte[]{0, (byte) 0xC0, 0, 0, 0});
+        assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, ByteUtil.getSW(response));
+    }
+
+    public void testGetResponseOnOtherChannelDiscardsResponse() {
+        Simulator simulator = new Simulator(new SimulatorRuntime());
+        simulator.installApplet(APPLET_AID, ChainingApplet.class);
+        simulator.runtime.setResponseChunkSize(100);
+        byte[] response = simulator.transmitCommand(LogicalChannelUtil.openChannel(0));
+        byte channel = response[0];
+        byte[] select = AIDUtil.select(APPLET_AID);
+        select[ISO7816.OFFSET_CLA] = LogicalChannelUtil.setChannel(select[ISO7816.OFFSET_CLA], channel);
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(simulator.transmitCommand(select)));
+
+        byte cla = LogicalChannelUtil.setChannel(CLA, channel);
+        response = simulator.transmitCommand(new byte[]{cla, INS_READ, 0x01, 0x00, 0, 0, 0});
+        assertEquals((short) 0x619C, ByteUtil.getSW(response));
+        // the data of channel 1 can not be fetched on channel 0, which has no applet
+        response = simulator.transmitCommand(new byte[]{0, (byte) 0xC0, 0, 0, 0});
+        assertEquals(ISO7816.SW_COMMAND_NOT_ALLOWED, ByteUtil.getSW(response));
+        assertEquals(2, response.length);
+
+        response = simulator.transmitCommand(new byte[]{cla, INS_READ, 0x01, 0x00, 0, 0, 0});
+        assertEquals((short) 0x619C, ByteUtil.getSW(response));
+        response = simulator.transmitCommand(new byte[]{LogicalChannelUtil.setChannel((byte) 0, channel),
+                (byte) 0xC0, 0, 0, 0});
+        assertEquals(100, response.length - 2);
+        assertEquals((short) 0x6138, ByteUtil.getSW(response));
+    }
+
+    public void testSmallResponsesAreNotSplit() {
+        Simulator simulator = createSimulator();
+        simulator.runtime.setResponseChunkSize(256);
+        byte[] response = simulator.transmitCommand(new byte[]{CLA, INS_READ, 0x00, 0x10, 0x10});
+        assertEquals("000102030405060708090A0B0C0D0E0F9000", ByteUtil.hexString(response));
+    }
+
+    public void testTransmitChainedReadsSplitResponse() {
+        Simulator simulator = createSimulator();
+        simulator.runtime.setResponseChunkSize(256);
+        CollectingConsumer consumer = new CollectingConsumer();
+        short sw = CardManager.transmitChained(simulator, new byte[]{CLA, INS_READ, 0x03, (byte) 0xE8},
+                null, 1000, consumer);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals("[256, 256, 256, 232]", consumer.chunks.toString());
+        assertEquals(1000, consumer.total);
+    }
+
+    public void testTransmitChainedSendsCommandChain() {
+        Simulator simulator = createSimulator();
+        byte[] data = new byte[600];
+        int sum = 0;
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+            sum += data[i] & 0xFF;
+        }
+        final List<String> responses = new ArrayList<String>();
+        short sw = CardManager.transmitChained(simulator, new byte[]{CLA, INS_APPEND, 0, 0}, data, 256,
+                new Consumer<ByteBuffer>() {
+                    public void accept(ByteBuffer buffer) {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        responses.add(ByteUtil.hexString(bytes));
+                    }
+                });
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(1, responses.size());
+        assertEquals(String.format("%04X%04X", data.length, sum & 0xFFFF), responses.get(0));
+    }
+
+    public void testTransmitChainedStreamsLargeDump() {
+        Simulator simulator = createSimulator();
+        CollectingConsumer consumer = new CollectingConsumer();
+        // 4096 blocks of 256 bytes, 1 MB
+        short sw = CardManager.transmitChained(simulator, new byte[]{CLA, INS_DUMP, 0x10, 0x00}, null, 256,
+                consumer);
+        assertEquals(ISO7816.SW_NO_ERROR, sw);
+        assertEquals(1024 * 1024, consumer.total);
+        assertEquals(4096, consumer.chunks.size());
+        assertTrue(consumer.matchesPattern);
+    }
+
+    public void testTransmitChainedStopsOnRefusedChain() {
+        Simulator simulator = createSimulator();
+        CollectingConsumer consumer = new CollectingConsumer();
+        short sw = CardManager.transmitChained(simulator, new byte[]{CLA, 0x7F, 0, 0}, new byte[300], 0, consumer);
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, sw);
+        assertEquals(0, consumer.total);
+    }
+
+    public void testInvalidArguments() {
+        Simulator simulator = createSimulator();
+        CollectingConsumer consumer = new CollectingConsumer();
+        try {
+            CardManager.transmitChained(simulator, new byte[]{(byte) 0x90, INS_READ, 0, 0}, null, 0, consumer);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            simulator.runtime.setResponseChunkSize(257);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
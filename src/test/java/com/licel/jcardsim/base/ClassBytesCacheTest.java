@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import junit.framework.TestCase;
+
+public class ClassBytesCacheTest extends TestCase {
+
+    public ClassBytesCacheTest(String name) {
+        super(name);
+    }
+
+    public void testEqualContentsAreStoredOnce() {
+        ClassBytesCache cache = new ClassBytesCache();
+        byte[] bytes = new byte[]{1, 2, 3};
+        assertSame(bytes, cache.intern(bytes));
+        assertSame(bytes, cache.intern(new byte[]{1, 2, 3}));
+        assertEquals(1, cache.size());
+    }
+
+    public void testUnreachableContentsAreForgotten() {
+        ClassBytesCache cache = new ClassBytesCache();
+        byte[] other = cache.intern(new byte[]{4, 5, 6});
+        cache.intern(new byte[]{1, 2, 3});
+        // what the garbage collector does once the class file is no longer used
+        ClassBytesCache.ContentReference ref = cache.contents.get(ClassBytesCache.sha256(new byte[]{1, 2, 3}));
+        ref.clear();
+        ref.enqueue();
+        assertEquals(1, cache.size());
+
+        byte[] bytes = new byte[]{1, 2, 3};
+        assertSame(bytes, cache.intern(bytes));
+        assertEquals(2, cache.size());
+        assertSame(other, cache.intern(new byte[]{4, 5, 6}));
+    }
+}
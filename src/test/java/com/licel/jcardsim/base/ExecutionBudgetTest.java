@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.APDU;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class ExecutionBudgetTest extends TestCase {
+    private static final AID APPLET_AID = AIDUtil.create("F000000001");
+    private static final AID OTHER_APPLET_AID = AIDUtil.create("F000000002");
+    private static final byte INS_LOOP = 1;
+    private static final byte INS_LOOP_FOREVER = 2;
+    private static final byte INS_LOOP_CATCHING = 3;
+    private static final byte INS_LOOP_IN_TRANSACTION = 4;
+    private static final byte INS_READ = 5;
+    private static final byte INS_LOOP_ON_DESELECT = 6;
+    private static final short SW_BUDGET_EXCEEDED = (short) 0x6F01;
+
+    public ExecutionBudgetTest(String name) {
+        super(name);
+    }
+
+    public static class LoopingApplet extends Applet {
+        private final byte[] data = new byte[1];
+        private boolean loopOnDeselect;
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            // two bytes of parameters make the install loop forever
+            while (bLength == 2 && bArray[bOffset] != 0x7F) {
+                bArray[(short) (bOffset + 1)]++;
+            }
+            new LoopingApplet().register();
+        }
+
+        @Override
+        public void deselect() {
+            while (loopOnDeselect && data[0] != 0x7F) {
+                loopOnDeselect = true;
+            }
+        }
+
+        @Override
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            switch (buffer[ISO7816.OFFSET_INS]) {
+                case INS_LOOP:
+                    short count = 0;
+                    for (short i = 0; i < (buffer[ISO7816.OFFSET_P1] & 0xFF); i++) {
+                        count++;
+                    }
+                    buffer[0] = (byte) count;
+                    apdu.setOutgoingAndSend((short) 0, (short) 1);
+                    break;
+                case INS_LOOP_FOREVER:
+                    while (buffer[0] != 0x7F) {
+                        buffer[1]++;
+                    }
+                    break;
+                case INS_LOOP_CATCHING:
+                    while (true) {
+                        try {
+                            while (buffer[0] != 0x7F) {
+                                buffer[1]++;
+                            }
+                        } catch (Throwable e) {
+                            buffer[2]++;
+                        }
+                    }
+                case INS_LOOP_IN_TRANSACTION:
+                    JCSystem.beginTransaction();
+                    data[0] = 1;
+                    while (buffer[0] != 0x7F) {
+                        buffer[1]++;
+                    }
+                    JCSystem.commitTransaction();
+                    break;
+                case INS_READ:
+                    buffer[0] = data[0];
+                    apdu.setOutgoingAndSend((short) 0, (short) 1);
+                    break;
+                case INS_LOOP_ON_DESELECT:
+                    loopOnDeselect = true;
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+        }
+    }
+
+    private static Simulator createSimulator(ExecutionBudget executionBudget) {
+        return InstrumentedAppletFixture.createSimulator(createRuntime(executionBudget), APPLET_AID, LoopingApplet.class);
+    }
+
+    private static SimulatorRuntime createRuntime(ExecutionBudget executionBudget) {
+        SimulatorRuntime runtime = InstrumentedAppletFixture.createRuntime(LoopingApplet.class);
+        runtime.setExecutionBudget(executionBudget);
+        return runtime;
+    }
+
+    private static String transmit(Simulator simulator, byte ins, int p1) {
+        return ByteUtil.hexString(simulator.transmitCommand(new byte[]{(byte) 0x80, ins, (byte) p1, 0}));
+    }
+
+    public void testLoopWithinBudget() {
+        Simulator simulator = createSimulator(new ExecutionBudget(100, 0, SW_BUDGET_EXCEEDED));
+        assertEquals("63" + "9000", transmit(simulator, INS_LOOP, 99));
+        // the budget is per command
+        assertEquals("63" + "9000", transmit(simulator, INS_LOOP, 99));
+        assertEquals("6F01", transmit(simulator, INS_LOOP, 101));
+    }
+
+    public void testInstructionBudgetAbortsEndlessLoop() {
+        Simulator simulator = createSimulator(new ExecutionBudget(100000, 0, SW_BUDGET_EXCEEDED));
+        assertEquals("6F01", transmit(simulator, INS_LOOP_FOREVER, 0));
+        // the card is responsive again
+        assertEquals("05" + "9000", transmit(simulator, INS_LOOP, 5));
+    }
+
+    public void testTimeBudgetAbortsEndlessLoop() {
+        Simulator simulator = createSimulator(new ExecutionBudget(0, 50, SW_BUDGET_EXCEEDED));
+        long start = System.currentTimeMillis();
+        assertEquals("6F01", transmit(simulator, INS_LOOP_FOREVER, 0));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    public void testCaughtBudgetErrorStillAborts() {
+        Simulator simulator = createSimulator(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED));
+        assertEquals("6F01", transmit(simulator, INS_LOOP_CATCHING, 0));
+    }
+
+    public void testTransactionOfAbortedCommandIsRolledBack() {
+        Simulator simulator = createSimulator(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED));
+        assertEquals("6F01", transmit(simulator, INS_LOOP_IN_TRANSACTION, 0));
+        assertEquals("00" + "9000", transmit(simulator, INS_READ, 0));
+    }
+
+    public void testBudgetCoversDeselect() {
+        Simulator simulator = createSimulator(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED));
+        simulator.installApplet(OTHER_APPLET_AID, LoopingApplet.class.getName(), new byte[0], (short) 0, (byte) 0);
+        assertEquals("9000", transmit(simulator, INS_LOOP_ON_DESELECT, 0));
+        byte[] response = simulator.transmitCommand(AIDUtil.select(OTHER_APPLET_AID));
+        assertEquals(SW_BUDGET_EXCEEDED, ByteUtil.getSW(response));
+        // the card is responsive again
+        assertEquals("05" + "9000", transmit(simulator, INS_LOOP, 5));
+    }
+
+    public void testBudgetCoversInstall() {
+        Simulator simulator = new Simulator(createRuntime(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED)));
+        try {
+            simulator.installApplet(APPLET_AID, LoopingApplet.class.getName(), new byte[2], (short) 0, (byte) 2);
+            fail("SystemException expected");
+        } catch (SystemException e) {
+            assertEquals(SimulatorSystem.SW_APPLET_CREATION_FAILED, e.getReason());
+        }
+        simulator.installApplet(OTHER_APPLET_AID, LoopingApplet.class.getName(), new byte[0], (short) 0, (byte) 0);
+        simulator.selectApplet(OTHER_APPLET_AID);
+        assertEquals("05" + "9000", transmit(simulator, INS_LOOP, 5));
+    }
+
+    public void testBudgetRequiresInstrumentedApplet() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        Simulator simulator = new Simulator(runtime);
+        simulator.installApplet(APPLET_AID, LoopingApplet.class);
+        try {
+            runtime.setExecutionBudget(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertSame(ExecutionBudget.UNLIMITED, runtime.getExecutionBudget());
+
+        runtime = new SimulatorRuntime();
+        runtime.setExecutionBudget(new ExecutionBudget(1000, 0, SW_BUDGET_EXCEEDED));
+        simulator = new Simulator(runtime);
+        try {
+            simulator.installApplet(APPLET_AID, LoopingApplet.class);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testUnlimitedByDefault() {
+        assertSame(ExecutionBudget.UNLIMITED, new SimulatorRuntime().getExecutionBudget());
+        Simulator simulator = createSimulator(ExecutionBudget.UNLIMITED);
+        assertEquals("FF" + "9000", transmit(simulator, INS_LOOP, 255));
+    }
+
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(ExecutionBudget.fromProperties(properties));
+        properties.setProperty(ExecutionBudget.TIME_PROPERTY, " 500 ");
+        properties.setProperty(ExecutionBudget.STATUS_WORD_PROPERTY, "6F01");
+        ExecutionBudget executionBudget = ExecutionBudget.fromProperties(properties);
+        assertEquals(ExecutionBudget.UNLIMITED_VALUE, executionBudget.getInstructions());
+        assertEquals(500, executionBudget.getTimeMillis());
+        assertEquals(SW_BUDGET_EXCEEDED, executionBudget.getStatusWord());
+    }
+}
@@ -199,4 +199,57 @@ public class ExtendedLengthTest extends TestCase {
         assertEquals(0x9000, responseApdu.getSW());
         assertEquals(Arrays.toString(input), Arrays.toString(responseApdu.getData()));
     }
+
+    public void testApduBufferClearedAfterLongCommand() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        Simulator instance = new Simulator(runtime);
+        AID aid = new AID(TEST_APPLET_AID_BYTES, (short) 0, (byte) TEST_APPLET_AID_BYTES.length);
+        instance.installApplet(aid, Sha1Applet.class);
+        instance.selectApplet(aid);
+        // created by the first extended APDU
+        assertNull(runtime.extendedAPDU);
+
+        byte[] input = new byte[Short.MAX_VALUE - 2];
+        Arrays.fill(input, DUMMY);
+        ByteBuffer inputApdu = ByteBuffer.wrap(new byte[input.length + 7]);
+        inputApdu.put(CLA).put(INS_ECHO).put(P1).put(P2);
+        inputApdu.put((byte) 0).putShort((short) input.length); // Lc
+        inputApdu.put(input);
+        assertEquals(0x9000, new ResponseAPDU(instance.transmitCommand(inputApdu.array())).getSW());
+
+        byte[] apdu = new byte[]{CLA, INS_ECHO, 0, 0, 0, 0, 1, DUMMY};
+        assertEquals(0x9000, new ResponseAPDU(instance.transmitCommand(apdu)).getSW());
+
+        byte[] buffer = runtime.extendedAPDU.getBuffer();
+        assertEquals(Arrays.toString(apdu), Arrays.toString(Arrays.copyOf(buffer, apdu.length)));
+        for (int i = apdu.length; i < buffer.length; i++) {
+            assertEquals("offset " + i, 0, buffer[i]);
+        }
+    }
+
+    public void testUnsentScratchDataIsCleared() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        Simulator instance = new Simulator(runtime);
+        AID aid = new AID(TEST_APPLET_AID_BYTES, (short) 0, (byte) TEST_APPLET_AID_BYTES.length);
+        instance.installApplet(aid, Sha1Applet.class);
+        instance.selectApplet(aid);
+
+        byte[] input = new byte[2000];
+        ByteBuffer inputApdu = ByteBuffer.wrap(new byte[input.length + 7]);
+        inputApdu.put(CLA).put(INS_ECHO).put(P1).put(P2);
+        inputApdu.put((byte) 0).putShort((short) input.length); // Lc
+        inputApdu.put(input);
+        assertEquals(0x9000, new ResponseAPDU(instance.transmitCommand(inputApdu.array())).getSW());
+
+        byte[] apdu = new byte[]{CLA, INS_ECHO, 0, 0, 0, 0, 1, DUMMY};
+        assertEquals(0x9000, new ResponseAPDU(instance.transmitCommand(apdu)).getSW());
+        // scratch data an applet leaves in the area of the earlier long command
+        byte[] buffer = runtime.extendedAPDU.getBuffer();
+        Arrays.fill(buffer, 1000, 1500, DUMMY);
+
+        assertEquals(0x9000, new ResponseAPDU(instance.transmitCommand(apdu)).getSW());
+        for (int i = apdu.length; i < buffer.length; i++) {
+            assertEquals("offset " + i, 0, buffer[i]);
+        }
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+/**
+ * Runs a test applet with the barriers of <code>AppletClassInstrumenter</code>: the applet class
+ * and its nested classes are defined by an <code>IsolatingClassLoader</code> of the runtime.
+ */
+final class InstrumentedAppletFixture {
+    private InstrumentedAppletFixture() {
+    }
+
+    /**
+     * @param appletClass applet class to define in the runtime's own loader
+     * @return runtime whose applet class loader instruments <code>appletClass</code>
+     */
+    static SimulatorRuntime createRuntime(Class<? extends Applet> appletClass) {
+        final String appletClassName = appletClass.getName();
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.setAppletClassLoader(new IsolatingClassLoader(appletClass.getClassLoader()) {
+            @Override
+            protected boolean isShared(String className) {
+                return !className.equals(appletClassName) && !className.startsWith(appletClassName + "$")
+                        && super.isShared(className);
+            }
+        });
+        return runtime;
+    }
+
+    /**
+     * Install and select <code>appletClass</code> without install parameters
+     * @param runtime runtime from <code>createRuntime</code>
+     * @param aid applet AID
+     * @param appletClass applet class
+     * @return simulator with the selected applet
+     */
+    static Simulator createSimulator(SimulatorRuntime runtime, AID aid, Class<? extends Applet> appletClass) {
+        Simulator simulator = new Simulator(runtime);
+        simulator.installApplet(aid, appletClass.getName(), new byte[0], (short) 0, (byte) 0);
+        simulator.selectApplet(aid);
+        return simulator;
+    }
+}
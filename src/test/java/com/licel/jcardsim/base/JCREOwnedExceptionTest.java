@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.UserException;
+import javacard.security.CryptoException;
+import junit.framework.TestCase;
+
+public class JCREOwnedExceptionTest extends TestCase {
+    public JCREOwnedExceptionTest(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SimulatorSystem.setExceptionStackTraceEnabled(false);
+        super.tearDown();
+    }
+
+    private static ISOException catchISOException(short reason) {
+        try {
+            ISOException.throwIt(reason);
+        } catch (ISOException e) {
+            return e;
+        }
+        fail("no exception thrown");
+        return null;
+    }
+
+    public void testInstancesAreReusedInsideRuntime() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.enter();
+        try {
+            ISOException first = catchISOException(ISO7816.SW_WRONG_DATA);
+            assertEquals(ISO7816.SW_WRONG_DATA, first.getReason());
+            assertEquals(0, first.getStackTrace().length);
+
+            ISOException second = catchISOException(ISO7816.SW_FILE_NOT_FOUND);
+            assertSame(first, second);
+            assertEquals(ISO7816.SW_FILE_NOT_FOUND, second.getReason());
+
+            try {
+                CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+                fail("no exception thrown");
+            } catch (CryptoException e) {
+                assertEquals(CryptoException.ILLEGAL_VALUE, e.getReason());
+            }
+
+            try {
+                UserException.throwIt((short) 42);
+                fail("no exception thrown");
+            } catch (Exception e) {
+                // the generated throwIt has no throws clause
+                assertTrue(e instanceof UserException);
+                assertEquals(42, ((UserException) e).getReason());
+            }
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    public void testInstancesArePerRuntime() {
+        SimulatorRuntime runtime1 = new SimulatorRuntime();
+        SimulatorRuntime runtime2 = new SimulatorRuntime();
+        ISOException e1;
+        ISOException e2;
+        runtime1.enter();
+        try {
+            e1 = catchISOException(ISO7816.SW_WRONG_DATA);
+        } finally {
+            runtime1.exit();
+        }
+        runtime2.enter();
+        try {
+            e2 = catchISOException(ISO7816.SW_WRONG_DATA);
+        } finally {
+            runtime2.exit();
+        }
+        assertNotSame(e1, e2);
+    }
+
+    public void testStackTraceEnabled() {
+        SimulatorSystem.setExceptionStackTraceEnabled(true);
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.enter();
+        try {
+            ISOException first = catchISOException(ISO7816.SW_WRONG_DATA);
+            ISOException second = catchISOException(ISO7816.SW_WRONG_DATA);
+            assertNotSame(first, second);
+            assertTrue(first.getStackTrace().length > 0);
+        } finally {
+            runtime.exit();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.LogicalChannelUtil;
+import javacard.framework.*;
+import junit.framework.TestCase;
+
+public class LogicalChannelTest extends TestCase {
+    private static final AID SINGLE_AID = AIDUtil.create("F000000001");
+    private static final AID MULTI_AID = AIDUtil.create("F000000002");
+    private static final byte INS_INFO = 0;
+
+    private static int selectCount;
+    private static int deselectCount;
+
+    private static class SingleApplet extends Applet {
+        private final byte[] counter = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+
+        @SuppressWarnings("unused")
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new SingleApplet().register();
+        }
+
+        @Override
+        public boolean select() {
+            selectCount++;
+            return true;
+        }
+
+        @Override
+        public void deselect() {
+            deselectCount++;
+        }
+
+        @Override
+        public void process(APDU apdu) throws ISOException {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            buffer[0] = JCSystem.getAssignedChannel();
+            buffer[1] = APDU.getCLAChannel();
+            buffer[2] = ++counter[0];
+            apdu.setOutgoingAndSend((short) 0, (short) 3);
+        }
+    }
+
+    private static class MultiApplet extends SingleApplet implements MultiSelectable {
+        private static boolean lastAppInstAlreadySelected;
+
+        @SuppressWarnings("unused")
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new MultiApplet().register();
+        }
+
+        public boolean select(boolean appInstAlreadySelected) {
+            lastAppInstAlreadySelected = appInstAlreadySelected;
+            return select();
+        }
+
+        public void deselect(boolean appInstStillSelected) {
+            lastAppInstAlreadySelected = appInstStillSelected;
+            deselect();
+        }
+    }
+
+    public LogicalChannelTest(String name) {
+        super(name);
+    }
+
+    private static Simulator prepareSimulator() {
+        Simulator simulator = new Simulator();
+        simulator.installApplet(SINGLE_AID, SingleApplet.class);
+        simulator.installApplet(MULTI_AID, MultiApplet.class);
+        selectCount = 0;
+        deselectCount = 0;
+        return simulator;
+    }
+
+    private static byte openChannel(Simulator simulator, int origin) {
+        byte[] response = simulator.transmitCommand(LogicalChannelUtil.openChannel(origin));
+        assertEquals(3, response.length);
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(response));
+        return response[0];
+    }
+
+    private static byte[] select(Simulator simulator, int channel, AID aid) {
+        byte[] command = AIDUtil.select(aid);
+        command[ISO7816.OFFSET_CLA] = LogicalChannelUtil.setChannel(command[ISO7816.OFFSET_CLA], channel);
+        return simulator.transmitCommand(command);
+    }
+
+    private static String info(Simulator simulator, int channel) {
+        byte cla = LogicalChannelUtil.setChannel((byte) 0x80, channel);
+        return ByteUtil.hexString(simulator.transmitCommand(new byte[]{cla, INS_INFO, 0, 0}));
+    }
+
+    public void testChannelEncoding() {
+        for (int channel = 0; channel < LogicalChannelUtil.CHANNEL_COUNT; channel++) {
+            assertEquals(channel, LogicalChannelUtil.getChannel(LogicalChannelUtil.setChannel((byte) 0x80, channel)));
+            assertEquals(channel, LogicalChannelUtil.getChannel(LogicalChannelUtil.setChannel((byte) 0x0C, channel)));
+        }
+        assertEquals((byte) 0x93, LogicalChannelUtil.setChannel((byte) 0x90, 3));
+        assertEquals((byte) 0xCF, LogicalChannelUtil.setChannel((byte) 0x80, 19));
+        try {
+            LogicalChannelUtil.setChannel((byte) 0, LogicalChannelUtil.CHANNEL_COUNT);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testOpenAndCloseChannel() {
+        Simulator simulator = prepareSimulator();
+        assertEquals(1, openChannel(simulator, 0));
+        assertEquals(2, openChannel(simulator, 0));
+
+        byte[] response = simulator.transmitCommand(LogicalChannelUtil.closeChannel(1));
+        assertEquals("9000", ByteUtil.hexString(response));
+        assertEquals(1, openChannel(simulator, 0));
+
+        // the basic channel can not be closed
+        response = simulator.transmitCommand(LogicalChannelUtil.closeChannel(0));
+        assertEquals(ISO7816.SW_INCORRECT_P1P2, ByteUtil.getSW(response));
+    }
+
+    public void testAllChannelsInUse() {
+        Simulator simulator = prepareSimulator();
+        for (int i = 1; i < LogicalChannelUtil.CHANNEL_COUNT; i++) {
+            assertEquals(i, openChannel(simulator, 0));
+        }
+        byte[] response = simulator.transmitCommand(LogicalChannelUtil.openChannel(0));
+        assertEquals(ISO7816.SW_FUNC_NOT_SUPPORTED, ByteUtil.getSW(response));
+    }
+
+    public void testClosedChannelIsRejected() {
+        Simulator simulator = prepareSimulator();
+        assertTrue(simulator.selectApplet(SINGLE_AID));
+        openChannel(simulator, 0);
+        assertEquals(ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED,
+                ByteUtil.getSW(simulator.transmitCommand(new byte[]{(byte) 0x82, INS_INFO, 0, 0})));
+    }
+
+    public void testChannelBitsIgnoredWithoutLogicalChannels() {
+        Simulator simulator = prepareSimulator();
+        assertTrue(simulator.selectApplet(SINGLE_AID));
+        // proprietary CLA with channel bits reaches the applet of the basic channel
+        assertEquals("0000019000", info(simulator, 2));
+    }
+
+    public void testEachChannelKeepsItsSelection() {
+        Simulator simulator = prepareSimulator();
+        assertTrue(simulator.selectApplet(SINGLE_AID));
+        byte channel = openChannel(simulator, 0);
+        assertEquals("9000", ByteUtil.hexString(select(simulator, channel, MULTI_AID)));
+        assertEquals(2, selectCount);
+
+        assertEquals("0000019000", info(simulator, 0));
+        assertEquals("0101019000", info(simulator, channel));
+        // switching channels selects nothing and clears no transient data
+        assertEquals("0000029000", info(simulator, 0));
+        assertEquals("0101029000", info(simulator, channel));
+        assertEquals(2, selectCount);
+        assertEquals(0, deselectCount);
+
+        simulator.transmitCommand(LogicalChannelUtil.closeChannel(channel));
+        assertEquals(1, deselectCount);
+        assertEquals("0000039000", info(simulator, 0));
+    }
+
+    public void testOpenFromLogicalChannelSelectsApplet() {
+        Simulator simulator = prepareSimulator();
+        byte first = openChannel(simulator, 0);
+        assertEquals("9000", ByteUtil.hexString(select(simulator, first, MULTI_AID)));
+        byte second = openChannel(simulator, first);
+        assertEquals(2, selectCount);
+        assertTrue(MultiApplet.lastAppInstAlreadySelected);
+        assertEquals("0202019000", info(simulator, second));
+        // both channels share the CLEAR_ON_DESELECT array of the context
+        assertEquals("0101029000", info(simulator, first));
+
+        simulator.transmitCommand(LogicalChannelUtil.closeChannel(second));
+        assertTrue(MultiApplet.lastAppInstAlreadySelected);
+        assertEquals("0101039000", info(simulator, first));
+    }
+
+    public void testNonMultiSelectableAppletCanNotBeSelectedTwice() {
+        Simulator simulator = prepareSimulator();
+        assertTrue(simulator.selectApplet(SINGLE_AID));
+        byte channel = openChannel(simulator, 0);
+        assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, ByteUtil.getSW(select(simulator, channel, SINGLE_AID)));
+        assertEquals(1, selectCount);
+    }
+
+    public void testResetClosesChannels() {
+        Simulator simulator = prepareSimulator();
+        byte channel = openChannel(simulator, 0);
+        select(simulator, channel, MULTI_AID);
+        simulator.reset();
+        assertEquals(channel, openChannel(simulator, 0));
+        assertEquals(ISO7816.SW_COMMAND_NOT_ALLOWED, ByteUtil.getSW(simulator.transmitCommand(
+                new byte[]{LogicalChannelUtil.setChannel((byte) 0x80, channel), INS_INFO, 0, 0})));
+    }
+}
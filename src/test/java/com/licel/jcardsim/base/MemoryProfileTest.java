@@ -0,0 +1,312 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.APDU;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
+import javacard.framework.Util;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacardx.crypto.Cipher;
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class MemoryProfileTest extends TestCase {
+    private static final AID APPLET_AID = AIDUtil.create("F000000001");
+    private static final byte INS_AVAILABLE = 1;
+    private static final byte INS_ALLOCATE = 2;
+    private static final byte INS_ALLOCATE_TRANSIENT = 3;
+    private static final byte INS_DELETE = 4;
+    private static final byte INS_MOVE = 5;
+    private static final byte INS_NODE = 6;
+    private static final byte INS_CACHE = 7;
+
+    public MemoryProfileTest(String name) {
+        super(name);
+    }
+
+    public static class AllocatingApplet extends Applet {
+        private final Object[] objects = new Object[4];
+
+        public static class Node {
+            Node next;
+            final byte[] data;
+
+            Node(Node owner, short length) {
+                data = new byte[length];
+                if (owner != null) {
+                    owner.next = this;
+                }
+            }
+        }
+
+        public static class Cache {
+            static byte[] data;
+        }
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new AllocatingApplet().register();
+        }
+
+        @Override
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            short length = (short) (buffer[ISO7816.OFFSET_P2] & 0xFF);
+            try {
+                switch (buffer[ISO7816.OFFSET_INS]) {
+                    case INS_AVAILABLE:
+                        break;
+                    case INS_ALLOCATE:
+                        objects[buffer[ISO7816.OFFSET_P1]] = new byte[length];
+                        break;
+                    case INS_ALLOCATE_TRANSIENT:
+                        objects[buffer[ISO7816.OFFSET_P1]] =
+                                JCSystem.makeTransientByteArray(length, JCSystem.CLEAR_ON_DESELECT);
+                        break;
+                    case INS_DELETE:
+                        objects[buffer[ISO7816.OFFSET_P1]] = null;
+                        JCSystem.requestObjectDeletion();
+                        break;
+                    case INS_MOVE:
+                        objects[length] = objects[buffer[ISO7816.OFFSET_P1]];
+                        objects[buffer[ISO7816.OFFSET_P1]] = null;
+                        break;
+                    case INS_NODE:
+                        // a new node is appended by its own constructor
+                        if (objects[buffer[ISO7816.OFFSET_P1]] == null) {
+                            objects[buffer[ISO7816.OFFSET_P1]] = new Node(null, length);
+                        } else {
+                            new Node((Node) objects[buffer[ISO7816.OFFSET_P1]], length);
+                        }
+                        break;
+                    case INS_CACHE:
+                        Cache.data = new byte[length];
+                        break;
+                    default:
+                        ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+                }
+            } catch (SystemException e) {
+                if (e.getReason() == SystemException.NO_RESOURCE) {
+                    ISOException.throwIt(ISO7816.SW_FILE_FULL);
+                }
+                throw e;
+            }
+            Util.setShort(buffer, (short) 0, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT));
+            Util.setShort(buffer, (short) 2, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_RESET));
+            Util.setShort(buffer, (short) 4, JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT));
+            apdu.setOutgoingAndSend((short) 0, (short) 6);
+        }
+    }
+
+    private static Simulator createSimulator(MemoryProfile memoryProfile) {
+        SimulatorRuntime runtime = InstrumentedAppletFixture.createRuntime(AllocatingApplet.class);
+        runtime.setMemoryProfile(memoryProfile);
+        return InstrumentedAppletFixture.createSimulator(runtime, APPLET_AID, AllocatingApplet.class);
+    }
+
+    private static String transmit(Simulator simulator, byte ins, int p1, int p2) {
+        return ByteUtil.hexString(simulator.transmitCommand(new byte[]{(byte) 0x80, ins, (byte) p1, (byte) p2}));
+    }
+
+    public void testUnlimitedByDefault() {
+        Simulator simulator = createSimulator(MemoryProfile.UNLIMITED);
+        assertEquals("7FFF" + "7FFF" + "7FFF" + "9000", transmit(simulator, INS_ALLOCATE, 0, 200));
+    }
+
+    public void testPersistentMemoryIsCounted() {
+        Simulator simulator = createSimulator(new MemoryProfile(300, 100, 50));
+        // the applet instance and its array were counted at install time
+        int used = AllocationBarrier.instanceSize(AllocatingApplet.class) + MemoryProfile.HEADER_SIZE + 4 * 2;
+        assertEquals(300 - used, simulator.runtime.getAvailablePersistentMemory());
+        used += MemoryProfile.HEADER_SIZE + 100;
+        assertEquals(String.format("%04X", 300 - used) + "0064" + "0032" + "9000",
+                transmit(simulator, INS_ALLOCATE, 0, 100));
+        int available = 300 - used;
+        assertEquals(available, simulator.runtime.getAvailablePersistentMemory());
+        assertEquals("6A84", transmit(simulator, INS_ALLOCATE, 1, available));
+        assertEquals(available, simulator.runtime.getAvailablePersistentMemory());
+        assertEquals("0000" + "0064" + "0032" + "9000",
+                transmit(simulator, INS_ALLOCATE, 1, available - MemoryProfile.HEADER_SIZE));
+    }
+
+    public void testTransientMemoryIsCounted() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        assertTrue(transmit(simulator, INS_ALLOCATE_TRANSIENT, 0, 30).endsWith("0064" + "0014" + "9000"));
+        assertEquals("6A84", transmit(simulator, INS_ALLOCATE_TRANSIENT, 1, 21));
+        assertTrue(transmit(simulator, INS_ALLOCATE_TRANSIENT, 1, 20).endsWith("0064" + "0000" + "9000"));
+    }
+
+    public void testSnapshotRestoresUsedMemory() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        Snapshot snapshot = simulator.runtime.snapshot();
+        short persistent = simulator.runtime.getAvailablePersistentMemory();
+        transmit(simulator, INS_ALLOCATE, 0, 200);
+        transmit(simulator, INS_ALLOCATE_TRANSIENT, 1, 30);
+        simulator.runtime.restore(snapshot);
+        assertEquals(persistent, simulator.runtime.getAvailablePersistentMemory());
+        assertEquals(50, simulator.runtime.getAvailableTransientDeselectMemory());
+    }
+
+    public void testResetRuntimeFreesMemory() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        simulator.resetRuntime();
+        assertEquals(1000, simulator.runtime.getAvailablePersistentMemory());
+        assertEquals(100, simulator.runtime.getAvailableTransientResetMemory());
+        assertEquals(50, simulator.runtime.getAvailableTransientDeselectMemory());
+    }
+
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(MemoryProfile.fromProperties(properties));
+        properties.setProperty(MemoryProfile.PERSISTENT_PROPERTY, "81920");
+        properties.setProperty(MemoryProfile.TRANSIENT_RESET_PROPERTY, " 2048 ");
+        MemoryProfile memoryProfile = MemoryProfile.fromProperties(properties);
+        assertEquals(81920, memoryProfile.getPersistentSize());
+        assertEquals(2048, memoryProfile.getTransientResetSize());
+        assertEquals(MemoryProfile.UNLIMITED_SIZE, memoryProfile.getTransientDeselectSize());
+    }
+
+    public void testObjectDeletionFreesUnreachableObjects() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        short available = simulator.runtime.getAvailablePersistentMemory();
+        transmit(simulator, INS_ALLOCATE, 0, 100);
+        transmit(simulator, INS_ALLOCATE, 1, 50);
+        assertEquals(available - 2 * MemoryProfile.HEADER_SIZE - 150, simulator.runtime.getAvailablePersistentMemory());
+        transmit(simulator, INS_DELETE, 0, 0);
+        assertFalse(simulator.runtime.isObjectDeletionPending());
+        assertEquals(available - MemoryProfile.HEADER_SIZE - 50, simulator.runtime.getAvailablePersistentMemory());
+        transmit(simulator, INS_DELETE, 1, 0);
+        assertEquals(available, simulator.runtime.getAvailablePersistentMemory());
+    }
+
+    public void testObjectDeletionIsIncremental() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        simulator.runtime.setObjectDeletionStepSize(1);
+        short available = simulator.runtime.getAvailablePersistentMemory();
+        transmit(simulator, INS_ALLOCATE, 0, 100);
+        transmit(simulator, INS_ALLOCATE, 1, 50);
+        transmit(simulator, INS_DELETE, 2, 0);
+        assertTrue(simulator.runtime.isObjectDeletionPending());
+        // the applet keeps running while the mark is in progress
+        transmit(simulator, INS_MOVE, 1, 3);
+        for (int i = 0; i < 10 && simulator.runtime.isObjectDeletionPending(); i++) {
+            transmit(simulator, INS_AVAILABLE, 0, 0);
+        }
+        assertFalse(simulator.runtime.isObjectDeletionPending());
+        assertEquals(available - 2 * MemoryProfile.HEADER_SIZE - 150, simulator.runtime.getAvailablePersistentMemory());
+    }
+
+    public void testConstructorWritesDuringMarkAreScanned() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        transmit(simulator, INS_NODE, 0, 10);
+        transmit(simulator, INS_ALLOCATE, 1, 100);
+        // the first step marks the applet, its array and the node in it
+        simulator.runtime.setObjectDeletionStepSize(3);
+        transmit(simulator, INS_DELETE, 1, 0);
+        assertTrue(simulator.runtime.isObjectDeletionPending());
+        transmit(simulator, INS_NODE, 0, 20);
+        short afterNode = simulator.runtime.getAvailablePersistentMemory();
+        for (int i = 0; i < 10 && simulator.runtime.isObjectDeletionPending(); i++) {
+            transmit(simulator, INS_AVAILABLE, 0, 0);
+        }
+        assertFalse(simulator.runtime.isObjectDeletionPending());
+        // the node created during the mark is live, only the deleted array is credited back
+        assertEquals(afterNode + MemoryProfile.HEADER_SIZE + 100, simulator.runtime.getAvailablePersistentMemory());
+    }
+
+    public void testStaticFieldsOfUninstantiatedClassesAreRoots() {
+        Simulator simulator = createSimulator(new MemoryProfile(1000, 100, 50));
+        short available = simulator.runtime.getAvailablePersistentMemory();
+        transmit(simulator, INS_CACHE, 0, 100);
+        transmit(simulator, INS_DELETE, 0, 0);
+        assertFalse(simulator.runtime.isObjectDeletionPending());
+        // no instance of Cache exists, its static field is still live
+        assertEquals(available - MemoryProfile.HEADER_SIZE - 100, simulator.runtime.getAvailablePersistentMemory());
+    }
+
+    public void testTransientMemoryOfCollectedArraysIsFreed() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.setMemoryProfile(new MemoryProfile(1000, 100, 50));
+        runtime.enter();
+        try {
+            runtime.getTransientMemory().makeByteArray(40, JCSystem.CLEAR_ON_RESET);
+            assertEquals(60, runtime.getAvailableTransientResetMemory());
+            runtime.getTransientMemory().resetArrays.clear();
+            runtime.requestObjectDeletion();
+            assertTrue(runtime.continueObjectDeletion(0));
+            assertEquals(100, runtime.getAvailableTransientResetMemory());
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    public void testArraysOfCryptoObjectsAreNotCounted() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.setMemoryProfile(new MemoryProfile(1000, 64, 64));
+        runtime.enter();
+        try {
+            AESKey key = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+            key.setKey(new byte[16], (short) 0);
+            Cipher cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            byte[] iv = new byte[16];
+            for (int i = 0; i < 100; i++) {
+                cipher.init(key, Cipher.MODE_ENCRYPT, iv, (short) 0, (short) iv.length);
+            }
+            assertEquals(64, runtime.getAvailableTransientResetMemory());
+            assertEquals(64, runtime.getAvailableTransientDeselectMemory());
+            runtime.requestObjectDeletion();
+            assertTrue(runtime.continueObjectDeletion(0));
+            assertEquals(64, runtime.getAvailableTransientResetMemory());
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    public void testWritesDuringMarkAreScanned() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.enter();
+        try {
+            Object[] root = runtime.getTransientMemory().makeObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
+            Object[] holder = new Object[2];
+            Object[] inner = new Object[1];
+            byte[] data = new byte[5];
+            root[0] = holder;
+            holder[0] = inner;
+            inner[0] = data;
+            ObjectMarker marker = new ObjectMarker(runtime);
+            assertFalse(marker.step(2));
+            // holder is marked, inner is not scanned yet
+            holder[1] = data;
+            inner[0] = null;
+            marker.written(holder);
+            assertTrue(marker.step(0));
+            assertEquals(3 * MemoryProfile.HEADER_SIZE + 2 * 2 + 2 + 5, marker.getLiveMemory());
+        } finally {
+            runtime.exit();
+        }
+    }
+}
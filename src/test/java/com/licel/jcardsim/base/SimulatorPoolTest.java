@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.samples.HelloWorldApplet;
+import com.licel.jcardsim.samples.Sha1Applet;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import com.licel.jcardsim.utils.Consumer;
+import com.licel.jcardsim.utils.Supplier;
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SimulatorPoolTest extends TestCase {
+    private static final byte CLA = (byte) 0x80;
+    private static final byte INS_DIGEST = 0;
+    private static final byte INS_LAST_DIGEST = 6;
+
+    private static final AID SHA1_AID = AIDUtil.create("0102030405");
+    private static final AID HELLO_AID = AIDUtil.create("010203040506070809");
+
+    private static final Consumer<Simulator> TEMPLATE = new Consumer<Simulator>() {
+        public void accept(Simulator simulator) {
+            simulator.installApplet(SHA1_AID, Sha1Applet.class);
+            simulator.selectApplet(SHA1_AID);
+            simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'A'});
+        }
+    };
+
+    private static final AID COUNTER_AID = AIDUtil.create("F000000002");
+
+    public static class CounterApplet extends Applet {
+        private static byte count;
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new CounterApplet().register();
+        }
+
+        @Override
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            byte[] buffer = apdu.getBuffer();
+            buffer[0] = ++count;
+            apdu.setOutgoingAndSend((short) 0, (short) 1);
+        }
+    }
+
+    public SimulatorPoolTest(String name) {
+        super(name);
+    }
+
+    public void testCheckinRestoresTemplateState() throws Exception {
+        SimulatorPool pool = new SimulatorPool(1, TEMPLATE);
+        Simulator simulator = pool.checkout();
+        byte[] templateDigest = simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(templateDigest));
+
+        // modify the card
+        simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'B'});
+        simulator.installApplet(HELLO_AID, HelloWorldApplet.class);
+        pool.checkin(simulator);
+
+        simulator = pool.checkout();
+        byte[] digest = simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        assertEquals(ByteUtil.hexString(templateDigest), ByteUtil.hexString(digest));
+        assertFalse(simulator.selectApplet(HELLO_AID));
+        pool.checkin(simulator);
+    }
+
+    public void testTemplateRunsOnce() throws Exception {
+        final AtomicInteger calls = new AtomicInteger(0);
+        SimulatorPool pool = new SimulatorPool(3, new Consumer<Simulator>() {
+            public void accept(Simulator simulator) {
+                calls.incrementAndGet();
+                simulator.changeProtocol("T=CL");
+                simulator.runtime.setMaxCommitCapacity((short) 100);
+                TEMPLATE.accept(simulator);
+            }
+        });
+        assertEquals(1, calls.get());
+        assertEquals(3, pool.getCreatedCount());
+
+        Simulator simulator1 = pool.checkout();
+        Simulator simulator2 = pool.checkout();
+        byte[] templateDigest = simulator2.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(templateDigest));
+        assertNotSame(simulator1.runtime.getApplet(SHA1_AID), simulator2.runtime.getApplet(SHA1_AID));
+        assertEquals("T=CL", simulator1.getProtocol());
+        assertEquals(100, simulator1.runtime.getMaxCommitCapacity());
+
+        // the copies share no state
+        simulator1.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'B'});
+        assertFalse(ByteUtil.hexString(templateDigest).equals(
+                ByteUtil.hexString(simulator1.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0}))));
+        assertEquals(ByteUtil.hexString(templateDigest),
+                ByteUtil.hexString(simulator2.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0})));
+        pool.checkin(simulator1);
+        pool.checkin(simulator2);
+    }
+
+    public void testIsolatedRuntimesShareNoStatics() throws Exception {
+        final AtomicInteger calls = new AtomicInteger(0);
+        SimulatorPool pool = new SimulatorPool(2, 2, false, new Supplier<SimulatorRuntime>() {
+            public SimulatorRuntime get() {
+                return InstrumentedAppletFixture.createRuntime(CounterApplet.class);
+            }
+        }, new Consumer<Simulator>() {
+            public void accept(Simulator simulator) {
+                calls.incrementAndGet();
+                simulator.installApplet(COUNTER_AID, CounterApplet.class.getName(), new byte[0], (short) 0, (byte) 0);
+                simulator.selectApplet(COUNTER_AID);
+            }
+        });
+        // copies of the prototype would share its applet classes
+        assertEquals(2, calls.get());
+
+        Simulator simulator1 = pool.checkout();
+        Simulator simulator2 = pool.checkout();
+        assertEquals(1, count(simulator1));
+        assertEquals(2, count(simulator1));
+        assertEquals(1, count(simulator2));
+        pool.checkin(simulator1);
+        pool.checkin(simulator2);
+    }
+
+    public void testFailedRestoreKeepsSimulatorInPool() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(0);
+        SimulatorPool pool = new SimulatorPool(1, 1, false, new Supplier<SimulatorRuntime>() {
+            public SimulatorRuntime get() {
+                return new SimulatorRuntime() {
+                    @Override
+                    public void restore(Snapshot snapshot) {
+                        if (failures.get() > 0) {
+                            failures.decrementAndGet();
+                            throw new IllegalStateException("restore failed");
+                        }
+                        super.restore(snapshot);
+                    }
+                };
+            }
+        }, TEMPLATE);
+        Simulator simulator = pool.checkout();
+        simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'B'});
+        failures.set(1);
+        try {
+            pool.checkin(simulator);
+            fail("No exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1, pool.getIdleCount());
+
+        // restored by the next checkout
+        assertSame(simulator, pool.checkout(10, TimeUnit.MILLISECONDS));
+        byte[] digest = simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        pool.checkin(simulator);
+        simulator = pool.checkout();
+        assertEquals(ByteUtil.hexString(simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0})),
+                ByteUtil.hexString(digest));
+        pool.checkin(simulator);
+    }
+
+    public void testCheckinDiscardsPendingResponse() throws Exception {
+        SimulatorPool pool = new SimulatorPool(1, TEMPLATE);
+        Simulator simulator = pool.checkout();
+        simulator.runtime.setResponseChunkSize(8);
+        byte[] response = simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        assertEquals(10, response.length);
+        assertEquals((short) 0x610C, ByteUtil.getSW(response));
+        pool.checkin(simulator);
+
+        // the next borrower must not fetch the data left by the previous one
+        simulator = pool.checkout();
+        response = simulator.transmitCommand(new byte[]{0, (byte) 0xC0, 0, 0, 0});
+        assertEquals(ISO7816.SW_CLA_NOT_SUPPORTED, ByteUtil.getSW(response));
+        assertEquals(2, response.length);
+        pool.checkin(simulator);
+    }
+
+    public void testPoolSizeIsEnforced() throws Exception {
+        SimulatorPool pool = new SimulatorPool(2, 0, false, TEMPLATE);
+        assertEquals(0, pool.getCreatedCount());
+
+        Simulator simulator1 = pool.checkout();
+        Simulator simulator2 = pool.checkout();
+        assertNotSame(simulator1, simulator2);
+        assertEquals(2, pool.getCreatedCount());
+        assertNull(pool.checkout(10, TimeUnit.MILLISECONDS));
+
+        pool.checkin(simulator1);
+        assertSame(simulator1, pool.checkout(10, TimeUnit.MILLISECONDS));
+
+        try {
+            pool.checkin(new Simulator(new SimulatorRuntime()));
+            fail("No exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        pool.checkin(simulator2);
+        try {
+            pool.checkin(simulator2);
+            fail("No exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testWorkerAffinity() throws Exception {
+        SimulatorPool pool = new SimulatorPool(4, 4, true, TEMPLATE);
+        Simulator simulator = pool.checkout();
+        pool.checkin(simulator);
+        for (int i = 0; i < 10; i++) {
+            Simulator next = pool.checkout();
+            assertSame(simulator, next);
+            pool.checkin(next);
+        }
+    }
+
+    public void testParallelCheckout() throws Exception {
+        final SimulatorPool pool = new SimulatorPool(4, 2, false, TEMPLATE);
+        final AtomicInteger failures = new AtomicInteger(0);
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++) {
+                            Simulator simulator = pool.checkout();
+                            byte[] result = simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'C'});
+                            if (ByteUtil.getSW(result) != ISO7816.SW_NO_ERROR) {
+                                failures.incrementAndGet();
+                            }
+                            pool.checkin(simulator);
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(pool.getCreatedCount(), pool.getIdleCount());
+    }
+
+    private static int count(Simulator simulator) {
+        byte[] response = simulator.transmitCommand(new byte[]{CLA, 0, 0, 0});
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(response));
+        return response[0];
+    }
+}
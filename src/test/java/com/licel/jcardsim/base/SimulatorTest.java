@@ -16,11 +16,25 @@
 package com.licel.jcardsim.base;
 
 import com.licel.jcardsim.samples.HelloWorldApplet;
+import com.licel.jcardsim.samples.MultiInstanceApplet;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.Consumer;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javacard.framework.AID;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+import javacard.framework.SystemException;
 import javacard.framework.Util;
 import junit.framework.TestCase;
 import org.bouncycastle.util.Arrays;
@@ -86,6 +100,32 @@ public class SimulatorTest extends TestCase {
         assertEquals(instance.loadApplet(TEST_APPLET1_AID, TEST_APPLET1_CLASSNAME, appletJarContents).equals(TEST_APPLET1_AID),true);
     }
 
+    /**
+     * Uploading the same applet jar again reuses the loaded classes.
+     */
+    public void testLoadAppletJarTwice() throws Exception {
+        System.out.println("loadAppletJarTwice");
+        Simulator instance = new Simulator(new SimulatorRuntime());
+        AID otherAid = AIDUtil.create("01020304050607080B");
+        instance.loadApplet(TEST_APPLET1_AID, TEST_APPLET1_CLASSNAME, appletJarContents);
+        Class<?> appletClass = instance.cl.loadClass(TEST_APPLET1_CLASSNAME);
+        instance.loadApplet(otherAid, TEST_APPLET1_CLASSNAME, appletJarContents.clone());
+        assertSame(appletClass, instance.cl.loadClass(TEST_APPLET1_CLASSNAME));
+        assertNotNull(instance.cl.getResourceAsStream(TEST_APPLET1_CLASSNAME.replace('.', '/') + ".class"));
+        java.net.URL url = instance.cl.getResource(TEST_APPLET1_CLASSNAME.replace('.', '/') + ".class");
+        assertNotNull(url);
+        InputStream in = url.openStream();
+        assertEquals(0xCA, in.read());
+        in.close();
+        assertTrue(instance.cl.getResources(TEST_APPLET1_CLASSNAME.replace('.', '/') + ".class").hasMoreElements());
+        assertFalse(instance.cl.getResources("no/such/resource").hasMoreElements());
+
+        // another simulator shares the parsed jar, but defines its own class
+        Simulator other = new Simulator(new SimulatorRuntime());
+        other.loadApplet(TEST_APPLET1_AID, TEST_APPLET1_CLASSNAME, appletJarContents);
+        assertNotSame(appletClass, other.cl.loadClass(TEST_APPLET1_CLASSNAME));
+    }
+
     /**
      * Test of loadApplet method, of class Simulator.
      */
@@ -155,6 +195,57 @@ public class SimulatorTest extends TestCase {
         assertEquals(Arrays.areEqual(new byte[]{(byte)0x90, 0x00}, response), true);
     }
 
+    /**
+     * Test of installApplets method, of class Simulator.
+     */
+    public void testInstallApplets() {
+        System.out.println("installApplets");
+        AID loadFileAID = AIDUtil.create("F000000001");
+        AID moduleAID = AIDUtil.create("F000000001000001");
+        LoadFile loadFile = new LoadFile(loadFileAID, moduleAID, TEST_APPLET_CLASS);
+        AID[] appletAIDs = new AID[]{TEST_APPLET_AID, TEST_APPLET1_AID};
+
+        List<Simulator> simulators = new ArrayList<Simulator>();
+        for (int i = 0; i < 3; i++) {
+            simulators.add(new Simulator(new SimulatorRuntime()));
+        }
+        Simulator.installApplets(simulators, loadFile, moduleAID, appletAIDs, createData, (short) 0, (byte) createData.length);
+
+        for (Simulator simulator : simulators) {
+            assertEquals(1, simulator.runtime.loadFiles.size());
+            assertSame(loadFile, simulator.runtime.loadFiles.get(loadFileAID));
+            for (AID aid : appletAIDs) {
+                assertTrue(simulator.selectApplet(aid));
+                byte[] response = simulator.transmitCommand(new byte[]{0x01, 0x02, 0x00, 0x00});
+                assertTrue(Arrays.areEqual(new byte[]{(byte) 0x90, 0x00}, response));
+            }
+        }
+
+        // unknown module
+        try {
+            simulators.get(0).installApplets(loadFile, loadFileAID, appletAIDs, createData, (short) 0, (byte) createData.length);
+            fail("No exception");
+        } catch (SystemException e) {
+            assertEquals(SimulatorSystem.SW_APPLET_CREATION_FAILED, e.getReason());
+        }
+    }
+
+    /**
+     * Applets of the same class loaded with <code>loadApplet</code> share one LoadFile.
+     */
+    public void testLoadAppletSharesLoadFile() {
+        System.out.println("loadAppletSharesLoadFile");
+        Simulator instance = new Simulator(new SimulatorRuntime());
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        instance.installApplet(TEST_APPLET1_AID, TEST_APPLET_CLASS);
+        assertEquals(1, instance.runtime.loadFiles.size());
+        assertTrue(instance.selectApplet(TEST_APPLET_AID));
+        assertTrue(instance.selectApplet(TEST_APPLET1_AID));
+        // the next generated AID does not depend on the number of applets
+        instance.runtime.loadApplet(AIDUtil.create("D0000CAFE00001"), MultiInstanceApplet.class);
+        assertTrue(instance.runtime.loadFiles.containsKey(AIDUtil.create("FFFFFF0001")));
+    }
+
     public void testNopWithLengthExtensionsFails() {
         Simulator instance = new Simulator();
         instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
@@ -205,6 +296,477 @@ public class SimulatorTest extends TestCase {
         assertEquals(Arrays.areEqual(new byte[]{(byte)0x90, 0x00}, response), true);
     }
 
+    /**
+     * Test of transmitCommand method with caller supplied buffers, of class Simulator.
+     */
+    public void testTransmitCommandWithBuffers() {
+        System.out.println("transmitCommandWithBuffers");
+        Simulator instance = new Simulator();
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        assertEquals(instance.selectApplet(TEST_APPLET_AID), true);
+
+        // hello world, preceded by garbage
+        byte[] command = new byte[]{0x55, 0x55, 0x01, 0x01, 0x00, 0x00, 0x00, 0x55};
+        byte[] expected = instance.transmitCommand(new byte[]{0x01, 0x01, 0x00, 0x00, 0x00});
+        byte[] response = new byte[expected.length + 3];
+        int length = instance.transmitCommand(command, 2, 5, response, 3);
+        assertEquals(expected.length, length);
+        assertEquals(Arrays.areEqual(expected, java.util.Arrays.copyOfRange(response, 3, 3 + length)), true);
+
+        // unsupported INS, status word only
+        length = instance.transmitCommand(new byte[]{0x01, 0x70, 0x00, 0x00}, 0, 4, response, 0);
+        assertEquals(2, length);
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, Util.getShort(response, (short) 0));
+
+        // response buffer too small for the data
+        length = instance.transmitCommand(command, 2, 5, response, response.length - 2);
+        assertEquals(2, length);
+        assertFalse(Util.getShort(response, (short) (response.length - 2)) == ISO7816.SW_NO_ERROR);
+
+        try {
+            instance.transmitCommand(command, 2, 5, response, response.length - 1);
+            fail("No exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test of transmitCommand method with ByteBuffers, of class Simulator.
+     */
+    public void testTransmitCommandWithByteBuffers() {
+        System.out.println("transmitCommandWithByteBuffers");
+        Simulator instance = new Simulator();
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        assertEquals(instance.selectApplet(TEST_APPLET_AID), true);
+
+        byte[] echo = new byte[]{0x01, 0x03, 0x00, 0x00, 0x04, 0x11, 0x22, 0x33, 0x44, 0x00};
+        byte[] expected = instance.transmitCommand(echo);
+
+        // heap buffers, command in a slice
+        byte[] commandBytes = new byte[echo.length + 4];
+        System.arraycopy(echo, 0, commandBytes, 2, echo.length);
+        ByteBuffer command = ByteBuffer.wrap(commandBytes, 2, echo.length).slice();
+        ByteBuffer response = ByteBuffer.allocate(258 + 1);
+        response.put((byte) 0x55);
+        assertEquals(expected.length, instance.transmitCommand(command, response));
+        assertEquals(command.limit(), command.position());
+        assertEquals(1 + expected.length, response.position());
+        assertEquals(Arrays.areEqual(expected, java.util.Arrays.copyOfRange(response.array(), 1, response.position())), true);
+
+        // direct buffers
+        command = ByteBuffer.allocateDirect(echo.length);
+        command.put(echo);
+        command.flip();
+        response = ByteBuffer.allocateDirect(258);
+        assertEquals(expected.length, instance.transmitCommand(command, response));
+        response.flip();
+        byte[] actual = new byte[response.remaining()];
+        response.get(actual);
+        assertEquals(Arrays.areEqual(expected, actual), true);
+
+        // a response buffer that may be too small is rejected before the command is sent
+        command = ByteBuffer.allocateDirect(echo.length);
+        command.put(echo);
+        command.flip();
+        response = ByteBuffer.allocate(257);
+        try {
+            instance.transmitCommand(command, response);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, command.position());
+            assertEquals(0, response.position());
+        }
+
+        // extended commands need room for Ne
+        byte[] extended = new byte[]{0x01, 0x03, 0x00, 0x00, 0x00, 0x00, 0x01, 0x11, 0x02, 0x00};
+        try {
+            instance.transmitCommand(ByteBuffer.wrap(extended), ByteBuffer.allocate(0x200 + 1));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // malformed commands are rejected
+        try {
+            instance.transmitCommand(ByteBuffer.wrap(new byte[]{0x01, 0x03, 0x00, 0x00, 0x05, 0x11}),
+                    ByteBuffer.allocate(258));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that transmitCommand with caller supplied buffers does not allocate, of class Simulator.
+     */
+    public void testTransmitCommandWithBuffersDoesNotAllocate() {
+        System.out.println("transmitCommandWithBuffersDoesNotAllocate");
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // not supported by this VM
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        Simulator instance = new Simulator();
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        assertEquals(instance.selectApplet(TEST_APPLET_AID), true);
+        // echo, sends the data with sendBytesLong
+        byte[] command = new byte[]{0x01, 0x03, 0x00, 0x00, 0x04, 0x11, 0x22, 0x33, 0x44, 0x00};
+        byte[] response = new byte[300];
+        final int iterations = 10000;
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < iterations; i++) {
+            instance.transmitCommand(command, 0, command.length, response, 0);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        int length = 0;
+        for (int i = 0; i < iterations; i++) {
+            length = instance.transmitCommand(command, 0, command.length, response, 0);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(6, length);
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) (length - 2)));
+        assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    public void testSwitchingRuntimesDoesNotAllocate() {
+        System.out.println("switchingRuntimesDoesNotAllocate");
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return; // not supported by this VM
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported() || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        Simulator[] cards = new Simulator[]{
+                new Simulator(new SimulatorRuntime()), new Simulator(new SimulatorRuntime())};
+        for (Simulator card : cards) {
+            card.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+            assertTrue(card.selectApplet(TEST_APPLET_AID));
+        }
+        byte[] command = new byte[]{0x01, 0x02, 0x00, 0x00};
+        byte[] response = new byte[2];
+        final int iterations = 10000;
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < iterations; i++) {
+            cards[i & 1].transmitCommand(command, 0, command.length, response, 0);
+        }
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            cards[i & 1].transmitCommand(command, 0, command.length, response, 0);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) 0));
+        assertTrue("allocated " + allocated + " bytes", allocated < iterations);
+    }
+
+    public void testIdleRuntimeHasNoIOBuffers() {
+        System.out.println("idleRuntimeHasNoIOBuffers");
+        new SimulatorRuntime();
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        boolean measured = bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+        long before = measured ? ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId) : 0;
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        if (measured) {
+            long allocated = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(threadId) - before;
+            assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+        }
+        assertNull(runtime.responseBuffer);
+        assertNull(runtime.commandBuffer);
+        assertNull(runtime.extendedAPDU);
+
+        Simulator instance = new Simulator(runtime);
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        assertTrue(instance.selectApplet(TEST_APPLET_AID));
+        assertNotNull(runtime.responseBuffer);
+    }
+
+    public void testAPDUHasNoPublicInternals() {
+        System.out.println("apduHasNoPublicInternals");
+        assertFalse(com.licel.jcardsim.framework.InternalAPDU.class.isAssignableFrom(javacard.framework.APDU.class));
+        for (java.lang.reflect.Method method : javacard.framework.APDU.class.getMethods()) {
+            assertFalse(method.getName(), method.getName().startsWith("internal"));
+        }
+    }
+
+    /**
+     * Test of transmitBatch method, of class Simulator.
+     */
+    public void testTransmitBatch() {
+        System.out.println("transmitBatch");
+        Simulator instance = new Simulator();
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+
+        byte[] select = AIDUtil.select(TEST_APPLET_AID);
+        byte[] nop = new byte[]{0x01, 0x02, 0x00, 0x00};
+        byte[] unsupported = new byte[]{0x01, 0x70, 0x00, 0x00};
+        List<byte[]> commands = java.util.Arrays.asList(select, nop, unsupported, nop);
+
+        List<byte[]> responses = instance.transmitBatch(commands, false);
+        assertEquals(4, responses.size());
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(responses.get(1), (short) 0));
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, Util.getShort(responses.get(2), (short) 0));
+        assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(responses.get(3), (short) 0));
+
+        responses = instance.transmitBatch(commands, true);
+        assertEquals(3, responses.size());
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, Util.getShort(responses.get(2), (short) 0));
+
+        final List<byte[]> streamed = new ArrayList<byte[]>();
+        int count = instance.transmitBatch(commands.iterator(), new Consumer<byte[]>() {
+            public void accept(byte[] response) {
+                streamed.add(response);
+            }
+        }, true);
+        assertEquals(3, count);
+        assertEquals(3, streamed.size());
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, Util.getShort(streamed.get(2), (short) 0));
+    }
+
+    /**
+     * Test of transmitAsync method, of class Simulator.
+     */
+    public void testTransmitAsync() throws Exception {
+        System.out.println("transmitAsync");
+        final int commandsPerCard = 50;
+        Simulator[] cards = new Simulator[]{
+                new Simulator(new SimulatorRuntime()), new Simulator(new SimulatorRuntime())};
+        final CountDownLatch latch = new CountDownLatch(cards.length * commandsPerCard);
+        List<List<Byte>> received = new ArrayList<List<Byte>>();
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+
+        for (Simulator card : cards) {
+            card.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+            assertTrue(card.selectApplet(TEST_APPLET_AID));
+            final List<Byte> responses = java.util.Collections.synchronizedList(new ArrayList<Byte>());
+            received.add(responses);
+            Consumer<byte[]> onResponse = new Consumer<byte[]>() {
+                public void accept(byte[] response) {
+                    responses.add(response[0]);
+                    latch.countDown();
+                }
+            };
+            for (int i = 0; i < commandsPerCard; i++) {
+                byte[] echo = new byte[]{0x01, 0x03, 0x00, 0x00, 0x01, (byte) i, 0x00};
+                futures.add(card.transmitAsync(echo, onResponse, null));
+            }
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        for (List<Byte> responses : received) {
+            assertEquals(commandsPerCard, responses.size());
+            for (int i = 0; i < commandsPerCard; i++) {
+                assertEquals((byte) i, responses.get(i).byteValue());
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            byte[] response = futures.get(i).get();
+            assertEquals((byte) (i % commandsPerCard), response[0]);
+            assertEquals(ISO7816.SW_NO_ERROR, Util.getShort(response, (short) 1));
+        }
+    }
+
+    /**
+     * A callback of transmitAsync may wait for a later command of the same simulator.
+     */
+    public void testAsyncCallbackWaitsForLaterCommand() throws Exception {
+        System.out.println("asyncCallbackWaitsForLaterCommand");
+        Simulator card = new Simulator(new SimulatorRuntime());
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            card.setAsyncExecutor(executor);
+            card.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+            assertTrue(card.selectApplet(TEST_APPLET_AID));
+            final CountDownLatch submitted = new CountDownLatch(1);
+            final List<Future<byte[]>> later = new ArrayList<Future<byte[]>>();
+            final List<byte[]> received = java.util.Collections.synchronizedList(new ArrayList<byte[]>());
+            byte[] echo = new byte[]{0x01, 0x03, 0x00, 0x00, 0x01, 0x11, 0x00};
+            Future<byte[]> first = card.transmitAsync(echo, new Consumer<byte[]>() {
+                public void accept(byte[] response) {
+                    try {
+                        submitted.await();
+                        received.add(later.get(0).get(10, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, null);
+            // the command is copied, changing the array does not change the pending command
+            echo[5] = 0x22;
+            later.add(card.transmitAsync(echo));
+            submitted.countDown();
+            assertEquals(0x11, first.get(10, TimeUnit.SECONDS)[0]);
+            for (int i = 0; i < 100 && received.isEmpty(); i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, received.size());
+            assertEquals(0x22, received.get(0)[0]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Many threads sharing many simulators, each with its own runtime.
+     */
+    public void testConcurrentTransmit() throws Exception {
+        System.out.println("concurrentTransmit");
+        final int cardCount = 100;
+        final int taskCount = 20000;
+        final Simulator[] cards = new Simulator[cardCount];
+        for (int i = 0; i < cardCount; i++) {
+            cards[i] = new Simulator(new SimulatorRuntime());
+            cards[i].installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+            assertTrue(cards[i].selectApplet(TEST_APPLET_AID));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < taskCount; i++) {
+                final int task = i;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        Simulator card = cards[task % cardCount];
+                        byte[] echo = new byte[]{0x01, 0x03, 0x00, 0x00, 0x02, (byte) (task >> 8), (byte) task, 0x00};
+                        byte[] response = card.transmitCommand(echo);
+                        boolean ok = response.length == 4 && response[0] == (byte) (task >> 8)
+                                && response[1] == (byte) task
+                                && Util.getShort(response, (short) 2) == ISO7816.SW_NO_ERROR;
+                        // outside of the call the last runtime of the thread stays active
+                        return ok && SimulatorSystem.instance() == card.runtime;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Direct calls of the Java Card API use the runtime of the last simulator call.
+     */
+    public void testDirectCallsUseLastRuntime() {
+        System.out.println("directCallsUseLastRuntime");
+        SimulatorRuntime runtime1 = new SimulatorRuntime();
+        new Simulator(runtime1);
+        assertSame(runtime1, SimulatorSystem.instance());
+        byte[] array = JCSystem.makeTransientByteArray((short) 4, JCSystem.CLEAR_ON_RESET);
+        assertEquals(JCSystem.CLEAR_ON_RESET, runtime1.getTransientMemory().isTransient(array));
+
+        SimulatorRuntime runtime2 = new SimulatorRuntime();
+        Simulator instance2 = new Simulator(runtime2);
+        instance2.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS);
+        assertSame(runtime2, SimulatorSystem.instance());
+        assertEquals(JCSystem.NOT_A_TRANSIENT_OBJECT, JCSystem.isTransient(array));
+
+        // a runtime activated outside of a scope stays active
+        SimulatorSystem.setCurrentInstance(runtime1);
+        assertEquals(JCSystem.CLEAR_ON_RESET, JCSystem.isTransient(array));
+    }
+
+    /**
+     * Applets loaded by name get their own classes in each runtime with an <code>IsolatingClassLoader</code>.
+     */
+    public void testAppletClassIsolation() {
+        System.out.println("appletClassIsolation");
+        String className = "com.licel.jcardsim.samples.MultiInstanceApplet";
+        AID aid1 = AIDUtil.create("D0000CAFE00001");
+        AID aid2 = AIDUtil.create("D0000CAFE00002");
+        byte[] getCount = new byte[]{(byte) 0x80, 0x02, 0x00, 0x00, 0x00};
+
+        SimulatorRuntime runtime1 = new SimulatorRuntime();
+        runtime1.setAppletClassLoader(new IsolatingClassLoader(SimulatorTest.class.getClassLoader()));
+        Simulator instance1 = new Simulator(runtime1);
+        instance1.installApplet(aid1, className, new byte[0], (short) 0, (byte) 0);
+        instance1.installApplet(aid2, className, new byte[0], (short) 0, (byte) 0);
+
+        SimulatorRuntime runtime2 = new SimulatorRuntime();
+        runtime2.setAppletClassLoader(new IsolatingClassLoader(SimulatorTest.class.getClassLoader()));
+        Simulator instance2 = new Simulator(runtime2);
+        instance2.installApplet(aid1, className, new byte[0], (short) 0, (byte) 0);
+
+        assertTrue(instance1.selectApplet(aid1));
+        assertEquals(2, Util.getShort(instance1.transmitCommand(getCount), (short) 0));
+        assertTrue(instance2.selectApplet(aid1));
+        assertEquals(1, Util.getShort(instance2.transmitCommand(getCount), (short) 0));
+
+        Class<?> class1 = runtime1.getApplet(aid1).getClass();
+        Class<?> class2 = runtime2.getApplet(aid1).getClass();
+        assertEquals(className, class1.getName());
+        assertNotSame(class1, class2);
+        assertSame(runtime1.getAppletClassLoader(), class1.getClassLoader());
+
+        // runtimes sharing a class loader share applet classes
+        SimulatorRuntime runtime3 = new SimulatorRuntime();
+        runtime3.setAppletClassLoader(runtime1.getAppletClassLoader());
+        Simulator instance3 = new Simulator(runtime3);
+        instance3.installApplet(aid1, className, new byte[0], (short) 0, (byte) 0);
+        assertSame(class1, runtime3.getApplet(aid1).getClass());
+    }
+
+    /**
+     * A LoadFile installed into runtimes with an IsolatingClassLoader uses the classes of each runtime.
+     */
+    public void testInstallAppletsIsolatesClasses() {
+        System.out.println("installAppletsIsolatesClasses");
+        AID loadFileAID = AIDUtil.create("D0000CAFE0");
+        AID moduleAID = AIDUtil.create("D0000CAFE000");
+        AID aid1 = AIDUtil.create("D0000CAFE00001");
+        AID aid2 = AIDUtil.create("D0000CAFE00002");
+        byte[] getCount = new byte[]{(byte) 0x80, 0x02, 0x00, 0x00, 0x00};
+        LoadFile loadFile = new LoadFile(loadFileAID, moduleAID, MultiInstanceApplet.class);
+
+        List<Simulator> simulators = new ArrayList<Simulator>();
+        for (int i = 0; i < 2; i++) {
+            SimulatorRuntime runtime = new SimulatorRuntime();
+            runtime.setAppletClassLoader(new IsolatingClassLoader(SimulatorTest.class.getClassLoader()));
+            simulators.add(new Simulator(runtime));
+        }
+        Simulator.installApplets(simulators, loadFile, moduleAID, new AID[]{aid1}, new byte[0], (short) 0, (byte) 0);
+        // the copy of the load file is reused
+        simulators.get(0).installApplets(loadFile, moduleAID, new AID[]{aid2}, new byte[0], (short) 0, (byte) 0);
+
+        Simulator instance1 = simulators.get(0);
+        Simulator instance2 = simulators.get(1);
+        assertTrue(instance1.selectApplet(aid1));
+        assertEquals(2, Util.getShort(instance1.transmitCommand(getCount), (short) 0));
+        assertTrue(instance2.selectApplet(aid1));
+        assertEquals(1, Util.getShort(instance2.transmitCommand(getCount), (short) 0));
+        Class<?> class1 = instance1.runtime.getApplet(aid1).getClass();
+        assertSame(instance1.runtime.getAppletClassLoader(), class1.getClassLoader());
+        assertNotSame(class1, instance2.runtime.getApplet(aid1).getClass());
+        assertSame(class1, instance1.runtime.getApplet(aid2).getClass());
+    }
+
+    /**
+     * By default applets loaded by name use the classes of the caller.
+     */
+    public void testAppletClassesAreSharedByDefault() {
+        System.out.println("appletClassesAreSharedByDefault");
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        assertSame(SimulatorRuntime.class.getClassLoader(), runtime.getAppletClassLoader());
+        Simulator instance = new Simulator(runtime);
+        instance.installApplet(TEST_APPLET_AID, TEST_APPLET_CLASS.getName(), new byte[0], (short) 0, (byte) 0);
+        assertSame(TEST_APPLET_CLASS, runtime.getApplet(TEST_APPLET_AID).getClass());
+    }
+
     /**
      * Test of reset method, of class Simulator.
      */
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.samples.MultiInstanceApplet;
+import com.licel.jcardsim.samples.Sha1Applet;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.AID;
+import javacard.framework.ISO7816;
+import junit.framework.TestCase;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class SnapshotTest extends TestCase {
+    private static final byte CLA = (byte) 0x80;
+    private static final byte INS_DIGEST = 0;
+    private static final byte INS_MAKE_UNUSABLE = 4;
+    private static final byte INS_LAST_DIGEST = 6;
+
+    private static final AID MULTI_AID = AIDUtil.create("d0000cafe00001");
+    private static final AID SHA1_AID = AIDUtil.create("0102030405");
+    private static final AID LATE_AID = AIDUtil.create("a000000077");
+
+    public SnapshotTest(String name) {
+        super(name);
+    }
+
+    private static byte[] sha1(byte data) throws Exception {
+        return MessageDigest.getInstance("SHA1").digest(new byte[]{data});
+    }
+
+    private static byte[] data(byte[] response) {
+        return Arrays.copyOf(response, response.length - 2);
+    }
+
+    public void testRestoreReturnsToCapturedState() throws Exception {
+        Simulator simulator = new Simulator(new SimulatorRuntime());
+        simulator.installApplet(MULTI_AID, MultiInstanceApplet.class);
+        simulator.installApplet(SHA1_AID, Sha1Applet.class);
+        simulator.selectApplet(SHA1_AID);
+        simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'A'});
+
+        Snapshot snapshot = simulator.snapshot();
+        assertTrue(snapshot.getObjectCount() > 0);
+
+        // modify the card
+        simulator.transmitCommand(new byte[]{CLA, INS_DIGEST, 0, 0, 1, 'B'});
+        simulator.installApplet(LATE_AID, MultiInstanceApplet.class);
+        simulator.deleteApplet(MULTI_AID);
+
+        simulator.restore(snapshot);
+
+        // Sha1Applet is still selected and its transient buffer is restored
+        byte[] result = simulator.transmitCommand(new byte[]{CLA, INS_LAST_DIGEST, 0, 0});
+        assertEquals(ISO7816.SW_NO_ERROR, ByteUtil.getSW(result));
+        assertEquals(Arrays.toString(sha1((byte) 'A')), Arrays.toString(data(result)));
+
+        // deleted applet is back, applet installed later is gone
+        assertTrue(simulator.selectApplet(MULTI_AID));
+        assertFalse(simulator.selectApplet(LATE_AID));
+
+        // uninstall, MultiInstanceApplet counts instances in a static field
+        simulator.resetRuntime();
+    }
+
+    public void testRestoreRevertsAppletFields() {
+        Simulator simulator = new Simulator(new SimulatorRuntime());
+        simulator.installApplet(MULTI_AID, MultiInstanceApplet.class);
+        Snapshot snapshot = simulator.snapshot();
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(simulator.selectApplet(MULTI_AID));
+            simulator.transmitCommand(new byte[]{CLA, INS_MAKE_UNUSABLE, 0, 0});
+            assertFalse(simulator.selectApplet(MULTI_AID));
+
+            simulator.restore(snapshot);
+        }
+        simulator.resetRuntime();
+    }
+
+    public void testSnapshotFromOtherRuntimeIsRejected() {
+        Simulator simulator1 = new Simulator(new SimulatorRuntime());
+        Simulator simulator2 = new Simulator(new SimulatorRuntime());
+        try {
+            simulator2.restore(simulator1.snapshot());
+            fail("No exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 Licel Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.licel.jcardsim.base;
+
+import com.licel.jcardsim.utils.AIDUtil;
+import com.licel.jcardsim.utils.ByteUtil;
+import javacard.framework.APDU;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.TransactionException;
+import javacard.framework.Util;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class TransactionTest extends TestCase {
+    private static final AID APPLET_AID = AIDUtil.create("F000000001");
+    private static final byte INS_ABORT = 1;
+    private static final byte INS_COMMIT = 2;
+    private static final byte INS_THROW = 3;
+    private static final byte INS_STATE = 4;
+
+    public TransactionTest(String name) {
+        super(name);
+    }
+
+    public static class TransactionApplet extends Applet {
+        private static short staticCounter;
+        private final byte[] source = {7, 8, 9};
+        private final byte[] data = new byte[4];
+        private final boolean[] flags = new boolean[1];
+        private final short[] values = new short[1];
+        private final Object[] references = new Object[1];
+        private final byte[] transientData = JCSystem.makeTransientByteArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        private short counter;
+        private Object reference;
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new TransactionApplet().register();
+        }
+
+        @Override
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            switch (apdu.getBuffer()[ISO7816.OFFSET_INS]) {
+                case INS_ABORT:
+                    JCSystem.beginTransaction();
+                    write();
+                    JCSystem.abortTransaction();
+                    break;
+                case INS_COMMIT:
+                    JCSystem.beginTransaction();
+                    write();
+                    JCSystem.commitTransaction();
+                    break;
+                case INS_THROW:
+                    JCSystem.beginTransaction();
+                    write();
+                    ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+                    break;
+                case INS_STATE:
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+            byte[] buffer = apdu.getBuffer();
+            short offset = Util.setShort(buffer, (short) 0, counter);
+            offset = Util.arrayCopyNonAtomic(data, (short) 0, buffer, offset, (short) data.length);
+            buffer[offset++] = (byte) (flags[0] ? 1 : 0);
+            offset = Util.setShort(buffer, offset, values[0]);
+            buffer[offset++] = (byte) (references[0] == null ? 0 : 1);
+            buffer[offset++] = (byte) (reference == null ? 0 : 1);
+            offset = Util.setShort(buffer, offset, staticCounter);
+            buffer[offset++] = transientData[0];
+            apdu.setOutgoingAndSend((short) 0, offset);
+        }
+
+        private void write() {
+            counter++;
+            data[0]++;
+            Util.arrayCopy(source, (short) 0, data, (short) 1, (short) source.length);
+            flags[0] = true;
+            values[0] += 0x0101;
+            references[0] = this;
+            reference = this;
+            staticCounter++;
+            transientData[0]++;
+        }
+    }
+
+    private static Simulator createSimulator() {
+        return InstrumentedAppletFixture.createSimulator(InstrumentedAppletFixture.createRuntime(TransactionApplet.class),
+                APPLET_AID, TransactionApplet.class);
+    }
+
+    private static String transmit(Simulator simulator, byte ins) {
+        return ByteUtil.hexString(simulator.transmitCommand(new byte[]{(byte) 0x80, ins, 0, 0}));
+    }
+
+    public void testAbortRollsBackInstrumentedWrites() {
+        Simulator simulator = createSimulator();
+        // only the transient array keeps its new value
+        assertEquals("0000" + "00000000" + "00" + "0000" + "00" + "00" + "0000" + "01" + "9000",
+                transmit(simulator, INS_ABORT));
+        assertEquals(0, simulator.runtime.getTransactionDepth());
+        assertEquals(Short.MAX_VALUE, simulator.runtime.getUnusedCommitCapacity());
+    }
+
+    public void testCommitKeepsWrites() {
+        Simulator simulator = createSimulator();
+        assertEquals("0001" + "01070809" + "01" + "0101" + "01" + "01" + "0001" + "01" + "9000",
+                transmit(simulator, INS_COMMIT));
+        assertEquals("0001" + "01070809" + "01" + "0101" + "01" + "01" + "0001" + "01" + "9000",
+                transmit(simulator, INS_STATE));
+    }
+
+    public void testOpenTransactionIsAbortedAfterProcess() {
+        Simulator simulator = createSimulator();
+        assertEquals("6984", transmit(simulator, INS_THROW));
+        assertEquals(0, simulator.runtime.getTransactionDepth());
+        assertEquals("0000" + "00000000" + "00" + "0000" + "00" + "00" + "0000" + "01" + "9000",
+                transmit(simulator, INS_STATE));
+    }
+
+    public void testUninstrumentedAppletsJournalNothing() {
+        Simulator simulator = new Simulator();
+        simulator.installApplet(APPLET_AID, TransactionApplet.class);
+        simulator.selectApplet(APPLET_AID);
+        // the writes of Util.arrayCopy are kept like all other writes
+        String response = transmit(simulator, INS_ABORT);
+        assertEquals("0001" + "01070809" + "01" + "0101" + "01" + "01", response.substring(0, 22));
+        assertEquals("9000", response.substring(response.length() - 4));
+        assertEquals(0, simulator.runtime.getTransactionDepth());
+        assertEquals(Short.MAX_VALUE, simulator.runtime.getUnusedCommitCapacity());
+    }
+
+    public void testArrayCopyIsJournaled() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        byte[] dest = {1, 2, 3, 4};
+        runtime.enter();
+        try {
+            JCSystem.beginTransaction();
+            Util.arrayCopy(new byte[]{9, 9}, (short) 0, dest, (short) 1, (short) 2);
+            Util.setShort(dest, (short) 2, (short) 0x7777);
+            Util.arrayFillNonAtomic(dest, (short) 0, (short) 1, (byte) 5);
+            assertEquals(Short.MAX_VALUE - 2 - 2 - 2 * TransactionJournal.ENTRY_OVERHEAD,
+                    JCSystem.getUnusedCommitCapacity());
+            JCSystem.abortTransaction();
+        } finally {
+            runtime.exit();
+        }
+        // the non-atomic fill is not rolled back
+        assertEquals("05020304", ByteUtil.hexString(dest));
+    }
+
+    public void testOverlappingArrayCopiesAreRolledBack() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        byte[] dest = new byte[200];
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = (byte) i;
+        }
+        byte[] expected = dest.clone();
+        runtime.enter();
+        try {
+            for (int round = 0; round < 2; round++) {
+                JCSystem.beginTransaction();
+                // grows the saved range pool, later ranges save data written by earlier ones
+                for (short i = 0; i < 10; i++) {
+                    Util.arrayCopy(new byte[100], (short) 0, dest, (short) (i * 10), (short) 100);
+                }
+                JCSystem.abortTransaction();
+                assertTrue(Arrays.equals(expected, dest));
+            }
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    public void testCommitCapacityIsEnforced() {
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        runtime.setMaxCommitCapacity((short) 10);
+        byte[] dest = new byte[8];
+        runtime.enter();
+        try {
+            assertEquals(10, JCSystem.getMaxCommitCapacity());
+            JCSystem.beginTransaction();
+            Util.arrayCopy(new byte[4], (short) 0, dest, (short) 0, (short) 4);
+            assertEquals(2, JCSystem.getUnusedCommitCapacity());
+            try {
+                Util.arrayCopy(new byte[]{1}, (short) 0, dest, (short) 4, (short) 1);
+                fail("No exception");
+            } catch (TransactionException e) {
+                assertEquals(TransactionException.BUFFER_FULL, e.getReason());
+            }
+            // no copy is performed
+            assertEquals(0, dest[4]);
+            JCSystem.commitTransaction();
+            assertEquals(10, JCSystem.getUnusedCommitCapacity());
+        } finally {
+            runtime.exit();
+        }
+    }
+
+    public void testBarrierWithoutTransaction() {
+        byte[] bytes = new byte[1];
+        boolean[] booleans = new boolean[1];
+        TransactionBarrier.bastore(bytes, 0, 0x1FF);
+        TransactionBarrier.bastore(booleans, 0, 1);
+        assertEquals((byte) 0xFF, bytes[0]);
+        assertTrue(booleans[0]);
+        try {
+            TransactionBarrier.sastore(new short[1], 1, 0);
+            fail("No exception");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+}
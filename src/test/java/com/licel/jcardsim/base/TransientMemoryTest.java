@@ -86,6 +86,82 @@ public class TransientMemoryTest extends TestCase {
         assertEquals(JCSystem.NOT_A_TRANSIENT_OBJECT, transientMemory.isTransient(codObjects));
     }
 
+    public void testUnreachableArraysAreForgotten() throws InterruptedException {
+        TransientMemory transientMemory = new TransientMemory();
+        byte[] kept = transientMemory.makeByteArray(16, JCSystem.CLEAR_ON_DESELECT);
+        for (int i = 0; i < 100; i++) {
+            transientMemory.makeByteArray(1024, JCSystem.CLEAR_ON_DESELECT);
+            transientMemory.makeObjectArray((short) 16, JCSystem.CLEAR_ON_RESET);
+        }
+        TransientArraySet clearOnDeselect = transientMemory.deselectArrays.get(null);
+        // the garbage collector clears the weak references of the dropped arrays
+        for (int i = 0; i < 50 && (clearOnDeselect.size() > 1 || transientMemory.resetArrays.size() > 0); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, clearOnDeselect.size());
+        assertEquals(0, transientMemory.resetArrays.size());
+        assertEquals(16, clearOnDeselect.getMemory());
+
+        kept[0] = 1;
+        transientMemory.clearOnDeselect();
+        assertEquals(0, kept[0]);
+        assertEquals(JCSystem.CLEAR_ON_DESELECT, transientMemory.isTransient(kept));
+        assertEquals(JCSystem.NOT_A_TRANSIENT_OBJECT, transientMemory.isTransient(new byte[16]));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testArraysOfLegacyListsAreCleared() {
+        TransientMemory transientMemory = new TransientMemory();
+        byte[] deselectArray = new byte[]{1};
+        short[] resetArray = new short[]{1};
+        transientMemory.clearOnDeselect.add(deselectArray);
+        transientMemory.clearOnReset.add(resetArray);
+        assertEquals(JCSystem.CLEAR_ON_DESELECT, transientMemory.isTransient(deselectArray));
+        assertEquals(JCSystem.CLEAR_ON_RESET, transientMemory.isTransient(resetArray));
+
+        transientMemory.clearOnDeselect();
+        assertEquals(0, deselectArray[0]);
+        assertEquals(1, resetArray[0]);
+        transientMemory.clearOnReset();
+        assertEquals(0, resetArray[0]);
+    }
+
+    public void testClearOnDeselectIsScopedToContext() {
+        final Object context1 = new Object();
+        final Object context2 = new Object();
+        TransientMemory transientMemory = new TransientMemory();
+
+        byte[] unowned = transientMemory.makeByteArray(1, JCSystem.CLEAR_ON_DESELECT);
+        transientMemory.setContext(context1);
+        byte[] owned1 = transientMemory.makeByteArray(1, JCSystem.CLEAR_ON_DESELECT);
+        transientMemory.setContext(context2);
+        byte[] owned2 = transientMemory.makeByteArray(1, JCSystem.CLEAR_ON_DESELECT);
+        transientMemory.setContext(null);
+
+        unowned[0] = owned1[0] = owned2[0] = 1;
+        transientMemory.clearOnDeselect(context1);
+        assertEquals(0, unowned[0]);
+        assertEquals(0, owned1[0]);
+        assertEquals(1, owned2[0]);
+        assertEquals(JCSystem.CLEAR_ON_DESELECT, transientMemory.isTransient(owned2));
+        assertSame(context2, transientMemory.getContext(owned2));
+        assertNull(transientMemory.getContext(unowned));
+
+        transientMemory.clearOnDeselect();
+        assertEquals(0, owned2[0]);
+    }
+
+    public void testAppletArraysAreOwnedByLoadFile() {
+        AID aid = AIDUtil.create("0102030405");
+        SimulatorRuntime runtime = new SimulatorRuntime();
+        Simulator instance = new Simulator(runtime);
+        instance.installApplet(aid, Sha1Applet.class);
+
+        LoadFile loadFile = runtime.loadFiles.get(runtime.generatedLoadFileAIDs.get(aid));
+        assertSame(loadFile, runtime.lookupApplet(aid).getContext());
+        assertTrue(runtime.transientMemory.deselectArrays.get(loadFile).size() > 0);
+    }
 
     public void testInvalidEventThrows() {
         final byte invalid = JCSystem.CLEAR_ON_DESELECT + JCSystem.CLEAR_ON_RESET;
@@ -158,4 +234,32 @@ public class TransientMemoryTest extends TestCase {
         assertEquals(0x9000, responseApdu.getSW());
         assertEquals(Arrays.toString(new byte[20]), Arrays.toString(responseApdu.getData()));
     }
+
+    public void testMemoryLimitsAreEnforced() {
+        TransientMemory transientMemory = new TransientMemory();
+        transientMemory.setLimits(10, 4);
+        transientMemory.makeShortArray((short) 3, JCSystem.CLEAR_ON_RESET);
+        transientMemory.makeObjectArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        assertEquals(2, transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_RESET));
+        try {
+            transientMemory.makeByteArray(3, JCSystem.CLEAR_ON_RESET);
+            fail("No exception");
+        } catch (SystemException e) {
+            assertEquals(SystemException.NO_RESOURCE, e.getReason());
+        }
+        assertEquals(2, transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_RESET));
+
+        transientMemory.makeBooleanArray((short) 4, JCSystem.CLEAR_ON_DESELECT);
+        assertEquals(0, transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_DESELECT));
+        try {
+            transientMemory.makeByteArray(1, JCSystem.CLEAR_ON_DESELECT);
+            fail("No exception");
+        } catch (SystemException e) {
+            assertEquals(SystemException.NO_RESOURCE, e.getReason());
+        }
+
+        transientMemory.forgetBuffers();
+        assertEquals(10, transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_RESET));
+        assertEquals(4, transientMemory.getAvailableMemory(JCSystem.CLEAR_ON_DESELECT));
+    }
 }
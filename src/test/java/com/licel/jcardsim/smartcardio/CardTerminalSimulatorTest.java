@@ -1,14 +1,20 @@
 package com.licel.jcardsim.smartcardio;
 
+import com.licel.jcardsim.samples.DualInterfaceApplet;
+import com.licel.jcardsim.utils.AIDUtil;
 import com.licel.jcardsim.utils.AutoResetEvent;
+import javacard.framework.AID;
+import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import junit.framework.TestCase;
 import org.bouncycastle.util.encoders.Hex;
 
 import javax.smartcardio.*;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -256,6 +262,92 @@ public class CardTerminalSimulatorTest extends TestCase {
         card.endExclusive();
     }
 
+    public void testTransmitBatch() {
+        CardSimulator cardSimulator = new CardSimulator();
+        // applet is loaded by the system properties set in setUp()
+        cardSimulator.createApplet(AIDUtil.create(TEST_APPLET_AID), new byte[0], (short) 0, (byte) 0);
+        List<CommandAPDU> commands = Arrays.asList(
+                new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 4, 0, Hex.decode(TEST_APPLET_AID)),
+                new CommandAPDU(0x01, 0x01, 0x00, 0x00, 0x100),
+                new CommandAPDU(0x01, 0x05, 0x00, 0x00),
+                new CommandAPDU(0x01, 0x02, 0x00, 0x00));
+        List<ResponseAPDU> responses = cardSimulator.transmitBatch(commands, true);
+        assertEquals(3, responses.size());
+        assertEquals("Hello world !", new String(responses.get(1).getData()));
+        assertEquals(ISO7816.SW_INS_NOT_SUPPORTED, responses.get(2).getSW());
+    }
+
+    public void testLogicalChannel() throws CardException {
+        CardSimulator cardSimulator = new CardSimulator();
+        cardSimulator.createApplet(AIDUtil.create(TEST_APPLET_AID), new byte[0], (short) 0, (byte) 0);
+        CardTerminal terminal = CardTerminalSimulator.terminal(cardSimulator);
+        Card card = terminal.connect("T=1");
+
+        CardChannel channel = card.openLogicalChannel();
+        assertEquals(1, channel.getChannelNumber());
+        CommandAPDU selectApplet = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 4, 0, Hex.decode(TEST_APPLET_AID));
+        assertEquals(0x9000, channel.transmit(selectApplet).getSW());
+        ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0x01, 0x00, 0x00));
+        assertEquals("Hello world !", new String(response.getData()));
+        // the basic channel has no applet selected
+        response = card.getBasicChannel().transmit(new CommandAPDU(0x00, 0x01, 0x00, 0x00));
+        assertEquals(ISO7816.SW_COMMAND_NOT_ALLOWED, response.getSW());
+
+        try {
+            channel.transmit(new CommandAPDU(0x00, 0x70, 0x00, 0x00, 1));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // ByteBuffers, the command of the caller is not modified
+        ByteBuffer command = ByteBuffer.wrap(new byte[]{0x00, 0x01, 0x00, 0x00});
+        ByteBuffer responseBuffer = ByteBuffer.allocate(258);
+        assertEquals(15, channel.transmit(command, responseBuffer));
+        assertFalse(command.hasRemaining());
+        assertEquals(0x00, command.get(0));
+        assertEquals("Hello world !", new String(responseBuffer.array(), 0, 13));
+        command = ByteBuffer.wrap(new byte[]{0x00, 0x70, 0x00, 0x00, 0x01});
+        try {
+            channel.transmit(command, responseBuffer);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, command.position());
+        }
+        channel.close();
+        try {
+            channel.transmit(new CommandAPDU(0x00, 0x01, 0x00, 0x00));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            card.getBasicChannel().close();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testConnectionProtocol() throws CardException {
+        AID aid = AIDUtil.create("D0000CAFE00001");
+        CardSimulator cardSimulator = new CardSimulator();
+        cardSimulator.installApplet(aid, DualInterfaceApplet.class);
+        CardTerminal terminal = CardTerminalSimulator.terminal(cardSimulator);
+        Card card = terminal.connect("T=CL");
+        assertEquals("T=CL", cardSimulator.getProtocol());
+
+        CardChannel channel = card.getBasicChannel();
+        channel.transmit(new CommandAPDU(AIDUtil.select(aid)));
+        CommandAPDU info = new CommandAPDU(0x80, 0x04, 0x00, 0x00);
+        assertEquals(APDU.PROTOCOL_MEDIA_CONTACTLESS_TYPE_A, channel.transmit(info).getBytes()[0]);
+
+        // the connection switches back to its protocol
+        cardSimulator.changeProtocol("T=0");
+        assertEquals(APDU.PROTOCOL_T0, cardSimulator.transmitCommand(info).getBytes()[0]);
+        assertEquals(APDU.PROTOCOL_MEDIA_CONTACTLESS_TYPE_A, channel.transmit(info).getBytes()[0]);
+    }
+
     private void test(Card jcsCard) throws CardException {
         assertTrue(jcsCard != null);
         // check card ATR
@@ -302,6 +394,23 @@ public class CardTerminalSimulatorTest extends TestCase {
         response = jcsChannel.transmit(new CommandAPDU(0x01, 0x03, 0x00, 0x00, ("Hello javacard world !").getBytes()));
         assertEquals(0x9000, response.getSW());
         assertEquals("Hello javacard world !", new String(response.getData()));
+        // test echo v2 with heap and direct ByteBuffers
+        byte[] echoCommand = new CommandAPDU(0x01, 0x03, 0x00, 0x00, ("Hello javacard world !").getBytes()).getBytes();
+        ByteBuffer heapResponse = ByteBuffer.allocate(258 + 3);
+        heapResponse.position(3);
+        assertEquals(24, jcsChannel.transmit(ByteBuffer.wrap(echoCommand), heapResponse));
+        assertEquals(27, heapResponse.position());
+        assertEquals("Hello javacard world !", new String(heapResponse.array(), 3, 22));
+        ByteBuffer directCommand = ByteBuffer.allocateDirect(echoCommand.length);
+        directCommand.put(echoCommand);
+        directCommand.flip();
+        ByteBuffer directResponse = ByteBuffer.allocateDirect(258);
+        assertEquals(24, jcsChannel.transmit(directCommand, directResponse));
+        assertFalse(directCommand.hasRemaining());
+        directResponse.flip();
+        byte[] directResult = new byte[directResponse.remaining()];
+        directResponse.get(directResult);
+        assertEquals("Hello javacard world !", new String(new ResponseAPDU(directResult).getData()));
         // test echo install params
         response = jcsChannel.transmit(new CommandAPDU(0x01, 0x04, 0x00, 0x00));
         assertEquals(0x9000, response.getSW());
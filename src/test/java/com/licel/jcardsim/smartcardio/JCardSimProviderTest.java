@@ -17,6 +17,7 @@ package com.licel.jcardsim.smartcardio;
 
 import com.licel.jcardsim.base.SimulatorSystem;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.Arrays;
@@ -96,6 +97,19 @@ public class JCardSimProviderTest extends TestCase {
         CommandAPDU selectApplet = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 4, 0, Hex.decode(TEST_APPLET_AID));
         response = jcsChannel.transmit(selectApplet);
         assertEquals(response.getSW(), 0x9000);
+        // MANAGE CHANNEL is rejected
+        try {
+            jcsChannel.transmit(new CommandAPDU(0x00, 0x70, 0x00, 0x00, 1));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            jcsChannel.transmit(ByteBuffer.wrap(new byte[]{0x00, 0x70, (byte) 0x80, 0x01}), ByteBuffer.allocate(258));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
         // test NOP
         response = jcsChannel.transmit(new CommandAPDU(0x00, 0x02, 0x00, 0x00));
         assertEquals(0x9000, response.getSW());
@@ -114,6 +128,23 @@ public class JCardSimProviderTest extends TestCase {
         response = jcsChannel.transmit(new CommandAPDU(0x00, 0x03, 0x00, 0x00, ("Hello javacard world !").getBytes()));
         assertEquals(0x9000, response.getSW());
         assertEquals("Hello javacard world !", new String(response.getData()));
+        // test echo v2 with heap and direct ByteBuffers
+        byte[] echoCommand = new CommandAPDU(0x00, 0x03, 0x00, 0x00, ("Hello javacard world !").getBytes()).getBytes();
+        ByteBuffer heapResponse = ByteBuffer.allocate(258 + 3);
+        heapResponse.position(3);
+        assertEquals(24, jcsChannel.transmit(ByteBuffer.wrap(echoCommand), heapResponse));
+        assertEquals(27, heapResponse.position());
+        assertEquals("Hello javacard world !", new String(heapResponse.array(), 3, 22));
+        ByteBuffer directCommand = ByteBuffer.allocateDirect(echoCommand.length);
+        directCommand.put(echoCommand);
+        directCommand.flip();
+        ByteBuffer directResponse = ByteBuffer.allocateDirect(258);
+        assertEquals(24, jcsChannel.transmit(directCommand, directResponse));
+        assertFalse(directCommand.hasRemaining());
+        directResponse.flip();
+        byte[] directResult = new byte[directResponse.remaining()];
+        directResponse.get(directResult);
+        assertEquals("Hello javacard world !", new String(new ResponseAPDU(directResult).getData()));
         // test echo install params
         response = jcsChannel.transmit(new CommandAPDU(0x00, 0x04, 0x00, 0x00));
         assertEquals(0x9000, response.getSW());
@@ -140,4 +171,41 @@ public class JCardSimProviderTest extends TestCase {
         response = jcsChannel.transmit(new CommandAPDU(0x00, 0x08, 0x00, 0x00));
         assertEquals(0x9000, response.getSW());
     }
+
+    public void testLogicalChannelClose() throws CardException, NoSuchAlgorithmException {
+        if (Security.getProvider("jCardSim") == null) {
+            Security.addProvider(new JCardSimProvider());
+        }
+        CardTerminal jcsTerminal = TerminalFactory.getInstance("jCardSim", null).terminals()
+                .getTerminal("jCardSim.Terminal");
+        Card jcsCard = jcsTerminal.connect("T=0");
+        CardChannel channel = jcsCard.openLogicalChannel();
+        int channelNumber = channel.getChannelNumber();
+        assertTrue(channelNumber > 0);
+        channel.close();
+        // closing twice does nothing
+        channel.close();
+        try {
+            channel.transmit(new CommandAPDU(0x00, 0x01, 0x00, 0x00));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            channel.getChannelNumber();
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the card rejects closing a channel that is not open
+        CardChannel stale = new JCSCardChannel((JCSCard) jcsCard, channelNumber);
+        try {
+            stale.close();
+            fail("CardException expected");
+        } catch (CardException e) {
+            // expected
+        }
+        jcsCard.getBasicChannel().close();
+    }
 }